@@ -0,0 +1,91 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.quicksign.kafka.crypto.encryption.AesGcmCryptoAlgorithm;
+
+/**
+ * Per record cost of {@link AesGcmCryptoAlgorithm} compared to the {@code AesGcmNoPaddingCryptoAlgorithm} of the samples.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AesGcmCryptoAlgorithmBenchmark {
+
+    @Param({"100", "1024", "16384"})
+    private int payloadSize;
+
+    private byte[] payload;
+    private byte[] key;
+    private SampleAesGcmNoPaddingCryptoAlgorithm sampleAlgorithm;
+    private AesGcmCryptoAlgorithm aesGcmAlgorithm;
+    private byte[] sampleEncrypted;
+    private byte[] aesGcmEncrypted;
+
+    @Setup
+    public void setup() throws Exception {
+        payload = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+        key = new byte[32];
+        ThreadLocalRandom.current().nextBytes(key);
+        sampleAlgorithm = new SampleAesGcmNoPaddingCryptoAlgorithm();
+        aesGcmAlgorithm = new AesGcmCryptoAlgorithm();
+        sampleEncrypted = sampleAlgorithm.encrypt(payload, key);
+        aesGcmEncrypted = aesGcmAlgorithm.encrypt(payload, key);
+    }
+
+    @Benchmark
+    public byte[] sampleEncrypt() throws Exception {
+        return sampleAlgorithm.encrypt(payload, key);
+    }
+
+    @Benchmark
+    public byte[] sampleDecrypt() throws Exception {
+        return sampleAlgorithm.decrypt(sampleEncrypted, key);
+    }
+
+    @Benchmark
+    public byte[] aesGcmEncrypt() throws Exception {
+        return aesGcmAlgorithm.encrypt(payload, key);
+    }
+
+    @Benchmark
+    public byte[] aesGcmDecrypt() throws Exception {
+        return aesGcmAlgorithm.decrypt(aesGcmEncrypted, key);
+    }
+}
@@ -0,0 +1,58 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.benchmarks;
+
+import java.security.SecureRandom;
+
+import io.quicksign.kafka.crypto.encryption.AesGcmCryptoAlgorithm;
+import io.quicksign.kafka.crypto.generatedkey.MasterKeyEncryption;
+
+/**
+ * {@link MasterKeyEncryption} using a random in memory master key
+ */
+public class AesGcmMasterKeyEncryption implements MasterKeyEncryption {
+
+    private final AesGcmCryptoAlgorithm cryptoAlgorithm = new AesGcmCryptoAlgorithm();
+    private final byte[] masterKey = new byte[32];
+
+    public AesGcmMasterKeyEncryption() {
+        new SecureRandom().nextBytes(masterKey);
+    }
+
+    @Override
+    public byte[] encryptKey(byte[] key) {
+        try {
+            return cryptoAlgorithm.encrypt(key, masterKey);
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public byte[] decryptKey(byte[] encryptedKey) {
+        try {
+            return cryptoAlgorithm.decrypt(encryptedKey, masterKey);
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+}
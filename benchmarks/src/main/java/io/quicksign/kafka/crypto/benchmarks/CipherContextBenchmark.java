@@ -0,0 +1,114 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.quicksign.kafka.crypto.encryption.AesGcmCryptoAlgorithm;
+import io.quicksign.kafka.crypto.encryption.KeyHandle;
+
+/**
+ * <p>Per record cost of {@link AesGcmCryptoAlgorithm} on small payloads, where the cipher initialization dominates:
+ * <ul>
+ * <li>{@code perRecordInit*}: the key is given as bytes, a key object is built for each record and the thread-local
+ * cipher is initialized with it</li>
+ * <li>{@code cachedHandle*}: the key is given as a cached {@link KeyHandle}, whose cipher contexts are already
+ * initialized with the key and only receive the nonce</li>
+ * </ul>
+ * Records cycle over {@code keys} keys: with more than one key, the thread-local cipher is initialized with a
+ * different key for each record.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CipherContextBenchmark {
+
+    @Param({"16", "100", "1024"})
+    private int payloadSize;
+
+    @Param({"1", "4"})
+    private int keys;
+
+    private final AesGcmCryptoAlgorithm algorithm = new AesGcmCryptoAlgorithm();
+    private byte[] payload;
+    private byte[][] rawKeys;
+    private KeyHandle[] handles;
+    private byte[][] encrypted;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        payload = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+        rawKeys = new byte[keys][];
+        handles = new KeyHandle[keys];
+        encrypted = new byte[keys][];
+        for (int i = 0; i < keys; i++) {
+            rawKeys[i] = new byte[32];
+            ThreadLocalRandom.current().nextBytes(rawKeys[i]);
+            handles[i] = KeyHandle.cached(rawKeys[i], KeyHandle.DEFAULT_KEY_ALGORITHM);
+            encrypted[i] = algorithm.encrypt(payload, rawKeys[i]);
+        }
+    }
+
+    @Benchmark
+    public byte[] perRecordInitEncrypt() throws Exception {
+        return algorithm.encrypt(payload, rawKeys[nextKey()]);
+    }
+
+    @Benchmark
+    public byte[] cachedHandleEncrypt() throws Exception {
+        return algorithm.encrypt(payload, handles[nextKey()]);
+    }
+
+    @Benchmark
+    public byte[] perRecordInitDecrypt() throws Exception {
+        int key = nextKey();
+        return algorithm.decrypt(encrypted[key], rawKeys[key]);
+    }
+
+    @Benchmark
+    public byte[] cachedHandleDecrypt() throws Exception {
+        int key = nextKey();
+        return algorithm.decrypt(encrypted[key], 0, encrypted[key].length, handles[key]);
+    }
+
+    private int nextKey() {
+        int key = next;
+        next = key + 1 == keys ? 0 : key + 1;
+        return key;
+    }
+}
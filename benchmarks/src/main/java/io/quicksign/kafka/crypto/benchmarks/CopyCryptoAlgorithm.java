@@ -0,0 +1,50 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.benchmarks;
+
+import io.quicksign.kafka.crypto.encryption.CryptoAlgorithm;
+
+/**
+ * Identity "algorithm" copying the clear data. It is used to measure the cost of the framing
+ * independently of the cost of the cipher.
+ */
+public class CopyCryptoAlgorithm implements CryptoAlgorithm {
+
+    @Override
+    public byte[] encrypt(byte[] data, byte[] key) {
+        return data.clone();
+    }
+
+    @Override
+    public byte[] decrypt(byte[] encryptedData, byte[] key) {
+        return encryptedData.clone();
+    }
+
+    @Override
+    public int encryptedSize(int dataLength) {
+        return dataLength;
+    }
+
+    @Override
+    public int encrypt(byte[] data, byte[] key, byte[] output, int outputOffset) {
+        System.arraycopy(data, 0, output, outputOffset, data.length);
+        return data.length;
+    }
+}
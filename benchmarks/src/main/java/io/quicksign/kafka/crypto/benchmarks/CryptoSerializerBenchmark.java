@@ -0,0 +1,94 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.benchmarks;
+
+import static io.quicksign.kafka.crypto.KafkaCryptoConstants.ENCRYPTED_PREFIX;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.quicksign.kafka.crypto.CryptoSerializer;
+import io.quicksign.kafka.crypto.Encryptor;
+import io.quicksign.kafka.crypto.encryption.DefaultEncryptor;
+
+/**
+ * Compare the framing of {@link CryptoSerializer} (encrypted value written directly after the header)
+ * with the previous framing (encrypted value copied into a second buffer).
+ * <p>
+ * The cipher is replaced by {@link CopyCryptoAlgorithm} to isolate the cost of the framing.
+ * Run with {@code -prof gc} to compare the allocation rates.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CryptoSerializerBenchmark {
+
+    @Param({"100", "1024", "16384"})
+    private int payloadSize;
+
+    private byte[] payload;
+    private byte[] keyRef;
+    private Encryptor encryptor;
+    private CryptoSerializer<byte[]> cryptoSerializer;
+
+    @Setup
+    public void setup() {
+        payload = new byte[payloadSize];
+        keyRef = "benchmark-key-reference".getBytes(StandardCharsets.UTF_8);
+        byte[] key = new byte[32];
+        encryptor = new DefaultEncryptor(keyReference -> Optional.of(key), new CopyCryptoAlgorithm());
+        ThreadLocal<byte[]> keyRefHolder = ThreadLocal.withInitial(() -> keyRef);
+        cryptoSerializer = new CryptoSerializer<>(new ByteArraySerializer(), encryptor, keyRefHolder);
+    }
+
+    @Benchmark
+    public byte[] copyFraming() {
+        byte[] encryptedData = encryptor.encrypt(payload, keyRef);
+        return ByteBuffer.allocate(ENCRYPTED_PREFIX.length + Integer.BYTES + keyRef.length + encryptedData.length)
+                .put(ENCRYPTED_PREFIX)
+                .putInt(keyRef.length)
+                .put(keyRef)
+                .put(encryptedData)
+                .array();
+    }
+
+    @Benchmark
+    public byte[] singleAllocationFraming() {
+        return cryptoSerializer.serialize("topic", payload);
+    }
+}
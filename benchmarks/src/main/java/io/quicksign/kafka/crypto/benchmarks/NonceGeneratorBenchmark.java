@@ -0,0 +1,105 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.benchmarks;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import io.quicksign.kafka.crypto.encryption.AesGcmCryptoAlgorithm;
+import io.quicksign.kafka.crypto.encryption.NonceGenerator;
+import io.quicksign.kafka.crypto.encryption.NonceGeneratorType;
+
+/**
+ * Throughput of nonce generation when shared by several threads: a single {@code SHA1PRNG} {@link SecureRandom}
+ * (as in the samples) vs the {@link NonceGeneratorType} strategies.
+ * <p>
+ * Use {@link #main(String[])} to run it from 1 to 64 threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NonceGeneratorBenchmark {
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    private SecureRandom sharedSecureRandom;
+    private NonceGenerator secureRandomNonceGenerator;
+    private NonceGenerator counterNonceGenerator;
+
+    @State(Scope.Thread)
+    public static class Nonce {
+
+        private final byte[] value = new byte[AesGcmCryptoAlgorithm.NONCE_SIZE];
+    }
+
+    @Setup
+    public void setup() throws NoSuchAlgorithmException {
+        sharedSecureRandom = SecureRandom.getInstance("SHA1PRNG");
+        secureRandomNonceGenerator = NonceGeneratorType.SECURE_RANDOM.create();
+        counterNonceGenerator = NonceGeneratorType.COUNTER.create();
+    }
+
+    @Benchmark
+    public byte[] sharedSha1Prng(Nonce nonce) {
+        sharedSecureRandom.nextBytes(nonce.value);
+        return nonce.value;
+    }
+
+    @Benchmark
+    public byte[] threadLocalSecureRandom(Nonce nonce) {
+        secureRandomNonceGenerator.nextNonce(nonce.value);
+        return nonce.value;
+    }
+
+    @Benchmark
+    public byte[] counter(Nonce nonce) {
+        counterNonceGenerator.nextNonce(nonce.value);
+        return nonce.value;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREADS) {
+            Options options = new OptionsBuilder()
+                    .include(NonceGeneratorBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
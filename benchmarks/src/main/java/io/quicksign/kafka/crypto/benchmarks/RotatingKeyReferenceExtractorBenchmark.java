@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.quicksign.kafka.crypto.Encryptor;
+import io.quicksign.kafka.crypto.encryption.AesGcmCryptoAlgorithm;
+import io.quicksign.kafka.crypto.encryption.DefaultEncryptor;
+import io.quicksign.kafka.crypto.generatedkey.AES256CryptoKeyGenerator;
+import io.quicksign.kafka.crypto.generatedkey.KeyPerRecordKeyReferenceExtractor;
+import io.quicksign.kafka.crypto.generatedkey.MasterKeyEncryption;
+import io.quicksign.kafka.crypto.generatedkey.PerRecordKeyProvider;
+import io.quicksign.kafka.crypto.generatedkey.RotatingKeyReferenceExtractor;
+import io.quicksign.kafka.crypto.pairing.serializer.CryptoSerializerPairFactory;
+import io.quicksign.kafka.crypto.pairing.serializer.SerializerPair;
+
+/**
+ * Producer side cost of a record (key extraction, key lookup, encryption and framing) with a generated key per record
+ * vs a rotating data encryption key.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RotatingKeyReferenceExtractorBenchmark {
+
+    @Param({"1024"})
+    private int payloadSize;
+
+    private byte[] payload;
+    private SerializerPair<String, byte[]> keyPerRecordSerializers;
+    private SerializerPair<String, byte[]> rotatingKeySerializers;
+
+    @Setup
+    public void setup() {
+        payload = new byte[payloadSize];
+        MasterKeyEncryption masterKeyEncryption = new AesGcmMasterKeyEncryption();
+        AES256CryptoKeyGenerator cryptoKeyGenerator = new AES256CryptoKeyGenerator();
+        AesGcmCryptoAlgorithm cryptoAlgorithm = new AesGcmCryptoAlgorithm();
+        PerRecordKeyProvider perRecordKeyProvider = new PerRecordKeyProvider(masterKeyEncryption);
+
+        keyPerRecordSerializers = new CryptoSerializerPairFactory(
+                new DefaultEncryptor(perRecordKeyProvider, cryptoAlgorithm),
+                new KeyPerRecordKeyReferenceExtractor(cryptoKeyGenerator, masterKeyEncryption))
+                .build(new StringSerializer(), new ByteArraySerializer());
+
+        RotatingKeyReferenceExtractor rotatingExtractor = RotatingKeyReferenceExtractor.builder(cryptoKeyGenerator, masterKeyEncryption)
+                .maxRecords(10_000)
+                .build();
+        Encryptor rotatingEncryptor = rotatingExtractor.countingEncryptor(
+                new DefaultEncryptor(rotatingExtractor.asKeyProvider(perRecordKeyProvider), cryptoAlgorithm));
+        rotatingKeySerializers = new CryptoSerializerPairFactory(rotatingEncryptor, rotatingExtractor)
+                .build(new StringSerializer(), new ByteArraySerializer());
+    }
+
+    @Benchmark
+    public byte[] keyPerRecord() {
+        return serialize(keyPerRecordSerializers);
+    }
+
+    @Benchmark
+    public byte[] rotatingKey() {
+        return serialize(rotatingKeySerializers);
+    }
+
+    private byte[] serialize(SerializerPair<String, byte[]> serializers) {
+        RecordHeaders headers = new RecordHeaders();
+        Serializer<String> keySerializer = serializers.getKeySerializer();
+        keySerializer.serialize("topic", headers, "key");
+        return serializers.getValueSerializer().serialize("topic", headers, payload);
+    }
+}
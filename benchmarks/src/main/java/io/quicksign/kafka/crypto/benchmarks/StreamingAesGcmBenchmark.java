@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.benchmarks;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.quicksign.kafka.crypto.encryption.AesGcmCryptoAlgorithm;
+import io.quicksign.kafka.crypto.encryption.StreamingAesGcmCryptoAlgorithm;
+
+/**
+ * Latency of the encryption and decryption of a single large value depending on its size:
+ * {@link AesGcmCryptoAlgorithm} vs {@link StreamingAesGcmCryptoAlgorithm} with serial and parallel segments.
+ * The gain of parallel segments is bounded by the number of cores of the common pool.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamingAesGcmBenchmark {
+
+    @Param({"65536", "1048576", "4194304", "16777216"})
+    private int payloadSize;
+
+    private byte[] payload;
+    private byte[] key;
+    private AesGcmCryptoAlgorithm aesGcmAlgorithm;
+    private StreamingAesGcmCryptoAlgorithm serialAlgorithm;
+    private StreamingAesGcmCryptoAlgorithm parallelAlgorithm;
+    private byte[] aesGcmEncrypted;
+    private byte[] segmentedEncrypted;
+
+    @Setup
+    public void setup() throws Exception {
+        payload = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+        key = new byte[32];
+        ThreadLocalRandom.current().nextBytes(key);
+        aesGcmAlgorithm = new AesGcmCryptoAlgorithm();
+        int segmentSize = 256 * 1024;
+        serialAlgorithm = new StreamingAesGcmCryptoAlgorithm(segmentSize, Integer.MAX_VALUE, ForkJoinPool.commonPool());
+        parallelAlgorithm = new StreamingAesGcmCryptoAlgorithm(segmentSize, 2 * segmentSize, ForkJoinPool.commonPool());
+        aesGcmEncrypted = aesGcmAlgorithm.encrypt(payload, key);
+        segmentedEncrypted = serialAlgorithm.encrypt(payload, key);
+    }
+
+    @Benchmark
+    public byte[] aesGcmEncrypt() throws Exception {
+        return aesGcmAlgorithm.encrypt(payload, key);
+    }
+
+    @Benchmark
+    public byte[] aesGcmDecrypt() throws Exception {
+        return aesGcmAlgorithm.decrypt(aesGcmEncrypted, key);
+    }
+
+    @Benchmark
+    public byte[] serialSegmentsEncrypt() throws Exception {
+        return serialAlgorithm.encrypt(payload, key);
+    }
+
+    @Benchmark
+    public byte[] serialSegmentsDecrypt() throws Exception {
+        return serialAlgorithm.decrypt(segmentedEncrypted, key);
+    }
+
+    @Benchmark
+    public byte[] parallelSegmentsEncrypt() throws Exception {
+        return parallelAlgorithm.encrypt(payload, key);
+    }
+
+    @Benchmark
+    public byte[] parallelSegmentsDecrypt() throws Exception {
+        return parallelAlgorithm.decrypt(segmentedEncrypted, key);
+    }
+}
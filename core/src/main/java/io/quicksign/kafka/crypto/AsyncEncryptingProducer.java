@@ -0,0 +1,359 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.serialization.Serializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.quicksign.kafka.crypto.pairing.serializer.SerializerPair;
+
+/**
+ * <p>Producer serializing and encrypting records on a pool of worker threads instead of the caller of
+ * {@link #send(ProducerRecord, Callback)}, so that key retrieval and encryption do not add to the latency
+ * of the application.</p>
+ *
+ * <p>The underlying producer must use {@link org.apache.kafka.common.serialization.ByteArraySerializer}
+ * for keys and values: records are serialized by the given serializers (typically a {@link SerializerPair} built by
+ * {@link io.quicksign.kafka.crypto.pairing.serializer.CryptoSerializerPairFactory}) on the worker threads,
+ * then handed over to the underlying producer.</p>
+ *
+ * <p>Each worker thread has its own queue. Records with the same explicit partition, or else with the same key
+ * (compared by content for {@code byte[]} keys, by {@link Object#hashCode()} otherwise), are always processed by
+ * the same worker, so they are handed over to the underlying producer in the order of the calls to send.
+ * Records of a same key sent both with and without an explicit partition are not ordered with each other.
+ * When the queue of the worker is full, send blocks until a record is handed over.</p>
+ *
+ * <p>The returned futures, and the callbacks, are completed once the record is acknowledged by the underlying producer,
+ * or when its serialization fails. Unlike {@link org.apache.kafka.clients.producer.KafkaProducer}, serialization
+ * errors are then reported through the future and the callback, not thrown by send.</p>
+ *
+ * <p>Transactions are delegated to the underlying producer. Committing or aborting a transaction first waits for the
+ * queued records to be handed over, so that they belong to the transaction they were sent in.</p>
+ *
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
+public class AsyncEncryptingProducer<K, V> implements Producer<K, V> {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncEncryptingProducer.class);
+
+    private final Producer<byte[], byte[]> producer;
+    private final Serializer<K> keySerializer;
+    private final Serializer<V> valueSerializer;
+    private final Lane[] lanes;
+
+    /**
+     * @param producer       producer using {@link org.apache.kafka.common.serialization.ByteArraySerializer} for keys and values
+     * @param serializerPair serializers of the keys and values
+     * @param threads        number of worker threads
+     * @param queueDepth     maximum number of records queued per worker thread
+     */
+    public AsyncEncryptingProducer(Producer<byte[], byte[]> producer, SerializerPair<K, V> serializerPair,
+                                   int threads, int queueDepth) {
+        this(producer, serializerPair.getKeySerializer(), serializerPair.getValueSerializer(), threads, queueDepth);
+    }
+
+    /**
+     * @param producer        producer using {@link org.apache.kafka.common.serialization.ByteArraySerializer} for keys and values
+     * @param keySerializer   serializer of the keys
+     * @param valueSerializer serializer of the values
+     * @param threads         number of worker threads
+     * @param queueDepth      maximum number of records queued per worker thread
+     */
+    public AsyncEncryptingProducer(Producer<byte[], byte[]> producer, Serializer<K> keySerializer,
+                                   Serializer<V> valueSerializer, int threads, int queueDepth) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        if (queueDepth < 1) {
+            throw new IllegalArgumentException("queueDepth must be positive");
+        }
+        this.producer = producer;
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.lanes = new Lane[threads];
+        for (int i = 0; i < threads; i++) {
+            lanes[i] = new Lane(i, queueDepth);
+        }
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<K, V> record) {
+        return send(record, null);
+    }
+
+    /**
+     * Queue the record for serialization and encryption.
+     * Blocks while the queue of the worker processing the record is full.
+     */
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<K, V> record, Callback callback) {
+        Lane lane = lanes[Math.floorMod(laneHash(record), lanes.length)];
+        try {
+            lane.permits.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptException(e);
+        }
+        SendTask task = new SendTask(lane, record, callback);
+        try {
+            lane.executor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            lane.permits.release();
+            throw new IllegalStateException("Cannot send after the producer is closed.", e);
+        }
+        return task.future;
+    }
+
+    /**
+     * Wait for the queued records to be handed over to the underlying producer, then flush it.
+     */
+    @Override
+    public void flush() {
+        awaitQueuedRecords();
+        producer.flush();
+    }
+
+    private void awaitQueuedRecords() {
+        List<Future<?>> barriers = new ArrayList<>(lanes.length);
+        for (Lane lane : lanes) {
+            barriers.add(lane.executor.submit(() -> {
+            }));
+        }
+        try {
+            for (Future<?> barrier : barriers) {
+                barrier.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptException(e);
+        }
+        catch (ExecutionException e) {
+            throw new KafkaException(e.getCause());
+        }
+        catch (CancellationException | RejectedExecutionException e) {
+            throw new KafkaException("Producer closed before the queued records were sent", e);
+        }
+    }
+
+    @Override
+    public List<PartitionInfo> partitionsFor(String topic) {
+        return producer.partitionsFor(topic);
+    }
+
+    @Override
+    public Map<MetricName, ? extends Metric> metrics() {
+        return producer.metrics();
+    }
+
+    @Override
+    public void close() {
+        close(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wait for the queued records to be handed over to the underlying producer, then close it.
+     * The futures of the records still queued after the timeout are completed exceptionally.
+     */
+    @Override
+    public void close(long timeout, TimeUnit timeUnit) {
+        long deadline = deadline(timeout, timeUnit);
+        for (Lane lane : lanes) {
+            lane.executor.shutdown();
+        }
+        try {
+            for (Lane lane : lanes) {
+                if (!lane.executor.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    for (Runnable pending : lane.executor.shutdownNow()) {
+                        if (pending instanceof AsyncEncryptingProducer.SendTask) {
+                            ((AsyncEncryptingProducer<?, ?>.SendTask) pending).fail(new KafkaException("Producer closed before the record was sent"));
+                        }
+                        else if (pending instanceof Future) {
+                            // flush barrier
+                            ((Future<?>) pending).cancel(false);
+                        }
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptException(e);
+        }
+        finally {
+            producer.close(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            keySerializer.close();
+            valueSerializer.close();
+        }
+    }
+
+    @Override
+    public void initTransactions() {
+        producer.initTransactions();
+    }
+
+    @Override
+    public void beginTransaction() {
+        producer.beginTransaction();
+    }
+
+    @Override
+    public void sendOffsetsToTransaction(Map<TopicPartition, OffsetAndMetadata> offsets, String consumerGroupId) {
+        producer.sendOffsetsToTransaction(offsets, consumerGroupId);
+    }
+
+    /**
+     * Wait for the queued records to be handed over to the underlying producer, then commit its transaction.
+     */
+    @Override
+    public void commitTransaction() {
+        awaitQueuedRecords();
+        producer.commitTransaction();
+    }
+
+    /**
+     * Wait for the queued records to be handed over to the underlying producer, then abort its transaction.
+     */
+    @Override
+    public void abortTransaction() {
+        awaitQueuedRecords();
+        producer.abortTransaction();
+    }
+
+    private static int laneHash(ProducerRecord<?, ?> record) {
+        int hash;
+        if (record.partition() != null) {
+            hash = record.partition();
+        }
+        else if (record.key() instanceof byte[]) {
+            hash = Arrays.hashCode((byte[]) record.key());
+        }
+        else if (record.key() != null) {
+            hash = record.key().hashCode();
+        }
+        else {
+            hash = record.topic().hashCode();
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static long deadline(long timeout, TimeUnit timeUnit) {
+        long now = System.nanoTime();
+        long nanos = timeUnit.toNanos(timeout);
+        return nanos > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + nanos;
+    }
+
+    private static final class Lane {
+
+        private final ExecutorService executor;
+        private final Semaphore permits;
+
+        private Lane(int index, int queueDepth) {
+            this.permits = new Semaphore(queueDepth);
+            this.executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "kafka-encryption-producer-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private final class SendTask implements Runnable {
+
+        private final Lane lane;
+        private final ProducerRecord<K, V> record;
+        private final Callback callback;
+        private final CompletableFuture<RecordMetadata> future = new CompletableFuture<>();
+
+        private SendTask(Lane lane, ProducerRecord<K, V> record, Callback callback) {
+            this.lane = lane;
+            this.record = record;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            try {
+                byte[] serializedKey = keySerializer.serialize(record.topic(), record.headers(), record.key());
+                byte[] serializedValue = valueSerializer.serialize(record.topic(), record.headers(), record.value());
+                producer.send(new ProducerRecord<>(record.topic(), record.partition(), record.timestamp(),
+                        serializedKey, serializedValue, record.headers()), this::complete);
+            }
+            catch (RuntimeException e) {
+                fail(e);
+            }
+            finally {
+                lane.permits.release();
+            }
+        }
+
+        private void fail(Exception exception) {
+            complete(null, exception);
+        }
+
+        private void complete(RecordMetadata metadata, Exception exception) {
+            try {
+                if (callback != null) {
+                    callback.onCompletion(metadata, exception);
+                }
+            }
+            catch (RuntimeException e) {
+                log.error("Error executing user-provided callback for a record of topic '{}'", record.topic(), e);
+            }
+            finally {
+                if (exception != null) {
+                    future.completeExceptionally(exception);
+                }
+                else {
+                    future.complete(metadata);
+                }
+            }
+        }
+    }
+}
@@ -19,20 +19,23 @@
  */
 package io.quicksign.kafka.crypto;
 
-import static io.quicksign.kafka.crypto.KafkaCryptoConstants.ENCRYPTED_PREFIX;
 import static io.quicksign.kafka.crypto.KafkaCryptoConstants.KEY_REF_HEADER;
 
-import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
 
 import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.errors.SerializationException;
 import org.apache.kafka.common.header.internals.RecordHeaders;
 import org.apache.kafka.common.serialization.Deserializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import io.quicksign.kafka.crypto.utils.ArrayUtils;
+import io.quicksign.kafka.crypto.compression.CompressionCodec;
+import io.quicksign.kafka.crypto.compression.CompressionType;
 
 /**
  * <p>Deserializer for encrypted data</p>
@@ -45,6 +48,24 @@ import io.quicksign.kafka.crypto.utils.ArrayUtils;
  * <p>If the data to deserialize does not starts with the magic bytes, it is directly deserialized using the underlying Deserializer
  * </p>
  *
+ * <p>All the structures described in {@link EncryptedEnvelope} are read. When the record identifies its algorithm,
+ * it is given to the {@link Decryptor} to select the algorithm used for decryption.
+ * </p>
+ *
+ * <p>Data compressed before encryption is decompressed after decryption,
+ * using the codec identified in the record. The {@link CompressionType built-in codecs} are always known,
+ * other codecs must be given at construction. An unknown codec results in a {@link SerializationException}.
+ * </p>
+ *
+ * <p>The key reference of each record is added to the headers according to the {@link KeyRefHeaderMode},
+ * {@link KeyRefHeaderMode#ALWAYS} by default. Consumers which do not need it can save the header with
+ * {@link KeyRefHeaderMode#NONE}.
+ * </p>
+ *
+ * <p>Encrypted data is decrypted in place, without copying it out of the record value. Clear data following the magic bytes
+ * is passed in place to the underlying Deserializer if it is a {@link SliceDeserializer}, otherwise it is copied.
+ * </p>
+ *
  * <p>Please note that this Deserializer has no default constructor, so it can not be configured via properties.
  * So if you want to use it into a Consumer, you will have to use {@link org.apache.kafka.clients.consumer.KafkaConsumer#KafkaConsumer(Properties, Deserializer, Deserializer)}
  * or {@link org.apache.kafka.clients.consumer.KafkaConsumer#KafkaConsumer(Map, Deserializer, Deserializer)} with your
@@ -61,21 +82,54 @@ public class CryptoDeserializer<T> implements Deserializer<T> {
 
     private final Deserializer<? extends T> rawDeserializer;
     private final Decryptor decryptor;
+    private final CompressionCodec[] compressionCodecs = new CompressionCodec[256];
+    private final KeyRefHeaderMode keyRefHeaderMode;
 
     /**
      * @param rawDeserializer deserializer to deserialize clear data
      * @param decryptor       Decryptor used to decrypt the data
      */
     public CryptoDeserializer(Deserializer<? extends T> rawDeserializer, Decryptor decryptor) {
+        this(rawDeserializer, decryptor, Collections.emptyList());
+    }
+
+    /**
+     * @param rawDeserializer   deserializer to deserialize clear data
+     * @param decryptor         Decryptor used to decrypt the data
+     * @param compressionCodecs codecs to decompress data in addition to the built-in ones (a codec replaces the built-in one having the same id)
+     */
+    public CryptoDeserializer(Deserializer<? extends T> rawDeserializer, Decryptor decryptor,
+                              Collection<? extends CompressionCodec> compressionCodecs) {
+        this(rawDeserializer, decryptor, compressionCodecs, KeyRefHeaderMode.ALWAYS);
+    }
+
+    /**
+     * @param rawDeserializer   deserializer to deserialize clear data
+     * @param decryptor         Decryptor used to decrypt the data
+     * @param compressionCodecs codecs to decompress data in addition to the built-in ones (a codec replaces the built-in one having the same id)
+     * @param keyRefHeaderMode  how the key reference is added to the headers
+     */
+    public CryptoDeserializer(Deserializer<? extends T> rawDeserializer, Decryptor decryptor,
+                              Collection<? extends CompressionCodec> compressionCodecs, KeyRefHeaderMode keyRefHeaderMode) {
 
         this.rawDeserializer = rawDeserializer;
         this.decryptor = decryptor;
+        this.keyRefHeaderMode = keyRefHeaderMode;
+        for (CompressionType compressionType : CompressionType.values()) {
+            register(compressionType.codec());
+        }
+        compressionCodecs.forEach(this::register);
+    }
+
+    private void register(CompressionCodec compressionCodec) {
+        this.compressionCodecs[compressionCodec.id() & 0xFF] = compressionCodec;
     }
 
 
     /**
      * deserialize the data (with decryption if needed)
      * The keyref used to deserialize the data will be added to the header {@link KafkaCryptoConstants#KEY_REF_HEADER} (may be {@code null})
+     * according to the {@link KeyRefHeaderMode}
      *
      * @param topic
      * @param headers they will be enriched with header {@link KafkaCryptoConstants#KEY_REF_HEADER}
@@ -88,12 +142,19 @@ public class CryptoDeserializer<T> implements Deserializer<T> {
             return null;
         }
 
-        DecryptedDataWithKeyRef decryptedDataWithKeyRef = decrypt(data);
-
+        return deserializeDecrypted(topic, headers, decrypt(data));
+    }
 
-        T deserializedValue = rawDeserializer.deserialize(topic, headers, decryptedDataWithKeyRef.decryptedData);
+    /**
+     * deserialize data decrypted by {@link #decrypt(byte[])} and add the keyref header
+     */
+    T deserializeDecrypted(String topic, Headers headers, DecryptedDataWithKeyRef decryptedDataWithKeyRef) {
+        T deserializedValue = deserializeRaw(topic, headers, decryptedDataWithKeyRef);
 
-        headers.add(KEY_REF_HEADER, decryptedDataWithKeyRef.keyRef);
+        if (keyRefHeaderMode == KeyRefHeaderMode.ALWAYS
+                || (keyRefHeaderMode == KeyRefHeaderMode.ENCRYPTED_ONLY && decryptedDataWithKeyRef.keyRef != null)) {
+            headers.add(KEY_REF_HEADER, decryptedDataWithKeyRef.keyRef);
+        }
 
         return deserializedValue;
     }
@@ -121,32 +182,53 @@ public class CryptoDeserializer<T> implements Deserializer<T> {
     }
 
 
-    private DecryptedDataWithKeyRef decrypt(byte[] data) {
-        if (ArrayUtils.startWith(data, ENCRYPTED_PREFIX)) {
-            ByteBuffer byteBuffer = ByteBuffer.wrap(data,
-                    ENCRYPTED_PREFIX.length, data.length - ENCRYPTED_PREFIX.length);
-            int keyRefLength = byteBuffer.getInt();
-            byte[] decryptedData;
-            byte[] keyRef = null;
-            if (keyRefLength == 0) {
-                log.debug("not key ref, data are not encrypted");
-                decryptedData = new byte[byteBuffer.remaining()];
-                byteBuffer.get(decryptedData);
-            }
-            else {
-                keyRef = new byte[keyRefLength];
-                byteBuffer.get(keyRef);
-                byte[] encryptedData = new byte[byteBuffer.remaining()];
-                byteBuffer.get(encryptedData);
-                decryptedData = decryptor.decrypt(encryptedData, keyRef);
-
+    /**
+     * decrypt (and decompress) the data if needed, it does not depend on the state of the deserializer
+     * and can be called concurrently
+     */
+    DecryptedDataWithKeyRef decrypt(byte[] data) {
+        EncryptedEnvelope envelope = EncryptedEnvelope.parse(data);
+        if (envelope == null) {
+            return new DecryptedDataWithKeyRef(null, data);
+        }
+        byte[] keyRef = envelope.getKeyRef();
+        if (keyRef == null) {
+            log.debug("not key ref, data are not encrypted");
+            return new DecryptedDataWithKeyRef(null, data, envelope.getPayloadOffset(), envelope.getPayloadLength());
+        }
+        CompressionCodec compressionCodec = null;
+        if (envelope.isCompressed()) {
+            compressionCodec = compressionCodecs[envelope.getCompressionCodecId()];
+            if (compressionCodec == null) {
+                throw new SerializationException("unknown compression codec " + envelope.getCompressionCodecId());
             }
+        }
+        byte[] decryptedData = envelope.getAlgorithmId() == EncryptedEnvelope.NO_ALGORITHM_ID
+                ? decryptor.decrypt(data, envelope.getPayloadOffset(), envelope.getPayloadLength(), keyRef)
+                : decryptor.decrypt(data, envelope.getPayloadOffset(), envelope.getPayloadLength(), keyRef,
+                envelope.getAlgorithmId());
+        if (decryptedData == null || compressionCodec == null) {
             return new DecryptedDataWithKeyRef(keyRef, decryptedData);
         }
-        else {
-            return new DecryptedDataWithKeyRef(null, data);
+        try {
+            return new DecryptedDataWithKeyRef(keyRef, compressionCodec.decompress(decryptedData, 0, decryptedData.length));
         }
+        catch (RuntimeException e) {
+            throw new SerializationException("unable to decompress data with codec " + envelope.getCompressionCodecId(), e);
+        }
+    }
 
+    private T deserializeRaw(String topic, Headers headers, DecryptedDataWithKeyRef decryptedDataWithKeyRef) {
+        byte[] data = decryptedDataWithKeyRef.decryptedData;
+        int offset = decryptedDataWithKeyRef.offset;
+        int length = decryptedDataWithKeyRef.length;
+        if (data == null || (offset == 0 && length == data.length)) {
+            return rawDeserializer.deserialize(topic, headers, data);
+        }
+        if (rawDeserializer instanceof SliceDeserializer) {
+            return ((SliceDeserializer<? extends T>) rawDeserializer).deserialize(topic, headers, data, offset, length);
+        }
+        return rawDeserializer.deserialize(topic, headers, Arrays.copyOfRange(data, offset, offset + length));
     }
 
 
@@ -156,16 +238,27 @@ public class CryptoDeserializer<T> implements Deserializer<T> {
     }
 
 
-    private static class DecryptedDataWithKeyRef {
+    static class DecryptedDataWithKeyRef {
 
         private final byte[] keyRef;
         private final byte[] decryptedData;
+        private final int offset;
+        private final int length;
 
         DecryptedDataWithKeyRef(byte[] keyRef, byte[] decryptedData) {
+            this(keyRef, decryptedData, 0, decryptedData == null ? 0 : decryptedData.length);
+        }
+
+        DecryptedDataWithKeyRef(byte[] keyRef, byte[] decryptedData, int offset, int length) {
 
             this.keyRef = keyRef;
             this.decryptedData = decryptedData;
+            this.offset = offset;
+            this.length = length;
         }
 
+        int length() {
+            return length;
+        }
     }
 }
@@ -19,18 +19,45 @@
  */
 package io.quicksign.kafka.crypto;
 
+import java.util.Collection;
+import java.util.Collections;
+
 import org.apache.kafka.common.serialization.Deserializer;
 
+import io.quicksign.kafka.crypto.compression.CompressionCodec;
+
 public class CryptoDeserializerFactory {
 
     private final Decryptor decryptor;
+    private final Collection<? extends CompressionCodec> compressionCodecs;
+    private final KeyRefHeaderMode keyRefHeaderMode;
 
     public CryptoDeserializerFactory(Decryptor decryptor) {
+        this(decryptor, Collections.emptyList());
+    }
+
+    /**
+     * @param decryptor         used for decryption
+     * @param compressionCodecs codecs to decompress data in addition to the built-in ones
+     */
+    public CryptoDeserializerFactory(Decryptor decryptor, Collection<? extends CompressionCodec> compressionCodecs) {
+        this(decryptor, compressionCodecs, KeyRefHeaderMode.ALWAYS);
+    }
+
+    /**
+     * @param decryptor         used for decryption
+     * @param compressionCodecs codecs to decompress data in addition to the built-in ones
+     * @param keyRefHeaderMode  how the key reference is added to the headers
+     */
+    public CryptoDeserializerFactory(Decryptor decryptor, Collection<? extends CompressionCodec> compressionCodecs,
+                                     KeyRefHeaderMode keyRefHeaderMode) {
 
         this.decryptor = decryptor;
+        this.compressionCodecs = compressionCodecs;
+        this.keyRefHeaderMode = keyRefHeaderMode;
     }
 
     public <T> CryptoDeserializer<T> buildFrom(Deserializer<T> rawDeserializer) {
-        return new CryptoDeserializer<>(rawDeserializer, decryptor);
+        return new CryptoDeserializer<>(rawDeserializer, decryptor, compressionCodecs, keyRefHeaderMode);
     }
 }
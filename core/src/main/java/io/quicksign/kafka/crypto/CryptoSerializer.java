@@ -19,10 +19,8 @@
  */
 package io.quicksign.kafka.crypto;
 
-import static io.quicksign.kafka.crypto.KafkaCryptoConstants.ENCRYPTED_PREFIX;
 import static io.quicksign.kafka.crypto.KafkaCryptoConstants.KEY_REF_HEADER;
 
-import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.Properties;
 
@@ -32,6 +30,8 @@ import org.apache.kafka.common.serialization.Serializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.quicksign.kafka.crypto.compression.CompressionCodec;
+
 /**
  * <p>Serializer for encrypted</p>
  *
@@ -43,6 +43,24 @@ import org.slf4j.LoggerFactory;
  * <pre>magic_bytes({@link KafkaCryptoConstants#ENCRYPTED_PREFIX})(6 bytes)|keyref.length(4 bytes)|keyref|encrypted_data</pre>
  * </p>
  *
+ * <p>If the {@link Encryptor} identifies its algorithm (see {@link Encryptor#getAlgorithmId()}), or if the data is
+ * compressed or chunked, the result of the serialization has the version 2 structure described in {@link EncryptedEnvelope},
+ * which identifies the algorithm and features used. Consumers must be upgraded before producers write this structure.
+ * </p>
+ *
+ * <p>If a {@link CompressionCodec} is configured, serialized data at least as large as the compression threshold
+ * is compressed before encryption, as encrypted data can not be compressed by Kafka. The compressed data is kept only
+ * if it is smaller than the serialized data.
+ * Please note that the length of compressed data depends on its content, so it may leak information about
+ * the clear data when an attacker can control part of it.
+ * </p>
+ *
+ * <p>The key reference is already part of the serialized data, so the serializer can remove the header
+ * {@link KafkaCryptoConstants#KEY_REF_HEADER} from the record once read, to avoid sending it twice.
+ * The Kafka Producer serializes the value before the headers are made read-only and appended to the batch,
+ * which is not the case of producer interceptors, called before serialization.
+ * </p>
+ *
  * <p>If the result of encryption is null, then the result of serialization will be null.</p>
  *
  * <p>If no key reference was found, the result of serialization will be directly the output of the underlying Serializer.</p>
@@ -64,6 +82,9 @@ public class CryptoSerializer<T> implements Serializer<T> {
     private final Serializer<? super T> rawSerializer;
     private final Encryptor encryptor;
     private final ThreadLocal<byte[]> keyRefHolder;
+    private final CompressionCodec compressionCodec;
+    private final int compressionThreshold;
+    private final boolean stripKeyRefHeader;
 
     /**
      * @param rawSerializer Serializer to serialize data before encryption
@@ -71,9 +92,37 @@ public class CryptoSerializer<T> implements Serializer<T> {
      * @param keyRefHolder  {@link ThreadLocal} used to communicate the key reference when using Kafka Stream (unused for regular Kafka Producer)
      */
     public CryptoSerializer(Serializer<? super T> rawSerializer, Encryptor encryptor, ThreadLocal<byte[]> keyRefHolder) {
+        this(rawSerializer, encryptor, keyRefHolder, null, 0);
+    }
+
+    /**
+     * @param rawSerializer        Serializer to serialize data before encryption
+     * @param encryptor            {@link Encryptor} to encrypt data
+     * @param keyRefHolder         {@link ThreadLocal} used to communicate the key reference when using Kafka Stream (unused for regular Kafka Producer)
+     * @param compressionCodec     codec used to compress serialized data before encryption ({@code null} to disable compression)
+     * @param compressionThreshold serialized data smaller than this number of bytes is not compressed
+     */
+    public CryptoSerializer(Serializer<? super T> rawSerializer, Encryptor encryptor, ThreadLocal<byte[]> keyRefHolder,
+                            CompressionCodec compressionCodec, int compressionThreshold) {
+        this(rawSerializer, encryptor, keyRefHolder, compressionCodec, compressionThreshold, false);
+    }
+
+    /**
+     * @param rawSerializer        Serializer to serialize data before encryption
+     * @param encryptor            {@link Encryptor} to encrypt data
+     * @param keyRefHolder         {@link ThreadLocal} used to communicate the key reference when using Kafka Stream (unused for regular Kafka Producer)
+     * @param compressionCodec     codec used to compress serialized data before encryption ({@code null} to disable compression)
+     * @param compressionThreshold serialized data smaller than this number of bytes is not compressed
+     * @param stripKeyRefHeader    {@code true} to remove the header {@link KafkaCryptoConstants#KEY_REF_HEADER} from the record once read
+     */
+    public CryptoSerializer(Serializer<? super T> rawSerializer, Encryptor encryptor, ThreadLocal<byte[]> keyRefHolder,
+                            CompressionCodec compressionCodec, int compressionThreshold, boolean stripKeyRefHeader) {
         this.rawSerializer = rawSerializer;
         this.encryptor = encryptor;
         this.keyRefHolder = keyRefHolder;
+        this.compressionCodec = compressionCodec;
+        this.compressionThreshold = compressionThreshold;
+        this.stripKeyRefHeader = stripKeyRefHeader;
     }
 
 
@@ -93,6 +142,14 @@ public class CryptoSerializer<T> implements Serializer<T> {
             return null;
         }
         Header keyReferenceHeader = headers.lastHeader(KEY_REF_HEADER);
+        if (keyReferenceHeader != null && stripKeyRefHeader) {
+            try {
+                headers.remove(KEY_REF_HEADER);
+            }
+            catch (IllegalStateException e) {
+                log.debug("read-only headers, keyref header can not be removed");
+            }
+        }
         return encrypt(serializedData, keyReferenceHeader == null ? null : keyReferenceHeader.value());
     }
 
@@ -118,16 +175,41 @@ public class CryptoSerializer<T> implements Serializer<T> {
             log.debug("keyref header not defined or null, we will send data unencrypted");
             return serializedData;
         }
-        byte[] encryptedData = encryptor.encrypt(serializedData, keyref);
-        if (encryptedData == null) {
+        byte[] compressedData = compress(serializedData);
+        int algorithmId = encryptor.getAlgorithmId();
+        int flags = (compressedData != null ? EncryptedEnvelope.FLAG_COMPRESSED : 0)
+                | (encryptor.isChunked() ? EncryptedEnvelope.FLAG_CHUNKED : 0);
+        if (algorithmId > 0 || flags != 0) {
+            int headerLength = EncryptedEnvelope.version2HeaderLength(keyref.length, flags);
+            byte[] result = encryptor.encrypt(compressedData != null ? compressedData : serializedData, keyref, headerLength);
+            if (result == null) {
+                return null;
+            }
+            EncryptedEnvelope.writeVersion2Header(result, algorithmId, flags,
+                    compressedData != null ? compressionCodec.id() & 0xFF : -1, keyref);
+            return result;
+        }
+        byte[] result = encryptor.encrypt(serializedData, keyref, EncryptedEnvelope.version1HeaderLength(keyref.length));
+        if (result == null) {
+            return null;
+        }
+        EncryptedEnvelope.writeVersion1Header(result, keyref);
+        return result;
+    }
+
+    /**
+     * @return the compressed data, or {@code null} if compression is disabled or not worth it
+     */
+    private byte[] compress(byte[] serializedData) {
+        if (compressionCodec == null || serializedData.length < compressionThreshold) {
+            return null;
+        }
+        byte[] compressedData = compressionCodec.compress(serializedData);
+        if (compressedData.length >= serializedData.length) {
+            log.debug("compressed data is not smaller than serialized data, compression skipped");
             return null;
         }
-        return ByteBuffer.allocate(ENCRYPTED_PREFIX.length + Integer.BYTES + keyref.length + encryptedData.length)
-                .put(ENCRYPTED_PREFIX)
-                .putInt(keyref.length)
-                .put(keyref)
-                .put(encryptedData)
-                .array();
+        return compressedData;
     }
 
 
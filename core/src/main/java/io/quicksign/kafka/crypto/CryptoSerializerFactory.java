@@ -21,16 +21,31 @@ package io.quicksign.kafka.crypto;
 
 import org.apache.kafka.common.serialization.Serializer;
 
+import io.quicksign.kafka.crypto.compression.CompressionCodec;
+
 public class CryptoSerializerFactory {
 
     private final Encryptor encryptor;
+    private final CompressionCodec compressionCodec;
+    private final int compressionThreshold;
 
     public CryptoSerializerFactory(Encryptor encryptor) {
+        this(encryptor, null, 0);
+    }
+
+    /**
+     * @param encryptor            used for encryption
+     * @param compressionCodec     codec used to compress data before encryption ({@code null} to disable compression)
+     * @param compressionThreshold data smaller than this number of bytes is not compressed
+     */
+    public CryptoSerializerFactory(Encryptor encryptor, CompressionCodec compressionCodec, int compressionThreshold) {
 
         this.encryptor = encryptor;
+        this.compressionCodec = compressionCodec;
+        this.compressionThreshold = compressionThreshold;
     }
 
     public <T> CryptoSerializer<T> buildFrom(Serializer<T> rawSerializer) {
-        return new CryptoSerializer<>(rawSerializer, encryptor, null);
+        return new CryptoSerializer<>(rawSerializer, encryptor, null, compressionCodec, compressionThreshold);
     }
 }
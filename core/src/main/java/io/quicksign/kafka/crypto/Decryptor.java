@@ -19,6 +19,10 @@
  */
 package io.quicksign.kafka.crypto;
 
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 /**
  * Interface for decryption. It encapsulates the retriaval of the decryption key using the key reference
  * and the decryption of the data
@@ -34,4 +38,58 @@ public interface Decryptor {
      * @return the decrypted value or {@code null} if the key cannot be retrieved or if decryption fails
      */
     byte[] decrypt(byte[] data, byte[] keyRef);
+
+    /**
+     * Decrypt the {@code length} bytes of {@code data} starting at {@code offset}.
+     * It will return null if the key can not be retrieve or if decryption fails.
+     * <p>
+     * The default implementation copies the value and delegates to {@link #decrypt(byte[], byte[])}.
+     *
+     * @param data   array containing the value to be decrypted
+     * @param offset offset of the value in data
+     * @param length length of the value
+     * @param keyRef reference to the decryption key
+     * @return the decrypted value or {@code null} if the key cannot be retrieved or if decryption fails
+     */
+    default byte[] decrypt(byte[] data, int offset, int length, byte[] keyRef) {
+        if (offset == 0 && length == data.length) {
+            return decrypt(data, keyRef);
+        }
+        return decrypt(Arrays.copyOfRange(data, offset, offset + length), keyRef);
+    }
+
+    /**
+     * Decrypt the {@code length} bytes of {@code data} starting at {@code offset} with the algorithm
+     * identified in the record.
+     * It will return null if the key can not be retrieve or if decryption fails.
+     * <p>
+     * The default implementation ignores the algorithm id and delegates to {@link #decrypt(byte[], int, int, byte[])}.
+     *
+     * @param data        array containing the value to be decrypted
+     * @param offset      offset of the value in data
+     * @param length      length of the value
+     * @param keyRef      reference to the decryption key
+     * @param algorithmId id of the algorithm or {@link EncryptedEnvelope#NO_ALGORITHM_ID} if not identified
+     * @return the decrypted value or {@code null} if the key cannot be retrieved or if decryption fails
+     */
+    default byte[] decrypt(byte[] data, int offset, int length, byte[] keyRef, int algorithmId) {
+        return decrypt(data, offset, length, keyRef);
+    }
+
+    /**
+     * Decrypt the data like {@link #decrypt(byte[], int, int, byte[], int)}, without waiting for the key
+     * to be retrieved when the implementation supports it.
+     * <p>
+     * The default implementation runs {@link #decrypt(byte[], int, int, byte[], int)} on the calling thread.
+     *
+     * @param data        array containing the value to be decrypted
+     * @param offset      offset of the value in data
+     * @param length      length of the value
+     * @param keyRef      reference to the decryption key
+     * @param algorithmId id of the algorithm or {@link EncryptedEnvelope#NO_ALGORITHM_ID} if not identified
+     * @return a stage completed with the decrypted value or {@code null} if the key cannot be retrieved or if decryption fails
+     */
+    default CompletionStage<byte[]> decryptAsync(byte[] data, int offset, int length, byte[] keyRef, int algorithmId) {
+        return CompletableFuture.supplyAsync(() -> decrypt(data, offset, length, keyRef, algorithmId), Runnable::run);
+    }
 }
@@ -0,0 +1,241 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto;
+
+import static io.quicksign.kafka.crypto.KafkaCryptoConstants.ENCRYPTED_PREFIX;
+import static io.quicksign.kafka.crypto.KafkaCryptoConstants.VERSIONED_ENVELOPE;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.utils.ByteUtils;
+
+import io.quicksign.kafka.crypto.utils.ArrayUtils;
+
+/**
+ * <p>Envelope of the data serialized by {@link CryptoSerializer}. Two formats can be read:
+ * <ul>
+ * <li>version 1: <pre>magic_bytes(6 bytes)|keyref.length(4 bytes)|keyref|encrypted_data</pre></li>
+ * <li>version 2: <pre>magic_bytes(6 bytes)|0x82|algorithm_id(1 byte)|flags(1 byte)|keyref.length(zigzag varint, as in Kafka records)|keyref|[codec_id(1 byte)]|encrypted_data</pre>
+ * where the codec id is present only if the flag {@link #FLAG_COMPRESSED} is set.</li>
+ * </ul>
+ * The byte following the magic bytes can not be mistaken, as the key reference length of version 1 is never negative.
+ * </p>
+ *
+ * <p>The algorithm id {@code 0} means that the algorithm is not identified, the default algorithm of the
+ * {@link Decryptor} is then used, as for version 1.</p>
+ */
+public final class EncryptedEnvelope {
+
+    /**
+     * version of the envelope without version byte
+     */
+    public static final int VERSION_1 = 1;
+
+    /**
+     * version of the envelope {@link KafkaCryptoConstants#VERSIONED_ENVELOPE}
+     */
+    public static final int VERSION_2 = VERSIONED_ENVELOPE & 0xFF;
+
+    /**
+     * algorithm id of envelopes not identifying the algorithm
+     */
+    public static final int NO_ALGORITHM_ID = -1;
+
+    /**
+     * flag set when the data has been compressed before encryption
+     */
+    public static final int FLAG_COMPRESSED = 0x01;
+
+    /**
+     * flag set when the data has been encrypted by segments
+     */
+    public static final int FLAG_CHUNKED = 0x02;
+
+    private static final int KNOWN_FLAGS = FLAG_COMPRESSED | FLAG_CHUNKED;
+
+    private final int version;
+    private final int algorithmId;
+    private final int flags;
+    private final int compressionCodecId;
+    private final byte[] keyRef;
+    private final int payloadOffset;
+    private final int payloadLength;
+
+    private EncryptedEnvelope(int version, int algorithmId, int flags, int compressionCodecId, byte[] keyRef,
+                              int payloadOffset, int payloadLength) {
+        this.version = version;
+        this.algorithmId = algorithmId;
+        this.flags = flags;
+        this.compressionCodecId = compressionCodecId;
+        this.keyRef = keyRef;
+        this.payloadOffset = payloadOffset;
+        this.payloadLength = payloadLength;
+    }
+
+    /**
+     * @param data serialized data
+     * @return the envelope or {@code null} if the data does not start with {@link KafkaCryptoConstants#ENCRYPTED_PREFIX}
+     * @throws SerializationException if the envelope is malformed
+     */
+    public static EncryptedEnvelope parse(byte[] data) {
+        if (data == null || !ArrayUtils.startWith(data, ENCRYPTED_PREFIX)) {
+            return null;
+        }
+        try {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(data, ENCRYPTED_PREFIX.length, data.length - ENCRYPTED_PREFIX.length);
+            byte marker = byteBuffer.get(ENCRYPTED_PREFIX.length);
+            if (marker == VERSIONED_ENVELOPE) {
+                byteBuffer.get();
+                int algorithmId = byteBuffer.get() & 0xFF;
+                int flags = byteBuffer.get() & 0xFF;
+                if ((flags & ~KNOWN_FLAGS) != 0) {
+                    throw new SerializationException("unknown envelope flags " + flags);
+                }
+                byte[] keyRef = readKeyRef(byteBuffer, ByteUtils.readVarint(byteBuffer));
+                int codecId = (flags & FLAG_COMPRESSED) != 0 ? byteBuffer.get() & 0xFF : -1;
+                return new EncryptedEnvelope(VERSION_2, algorithmId == 0 ? NO_ALGORITHM_ID : algorithmId, flags, codecId,
+                        keyRef, byteBuffer.position(), byteBuffer.remaining());
+            }
+            byte[] keyRef = readKeyRef(byteBuffer, byteBuffer.getInt());
+            return new EncryptedEnvelope(VERSION_1, NO_ALGORITHM_ID, 0, -1,
+                    keyRef, byteBuffer.position(), byteBuffer.remaining());
+        }
+        catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new SerializationException("malformed encrypted envelope", e);
+        }
+    }
+
+    private static byte[] readKeyRef(ByteBuffer byteBuffer, int keyRefLength) {
+        if (keyRefLength < 0 || keyRefLength > byteBuffer.remaining()) {
+            throw new IllegalArgumentException("invalid keyref length " + keyRefLength);
+        }
+        if (keyRefLength == 0) {
+            return null;
+        }
+        byte[] keyRef = new byte[keyRefLength];
+        byteBuffer.get(keyRef);
+        return keyRef;
+    }
+
+    /**
+     * @param keyRefLength length of the key reference
+     * @return length of the version 1 header
+     */
+    static int version1HeaderLength(int keyRefLength) {
+        return ENCRYPTED_PREFIX.length + Integer.BYTES + keyRefLength;
+    }
+
+    /**
+     * @param output array starting with {@link #version1HeaderLength(int)} free bytes
+     * @param keyRef the key reference
+     */
+    static void writeVersion1Header(byte[] output, byte[] keyRef) {
+        ByteBuffer.wrap(output)
+                .put(ENCRYPTED_PREFIX)
+                .putInt(keyRef.length)
+                .put(keyRef);
+    }
+
+    /**
+     * @param keyRefLength length of the key reference
+     * @param flags        flags of the envelope
+     * @return length of the version 2 header
+     */
+    static int version2HeaderLength(int keyRefLength, int flags) {
+        return ENCRYPTED_PREFIX.length + 3 + ByteUtils.sizeOfVarint(keyRefLength) + keyRefLength
+                + ((flags & FLAG_COMPRESSED) != 0 ? 1 : 0);
+    }
+
+    /**
+     * @param output             array starting with {@link #version2HeaderLength(int, int)} free bytes
+     * @param algorithmId        id of the algorithm, or {@link #NO_ALGORITHM_ID}
+     * @param flags              flags of the envelope
+     * @param compressionCodecId id of the compression codec, written only if {@link #FLAG_COMPRESSED} is set
+     * @param keyRef             the key reference
+     */
+    static void writeVersion2Header(byte[] output, int algorithmId, int flags, int compressionCodecId, byte[] keyRef) {
+        ByteBuffer byteBuffer = ByteBuffer.wrap(output)
+                .put(ENCRYPTED_PREFIX)
+                .put(VERSIONED_ENVELOPE)
+                .put((byte) (algorithmId < 0 ? 0 : algorithmId))
+                .put((byte) flags);
+        ByteUtils.writeVarint(keyRef.length, byteBuffer);
+        byteBuffer.put(keyRef);
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            byteBuffer.put((byte) compressionCodecId);
+        }
+    }
+
+    /**
+     * @return {@link #VERSION_1} or {@link #VERSION_2}
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the id of the algorithm or {@link #NO_ALGORITHM_ID} if the envelope does not identify it
+     */
+    public int getAlgorithmId() {
+        return algorithmId;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean isCompressed() {
+        return (flags & FLAG_COMPRESSED) != 0;
+    }
+
+    public boolean isChunked() {
+        return (flags & FLAG_CHUNKED) != 0;
+    }
+
+    /**
+     * @return the id of the compression codec or {@code -1} if the data is not compressed
+     */
+    public int getCompressionCodecId() {
+        return compressionCodecId;
+    }
+
+    /**
+     * @return the key reference or {@code null} if the data is not encrypted
+     */
+    public byte[] getKeyRef() {
+        return keyRef;
+    }
+
+    /**
+     * @return the offset of the (encrypted) payload in the serialized data
+     */
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    /**
+     * @return the length of the (encrypted) payload
+     */
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+}
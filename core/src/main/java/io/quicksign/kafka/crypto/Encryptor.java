@@ -19,6 +19,9 @@
  */
 package io.quicksign.kafka.crypto;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 /**
  * Interface for encryption. It encapsulates the retriaval of the encryption key using the key reference
  * and the encryption of the data
@@ -35,4 +38,59 @@ public interface Encryptor {
      * @return the encrypted value or {@code null} if the encryption fails
      */
     byte[] encrypt(byte[] value, byte[] keyRef);
+
+    /**
+     * Encrypt the data, leaving {@code headerLength} free bytes at the beginning of the returned array.
+     * It allows the caller to frame the encrypted value without copying it into another array.
+     * <p>
+     * The default implementation delegates to {@link #encrypt(byte[], byte[])} and copies the result.
+     *
+     * @param value        value to be encrypted
+     * @param keyRef       reference of the key
+     * @param headerLength number of bytes to reserve at the beginning of the result
+     * @return an array of {@code headerLength} free bytes followed by the encrypted value
+     * or {@code null} if the encryption fails
+     */
+    default byte[] encrypt(byte[] value, byte[] keyRef, int headerLength) {
+        byte[] encryptedData = encrypt(value, keyRef);
+        if (encryptedData == null) {
+            return null;
+        }
+        byte[] result = new byte[headerLength + encryptedData.length];
+        System.arraycopy(encryptedData, 0, result, headerLength, encryptedData.length);
+        return result;
+    }
+
+    /**
+     * Encrypt the data like {@link #encrypt(byte[], byte[], int)}, without waiting for the key to be retrieved
+     * when the implementation supports it.
+     * <p>
+     * The default implementation runs {@link #encrypt(byte[], byte[], int)} on the calling thread.
+     *
+     * @param value        value to be encrypted
+     * @param keyRef       reference of the key
+     * @param headerLength number of bytes to reserve at the beginning of the result
+     * @return a stage completed with an array of {@code headerLength} free bytes followed by the encrypted value
+     * or {@code null} if the encryption fails
+     */
+    default CompletionStage<byte[]> encryptAsync(byte[] value, byte[] keyRef, int headerLength) {
+        return CompletableFuture.supplyAsync(() -> encrypt(value, keyRef, headerLength), Runnable::run);
+    }
+
+    /**
+     * The id of the algorithm is written in the record so that the {@link Decryptor} can select the algorithm
+     * used to decrypt it.
+     *
+     * @return the id of the encryption algorithm or {@link EncryptedEnvelope#NO_ALGORITHM_ID} if not identified
+     */
+    default int getAlgorithmId() {
+        return EncryptedEnvelope.NO_ALGORITHM_ID;
+    }
+
+    /**
+     * @return {@code true} if the value is encrypted by segments
+     */
+    default boolean isChunked() {
+        return false;
+    }
 }
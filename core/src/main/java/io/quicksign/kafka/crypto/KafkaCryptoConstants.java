@@ -31,6 +31,14 @@ public class KafkaCryptoConstants {
      */
     public static final byte[] ENCRYPTED_PREFIX = {0x2B, 0x45, 0x2B, 0x1B, 0x2B, 0x46};
 
+    /**
+     * envelope version following the {@link #ENCRYPTED_PREFIX} of messages identifying their algorithm and features.
+     * It can not be mistaken with the first byte of the key reference length of version 1 messages, which is never negative.
+     *
+     * @see EncryptedEnvelope
+     */
+    public static final byte VERSIONED_ENVELOPE = (byte) 0x82;
+
     private KafkaCryptoConstants() {
     }
 }
@@ -0,0 +1,41 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto;
+
+/**
+ * How {@link CryptoDeserializer} exposes the key reference of a record in the header {@link KafkaCryptoConstants#KEY_REF_HEADER}
+ */
+public enum KeyRefHeaderMode {
+
+    /**
+     * the header is added to every record, with a {@code null} value for records that are not encrypted
+     */
+    ALWAYS,
+
+    /**
+     * the header is added only to encrypted records
+     */
+    ENCRYPTED_ONLY,
+
+    /**
+     * the header is never added
+     */
+    NONE
+}
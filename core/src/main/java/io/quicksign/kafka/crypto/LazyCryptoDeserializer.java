@@ -0,0 +1,73 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto;
+
+import java.util.Map;
+
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.Deserializer;
+
+/**
+ * <p>Deserializer deferring the decryption and deserialization of values until they are accessed,
+ * see {@link LazyDecrypted}.</p>
+ *
+ * <p>The value is decrypted and deserialized by the given {@link CryptoDeserializer}, which adds the keyref header
+ * to the record headers at that time, if configured to do so.</p>
+ *
+ * @param <T> type of the deserialized values
+ */
+public class LazyCryptoDeserializer<T> implements Deserializer<LazyDecrypted<T>> {
+
+    private final CryptoDeserializer<T> cryptoDeserializer;
+
+    /**
+     * @param cryptoDeserializer deserializer used on first access to the values
+     */
+    public LazyCryptoDeserializer(CryptoDeserializer<T> cryptoDeserializer) {
+        this.cryptoDeserializer = cryptoDeserializer;
+    }
+
+    @Override
+    public void configure(Map<String, ?> configs, boolean isKey) {
+        cryptoDeserializer.configure(configs, isKey);
+    }
+
+    /**
+     * @return the lazily decrypted value or {@code null} if data is {@code null}
+     */
+    @Override
+    public LazyDecrypted<T> deserialize(String topic, Headers headers, byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        return new LazyDecrypted<>(cryptoDeserializer, topic, headers, data);
+    }
+
+    @Override
+    public LazyDecrypted<T> deserialize(String topic, byte[] data) {
+        return deserialize(topic, new RecordHeaders(), data);
+    }
+
+    @Override
+    public void close() {
+        cryptoDeserializer.close();
+    }
+}
@@ -0,0 +1,94 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto;
+
+import org.apache.kafka.common.header.Headers;
+
+/**
+ * <p>Value of a record decrypted and deserialized on first access only, returned by {@link LazyCryptoDeserializer}.
+ * Consumers filtering records on their key or headers do not pay the key retrieval and the decryption of the
+ * values they drop.</p>
+ *
+ * <p>The result of {@link #get()} is memoized and the raw value is then released.
+ * As decryption is deferred, decryption errors are thrown by {@link #get()} instead of the poll.</p>
+ *
+ * @param <T> type of the deserialized value
+ */
+public class LazyDecrypted<T> {
+
+    private final CryptoDeserializer<T> cryptoDeserializer;
+    private final String topic;
+    private final Headers headers;
+    private byte[] data;
+    private byte[] keyRef;
+    private boolean keyRefRead;
+    private boolean decrypted;
+    private T value;
+
+    LazyDecrypted(CryptoDeserializer<T> cryptoDeserializer, String topic, Headers headers, byte[] data) {
+        this.cryptoDeserializer = cryptoDeserializer;
+        this.topic = topic;
+        this.headers = headers;
+        this.data = data;
+    }
+
+    /**
+     * @return the key reference of the record, or {@code null} if the value is not encrypted.
+     * It is read from the value without any cryptographic work.
+     */
+    public synchronized byte[] keyRef() {
+        if (!keyRefRead) {
+            EncryptedEnvelope envelope = EncryptedEnvelope.parse(data);
+            keyRef = envelope == null ? null : envelope.getKeyRef();
+            keyRefRead = true;
+        }
+        return keyRef;
+    }
+
+    /**
+     * @return {@code true} if the value is encrypted
+     */
+    public synchronized boolean isEncrypted() {
+        return keyRef() != null;
+    }
+
+    /**
+     * @return {@code true} if the value has already been decrypted and deserialized
+     */
+    public synchronized boolean isDecrypted() {
+        return decrypted;
+    }
+
+    /**
+     * Decrypt and deserialize the value on first call, then return the memoized value.
+     *
+     * @return the deserialized value, {@code null} if the decryption fails (see {@link CryptoDeserializer})
+     */
+    public synchronized T get() {
+        if (!decrypted) {
+            // the key reference is read from the raw value, which is released below
+            keyRef();
+            value = cryptoDeserializer.deserialize(topic, headers, data);
+            decrypted = true;
+            data = null;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,63 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.SerializationException;
+
+/**
+ * Thrown by {@link ParallelDecryptionStage#process(ConsumerRecords)} when records can not be decrypted or deserialized.
+ * <p>
+ * It carries the records processed successfully: all the records of the partitions without failure, and the records
+ * preceding the first failure of the other partitions. The consumer can seek to the offsets of the failures to skip
+ * or retry the failed records.
+ */
+public class ParallelDecryptionException extends SerializationException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient ConsumerRecords<?, ?> processedRecords;
+    private final transient Map<TopicPartition, Long> failedOffsets;
+
+    ParallelDecryptionException(Throwable cause, ConsumerRecords<?, ?> processedRecords,
+                                Map<TopicPartition, Long> failedOffsets) {
+        super("unable to decrypt records at offsets " + failedOffsets, cause);
+        this.processedRecords = processedRecords;
+        this.failedOffsets = Collections.unmodifiableMap(failedOffsets);
+    }
+
+    /**
+     * @return the records decrypted and deserialized, in the order of each partition
+     */
+    public ConsumerRecords<?, ?> getProcessedRecords() {
+        return processedRecords;
+    }
+
+    /**
+     * @return the offset of the first record that failed, for each partition with a failure
+     */
+    public Map<TopicPartition, Long> getFailedOffsets() {
+        return failedOffsets;
+    }
+}
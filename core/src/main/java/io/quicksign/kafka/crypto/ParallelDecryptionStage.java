@@ -0,0 +1,153 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+
+import io.quicksign.kafka.crypto.CryptoDeserializer.DecryptedDataWithKeyRef;
+
+/**
+ * <p>Decryption of the records returned by a poll across a {@link ForkJoinPool}, to use the cores left idle
+ * by the single poll thread of the Kafka Consumer.</p>
+ *
+ * <p>The consumer must use a {@link org.apache.kafka.common.serialization.ByteArrayDeserializer} for values,
+ * so that the records are decrypted by this stage instead of the poll thread:
+ * <pre>{@code
+ * ConsumerRecords<K, V> records = stage.process(consumer.poll(timeout));
+ * }</pre>
+ * Values are decrypted (and decompressed) in parallel by the pool, then deserialized by the underlying Deserializer
+ * of the {@link CryptoDeserializer} on the calling thread, in the order of the records. The order of the records
+ * within each partition is kept.
+ * </p>
+ *
+ * <p>To bound the memory used, records are submitted for decryption only while the size of the values
+ * decrypted but not yet deserialized stays below the maximum in-flight bytes (a single larger record is
+ * always accepted). A value is counted with its encrypted size until it is decrypted, then with its decrypted
+ * size, which may be much larger for compressed records.</p>
+ *
+ * <p>A record that can not be decrypted or deserialized does not fail the other partitions: the records processed
+ * are returned by a {@link ParallelDecryptionException}, with the offsets of the failed records.</p>
+ *
+ * @param <V> type of the deserialized values
+ */
+public class ParallelDecryptionStage<V> {
+
+    private final CryptoDeserializer<V> cryptoDeserializer;
+    private final ForkJoinPool pool;
+    private final long maxInFlightBytes;
+
+    /**
+     * @param cryptoDeserializer deserializer used to decrypt and deserialize the values
+     * @param pool               pool used for decryption
+     * @param maxInFlightBytes   maximum size of the values submitted for decryption and not yet deserialized,
+     *                           counted with their decrypted size once decrypted
+     */
+    public ParallelDecryptionStage(CryptoDeserializer<V> cryptoDeserializer, ForkJoinPool pool, long maxInFlightBytes) {
+        if (maxInFlightBytes < 1) {
+            throw new IllegalArgumentException("maxInFlightBytes must be positive");
+        }
+        this.cryptoDeserializer = cryptoDeserializer;
+        this.pool = pool;
+        this.maxInFlightBytes = maxInFlightBytes;
+    }
+
+    /**
+     * @param records records polled with a {@link org.apache.kafka.common.serialization.ByteArrayDeserializer} for values
+     * @param <K>     type of the keys
+     * @return the records with decrypted and deserialized values
+     * @throws ParallelDecryptionException if records can not be decrypted or deserialized
+     */
+    public <K> ConsumerRecords<K, V> process(ConsumerRecords<K, byte[]> records) {
+        if (records.isEmpty()) {
+            return ConsumerRecords.empty();
+        }
+        List<ConsumerRecord<K, byte[]>> pending = new ArrayList<>(records.count());
+        records.forEach(pending::add);
+
+        Map<TopicPartition, List<ConsumerRecord<K, V>>> result = new HashMap<>();
+        Map<TopicPartition, Long> failedOffsets = new HashMap<>();
+        RuntimeException firstFailure = null;
+        Deque<ForkJoinTask<DecryptedDataWithKeyRef>> inFlight = new ArrayDeque<>();
+        // updated by the pool when a value is decrypted
+        AtomicLong inFlightBytes = new AtomicLong();
+        int submitted = 0;
+        int completed = 0;
+        while (completed < pending.size()) {
+            while (submitted < pending.size()
+                    && (inFlight.isEmpty() || inFlightBytes.get() + size(pending.get(submitted)) <= maxInFlightBytes)) {
+                byte[] value = pending.get(submitted).value();
+                long encryptedSize = size(pending.get(submitted));
+                inFlightBytes.addAndGet(encryptedSize);
+                inFlight.addLast(pool.submit(() -> {
+                    if (value == null) {
+                        return null;
+                    }
+                    DecryptedDataWithKeyRef decrypted = cryptoDeserializer.decrypt(value);
+                    inFlightBytes.addAndGet(decrypted.length() - encryptedSize);
+                    return decrypted;
+                }));
+                submitted++;
+            }
+            ConsumerRecord<K, byte[]> record = pending.get(completed);
+            TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+            DecryptedDataWithKeyRef decrypted = null;
+            try {
+                decrypted = inFlight.removeFirst().join();
+                if (!failedOffsets.containsKey(partition)) {
+                    V value = decrypted == null
+                            ? null
+                            : cryptoDeserializer.deserializeDecrypted(record.topic(), record.headers(), decrypted);
+                    result.computeIfAbsent(partition, tp -> new ArrayList<>())
+                            .add(new ConsumerRecord<>(record.topic(), record.partition(), record.offset(),
+                                    record.timestamp(), record.timestampType(), null,
+                                    record.serializedKeySize(), record.serializedValueSize(),
+                                    record.key(), value, record.headers(), record.leaderEpoch()));
+                }
+            }
+            catch (RuntimeException e) {
+                // the following records of the partition are dropped to keep its order
+                failedOffsets.putIfAbsent(partition, record.offset());
+                firstFailure = firstFailure == null ? e : firstFailure;
+            }
+            inFlightBytes.addAndGet(-(decrypted == null ? size(record) : decrypted.length()));
+            completed++;
+        }
+        if (firstFailure != null) {
+            throw new ParallelDecryptionException(firstFailure, new ConsumerRecords<>(result), failedOffsets);
+        }
+        return new ConsumerRecords<>(result);
+    }
+
+    private static long size(ConsumerRecord<?, byte[]> record) {
+        return record.value() == null ? 0 : record.value().length;
+    }
+}
@@ -0,0 +1,47 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto;
+
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+
+/**
+ * A {@link Deserializer} able to deserialize a slice of an array.
+ * <p>
+ * When the underlying deserializer of a {@link CryptoDeserializer} implements this interface,
+ * clear data embedded in an envelope is deserialized in place instead of being copied into a new array.
+ *
+ * @param <T>
+ * @see CryptoDeserializer
+ */
+public interface SliceDeserializer<T> extends Deserializer<T> {
+
+    /**
+     * Deserialize the {@code length} bytes of {@code data} starting at {@code offset}
+     *
+     * @param topic
+     * @param headers
+     * @param data    array containing the serialized value
+     * @param offset  offset of the serialized value in data
+     * @param length  length of the serialized value
+     * @return the deserialized value
+     */
+    T deserialize(String topic, Headers headers, byte[] data, int offset, int length);
+}
@@ -0,0 +1,40 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Interface for the encryption of large values as a stream, with a memory bounded by the segment size
+ * of the underlying algorithm instead of the size of the value.
+ *
+ * @see io.quicksign.kafka.crypto.encryption.StreamingAesGcmCryptoAlgorithm
+ */
+public interface StreamingEncryptor {
+
+    /**
+     * @param out    destination of the encrypted value, closed with the returned stream
+     * @param keyRef reference of the key
+     * @return a stream encrypting the data written into it, which must be closed to complete the encrypted value
+     * @throws IOException if the key associated to the key reference can not be found or the encryption fails
+     */
+    OutputStream encryptingStream(OutputStream out, byte[] keyRef) throws IOException;
+}
@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.cache;
+
+/**
+ * Snapshot of the statistics of a key cache
+ *
+ * @see CachingKeyProvider#stats()
+ */
+public class CacheStats {
+
+    private final long hitCount;
+    private final long negativeHitCount;
+    private final long missCount;
+    private final long loadSuccessCount;
+    private final long loadFailureCount;
+    private final long totalLoadTimeNanos;
+    private final long refreshCount;
+    private final long evictionCount;
+
+    public CacheStats(long hitCount, long negativeHitCount, long missCount, long loadSuccessCount,
+                      long loadFailureCount, long totalLoadTimeNanos, long refreshCount, long evictionCount) {
+        this.hitCount = hitCount;
+        this.negativeHitCount = negativeHitCount;
+        this.missCount = missCount;
+        this.loadSuccessCount = loadSuccessCount;
+        this.loadFailureCount = loadFailureCount;
+        this.totalLoadTimeNanos = totalLoadTimeNanos;
+        this.refreshCount = refreshCount;
+        this.evictionCount = evictionCount;
+    }
+
+    /**
+     * @return number of lookups served by a cached key
+     */
+    public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return number of lookups served by a cached {@code Optional.empty()}
+     */
+    public long getNegativeHitCount() {
+        return negativeHitCount;
+    }
+
+    /**
+     * @return number of lookups that were not served by the cache
+     */
+    public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return number of lookups on the underlying KeyProvider that succeeded (including refreshes)
+     */
+    public long getLoadSuccessCount() {
+        return loadSuccessCount;
+    }
+
+    /**
+     * @return number of lookups on the underlying KeyProvider that threw an exception (including refreshes)
+     */
+    public long getLoadFailureCount() {
+        return loadFailureCount;
+    }
+
+    /**
+     * @return total time spent in the underlying KeyProvider, in nanoseconds
+     */
+    public long getTotalLoadTimeNanos() {
+        return totalLoadTimeNanos;
+    }
+
+    /**
+     * @return number of refresh-ahead lookups on the underlying KeyProvider
+     */
+    public long getRefreshCount() {
+        return refreshCount;
+    }
+
+    /**
+     * @return number of entries evicted because of the size or memory bounds
+     */
+    public long getEvictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * @return number of lookups
+     */
+    public long getRequestCount() {
+        return hitCount + negativeHitCount + missCount;
+    }
+
+    /**
+     * @return ratio of lookups served by the cache (positive and negative), {@code 1.0} when there was no lookup
+     */
+    public double getHitRatio() {
+        long requestCount = getRequestCount();
+        return requestCount == 0 ? 1.0 : (double) (hitCount + negativeHitCount) / requestCount;
+    }
+
+    /**
+     * @return average time of a lookup on the underlying KeyProvider, in nanoseconds
+     */
+    public double getAverageLoadPenaltyNanos() {
+        long loadCount = loadSuccessCount + loadFailureCount;
+        return loadCount == 0 ? 0.0 : (double) totalLoadTimeNanos / loadCount;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "hitCount=" + hitCount +
+                ", negativeHitCount=" + negativeHitCount +
+                ", missCount=" + missCount +
+                ", loadSuccessCount=" + loadSuccessCount +
+                ", loadFailureCount=" + loadFailureCount +
+                ", totalLoadTimeNanos=" + totalLoadTimeNanos +
+                ", refreshCount=" + refreshCount +
+                ", evictionCount=" + evictionCount +
+                '}';
+    }
+}
@@ -0,0 +1,645 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.cache;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.quicksign.kafka.crypto.encryption.AsyncKeyProvider;
+import io.quicksign.kafka.crypto.encryption.KeyHandle;
+import io.quicksign.kafka.crypto.encryption.KeyHandleProvider;
+import io.quicksign.kafka.crypto.encryption.KeyProvider;
+
+/**
+ * <p>{@link KeyProvider} decorator caching the keys returned by another {@link KeyProvider}.</p>
+ *
+ * <ul>
+ * <li>Entries are keyed by the content of the key reference.</li>
+ * <li>The cache is bounded by a maximum number of entries and by a memory budget (estimated size of
+ * key references and keys). When a bound is exceeded, the oldest entries are evicted first.</li>
+ * <li>Entries expire after a configurable time since they were loaded. With refresh-ahead, an entry older than
+ * the refresh delay is still served while it is reloaded in the background.</li>
+ * <li>Loading is single-flight: concurrent lookups of the same missing key reference, and the refresh of that key,
+ * wait for a single lookup on the underlying {@link KeyProvider}, so a key rotation does not turn into a thundering
+ * herd.</li>
+ * <li>{@code Optional.empty()} results are cached separately, with their own expiration delay.</li>
+ * <li>Exceptions thrown by the underlying {@link KeyProvider} are never cached.</li>
+ * <li>A {@link KeyHandle} is built once per loaded key, and returned by {@link #getKeyHandle(byte[])} so that
+ * encryptors and decryptors do not build a key object per record.</li>
+ * <li>Unless a refresh executor is given, refresh-ahead runs on a dedicated daemon thread, stopped by
+ * {@link #close()}.</li>
+ * </ul>
+ *
+ * <pre>{@code
+ *  CachingKeyProvider keyProvider = CachingKeyProvider.builder(new RepositoryBasedKeyProvider(keyRepository, keyNameObfuscator))
+ *          .maximumSize(10_000)
+ *          .expireAfterWrite(Duration.ofHours(1))
+ *          .refreshAfterWrite(Duration.ofMinutes(50))
+ *          .negativeExpireAfterWrite(Duration.ofSeconds(30))
+ *          .build();
+ * }</pre>
+ */
+public class CachingKeyProvider implements KeyProvider, KeyHandleProvider, Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(CachingKeyProvider.class);
+
+    /**
+     * estimated memory overhead of an entry, including its key handle, on top of the size of the key reference and of the key
+     */
+    static final int ENTRY_OVERHEAD = 256;
+
+    private static final int MIN_STALE_NODES_BEFORE_CLEANUP = 1024;
+
+    private final KeyProvider delegate;
+    private final long maximumSize;
+    private final long maximumWeight;
+    private final long expireAfterWriteNanos;
+    private final long refreshAfterWriteNanos;
+    private final long negativeExpireAfterWriteNanos;
+    private final Executor refreshExecutor;
+    private final ExecutorService ownRefreshExecutor;
+    private final LongSupplier ticker;
+    private final String keyAlgorithm;
+
+    private final ConcurrentMap<KeyRefKey, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<KeyRefKey, CompletableFuture<Optional<byte[]>>> loadings = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger staleNodes = new AtomicInteger();
+    private final AtomicLong weight = new AtomicLong();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder negativeHitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder loadSuccessCount = new LongAdder();
+    private final LongAdder loadFailureCount = new LongAdder();
+    private final LongAdder totalLoadTimeNanos = new LongAdder();
+    private final LongAdder refreshCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    private volatile boolean closed;
+
+    private CachingKeyProvider(Builder builder) {
+        this.delegate = builder.delegate;
+        this.maximumSize = builder.maximumSize;
+        this.maximumWeight = builder.maximumWeight;
+        this.expireAfterWriteNanos = builder.expireAfterWrite.toNanos();
+        this.refreshAfterWriteNanos = builder.refreshAfterWrite == null ? 0L : builder.refreshAfterWrite.toNanos();
+        this.negativeExpireAfterWriteNanos = builder.negativeExpireAfterWrite.toNanos();
+        this.ticker = builder.ticker;
+        this.keyAlgorithm = builder.keyAlgorithm;
+        if (builder.refreshExecutor == null && refreshAfterWriteNanos > 0) {
+            this.ownRefreshExecutor = newRefreshExecutor();
+            this.refreshExecutor = ownRefreshExecutor;
+        }
+        else {
+            this.ownRefreshExecutor = null;
+            this.refreshExecutor = builder.refreshExecutor;
+        }
+    }
+
+    /**
+     * @param delegate the KeyProvider to cache
+     * @return a builder of CachingKeyProvider
+     */
+    public static Builder builder(KeyProvider delegate) {
+        return new Builder(delegate);
+    }
+
+    /**
+     * Retrieve the key from the cache, or from the underlying KeyProvider if it is not cached.
+     *
+     * @param keyRef the reference of the key to retrieve
+     * @return the actual key or {@code Optional.empty()} if the key cannot be found
+     */
+    @Override
+    public Optional<byte[]> getKey(byte[] keyRef) {
+        KeyRefKey key = KeyRefKey.lookup(keyRef);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            long now = ticker.getAsLong();
+            Loaded loaded = entry.loaded;
+            if (!isExpired(loaded, now)) {
+                if (loaded.value.isPresent()) {
+                    hitCount.increment();
+                    refreshIfNeeded(entry, loaded, now);
+                }
+                else {
+                    negativeHitCount.increment();
+                }
+                return loaded.value;
+            }
+        }
+        missCount.increment();
+        return load(key);
+    }
+
+    /**
+     * Retrieve the handle of the key from the cache, or load the key from the underlying KeyProvider
+     * if it is not cached. The same handle is returned as long as the key stays in the cache.
+     *
+     * @param keyRef the reference of the key to retrieve
+     * @return the handle of the key or {@code Optional.empty()} if the key cannot be found
+     */
+    @Override
+    public Optional<KeyHandle> getKeyHandle(byte[] keyRef) {
+        return handle(keyRef, getKey(keyRef));
+    }
+
+    /**
+     * Like {@link #getKeyHandle(byte[])}, loading a missing key without blocking if the underlying KeyProvider
+     * is an {@link AsyncKeyProvider}.
+     *
+     * @param keyRef the reference of the key to retrieve
+     * @return a stage completed with the handle of the key or {@code Optional.empty()} if the key cannot be found
+     */
+    @Override
+    public CompletionStage<Optional<KeyHandle>> getKeyHandleAsync(byte[] keyRef) {
+        if (delegate instanceof AsyncKeyProvider && !contains(keyRef)) {
+            missCount.increment();
+            return loadAsync(KeyRefKey.lookup(keyRef).stored(), (AsyncKeyProvider) delegate)
+                    .thenApply(value -> handle(keyRef, value));
+        }
+        return CompletableFuture.supplyAsync(() -> getKeyHandle(keyRef), Runnable::run);
+    }
+
+    private Optional<KeyHandle> handle(byte[] keyRef, Optional<byte[]> value) {
+        Entry entry = entries.get(KeyRefKey.lookup(keyRef));
+        Loaded loaded = entry == null ? null : entry.loaded;
+        if (loaded != null && loaded.value == value) {
+            return loaded.handle;
+        }
+        // not cached, or reloaded concurrently
+        return value.map(key -> KeyHandle.of(key, keyAlgorithm));
+    }
+
+    /**
+     * Load keys in the cache, typically before they are needed. Key references already cached are skipped.
+     * <p>
+     * If the underlying KeyProvider is an {@link AsyncKeyProvider}, all the keys are requested before waiting
+     * for them, so that a batching repository can retrieve them in bulk.
+     *
+     * @param keyRefs references of the keys to load
+     */
+    public void preload(Iterable<byte[]> keyRefs) {
+        if (!(delegate instanceof AsyncKeyProvider)) {
+            for (byte[] keyRef : keyRefs) {
+                KeyRefKey key = KeyRefKey.lookup(keyRef);
+                if (!contains(keyRef)) {
+                    load(key);
+                }
+            }
+            return;
+        }
+        List<CompletableFuture<Optional<byte[]>>> loads = new ArrayList<>();
+        for (byte[] keyRef : keyRefs) {
+            if (!contains(keyRef)) {
+                loads.add(loadAsync(KeyRefKey.lookup(keyRef).stored(), (AsyncKeyProvider) delegate));
+            }
+        }
+        RuntimeException failure = null;
+        for (CompletableFuture<Optional<byte[]>> loading : loads) {
+            try {
+                await(loading);
+            }
+            catch (RuntimeException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @param keyRef a key reference
+     * @return {@code true} if a non expired entry (positive or negative) is cached for this key reference
+     */
+    public boolean contains(byte[] keyRef) {
+        Entry entry = entries.get(KeyRefKey.lookup(keyRef));
+        return entry != null && !isExpired(entry.loaded, ticker.getAsLong());
+    }
+
+    /**
+     * Remove the key associated to the key reference from the cache
+     *
+     * @param keyRef a key reference
+     */
+    public void invalidate(byte[] keyRef) {
+        Entry entry = entries.remove(KeyRefKey.lookup(keyRef));
+        if (entry != null) {
+            removed(entry);
+        }
+    }
+
+    /**
+     * Remove all the keys from the cache
+     */
+    public void invalidateAll() {
+        for (Entry entry : entries.values()) {
+            if (entries.remove(entry.key, entry)) {
+                removed(entry);
+            }
+        }
+    }
+
+    /**
+     * @return the number of cached entries (positive and negative)
+     */
+    public long size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the estimated memory used by the cached entries, in bytes
+     */
+    public long weight() {
+        return weight.get();
+    }
+
+    /**
+     * @return a snapshot of the statistics of the cache
+     */
+    public CacheStats stats() {
+        return new CacheStats(hitCount.sum(), negativeHitCount.sum(), missCount.sum(), loadSuccessCount.sum(),
+                loadFailureCount.sum(), totalLoadTimeNanos.sum(), refreshCount.sum(), evictionCount.sum());
+    }
+
+    /**
+     * Stop refreshing the keys ahead of their expiration, and the refresh thread if the cache started one.
+     * A refresh executor given to the builder is not shut down. The cached keys are still served until they expire.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (ownRefreshExecutor != null) {
+            ownRefreshExecutor.shutdown();
+        }
+    }
+
+    private Optional<byte[]> load(KeyRefKey key) {
+        CompletableFuture<Optional<byte[]>> loading = new CompletableFuture<>();
+        CompletableFuture<Optional<byte[]>> concurrentLoading = loadings.putIfAbsent(key, loading);
+        if (concurrentLoading != null) {
+            return await(concurrentLoading);
+        }
+        try {
+            // the entry may have been loaded between the cache lookup and the registration of the loading
+            Entry entry = entries.get(key);
+            if (entry != null && !isExpired(entry.loaded, ticker.getAsLong())) {
+                loading.complete(entry.loaded.value);
+                return entry.loaded.value;
+            }
+            Optional<byte[]> value = loadFromDelegate(key);
+            put(key, value);
+            loading.complete(value);
+            return value;
+        }
+        catch (RuntimeException e) {
+            loading.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            loadings.remove(key, loading);
+        }
+    }
+
+    private CompletableFuture<Optional<byte[]>> loadAsync(KeyRefKey key, AsyncKeyProvider asyncDelegate) {
+        CompletableFuture<Optional<byte[]>> loading = new CompletableFuture<>();
+        CompletableFuture<Optional<byte[]>> concurrentLoading = loadings.putIfAbsent(key, loading);
+        if (concurrentLoading != null) {
+            return concurrentLoading;
+        }
+        long start = ticker.getAsLong();
+        try {
+            asyncDelegate.getKeyAsync(key.keyRef()).whenComplete((value, e) -> {
+                totalLoadTimeNanos.add(ticker.getAsLong() - start);
+                try {
+                    if (e != null) {
+                        loadFailureCount.increment();
+                        loading.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                    }
+                    else {
+                        loadSuccessCount.increment();
+                        Optional<byte[]> loaded = value == null ? Optional.empty() : value;
+                        put(key, loaded);
+                        loading.complete(loaded);
+                    }
+                }
+                catch (RuntimeException putFailure) {
+                    loading.completeExceptionally(putFailure);
+                }
+                finally {
+                    loadings.remove(key, loading);
+                }
+            });
+        }
+        catch (RuntimeException e) {
+            loadFailureCount.increment();
+            loading.completeExceptionally(e);
+            loadings.remove(key, loading);
+        }
+        return loading;
+    }
+
+    private Optional<byte[]> loadFromDelegate(KeyRefKey key) {
+        long start = ticker.getAsLong();
+        try {
+            Optional<byte[]> value = delegate.getKey(key.keyRef());
+            loadSuccessCount.increment();
+            return value == null ? Optional.empty() : value;
+        }
+        catch (RuntimeException e) {
+            loadFailureCount.increment();
+            throw e;
+        }
+        finally {
+            totalLoadTimeNanos.add(ticker.getAsLong() - start);
+        }
+    }
+
+    private static Optional<byte[]> await(CompletableFuture<Optional<byte[]>> loading) {
+        try {
+            return loading.join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void put(KeyRefKey key, Optional<byte[]> value) {
+        if (!value.isPresent() && negativeExpireAfterWriteNanos <= 0) {
+            invalidate(key.keyRef());
+            return;
+        }
+        Loaded loaded = new Loaded(value, value.map(k -> KeyHandle.cached(k, keyAlgorithm)), ticker.getAsLong(), weigh(key, value));
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            synchronized (entry) {
+                Loaded previous = entry.loaded;
+                entry.loaded = loaded;
+                weight.addAndGet(loaded.weight - previous.weight);
+            }
+        }
+        else {
+            entry = new Entry(key.stored(), loaded);
+            Entry previous = entries.put(entry.key, entry);
+            if (previous != null) {
+                removed(previous);
+            }
+            weight.addAndGet(loaded.weight);
+            insertionOrder.add(entry);
+        }
+        evictIfNeeded();
+    }
+
+    private void refreshIfNeeded(Entry entry, Loaded loaded, long now) {
+        if (refreshAfterWriteNanos <= 0 || now - loaded.writeTime < refreshAfterWriteNanos || closed
+                || !entry.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> refresh(entry));
+        }
+        catch (RuntimeException e) {
+            entry.refreshing.set(false);
+            log.warn("unable to schedule the refresh of a key", e);
+        }
+    }
+
+    private void refresh(Entry entry) {
+        // registered as a loading, so that a lookup missing the key during the refresh waits for it
+        CompletableFuture<Optional<byte[]>> loading = new CompletableFuture<>();
+        if (loadings.putIfAbsent(entry.key, loading) != null) {
+            // the key is already being loaded
+            entry.refreshing.set(false);
+            return;
+        }
+        try {
+            refreshCount.increment();
+            Optional<byte[]> value = loadFromDelegate(entry.key);
+            if (entries.get(entry.key) == entry) {
+                put(entry.key, value);
+            }
+            loading.complete(value);
+        }
+        catch (RuntimeException e) {
+            loading.completeExceptionally(e);
+            log.warn("error while refreshing a key, the current key is kept until its expiration", e);
+        }
+        finally {
+            loadings.remove(entry.key, loading);
+            entry.refreshing.set(false);
+        }
+    }
+
+    private boolean isExpired(Loaded loaded, long now) {
+        long expireAfterWrite = loaded.value.isPresent() ? expireAfterWriteNanos : negativeExpireAfterWriteNanos;
+        return now - loaded.writeTime >= expireAfterWrite;
+    }
+
+    private void evictIfNeeded() {
+        while (entries.size() > maximumSize || weight.get() > maximumWeight) {
+            Entry eldest = insertionOrder.poll();
+            if (eldest == null) {
+                return;
+            }
+            if (entries.remove(eldest.key, eldest)) {
+                weight.addAndGet(-eldest.loaded.weight);
+                evictionCount.increment();
+            }
+            else {
+                staleNodes.decrementAndGet();
+            }
+        }
+    }
+
+    private void removed(Entry entry) {
+        weight.addAndGet(-entry.loaded.weight);
+        // the entry is still referenced by insertionOrder, clean it once stale nodes become significant
+        if (staleNodes.incrementAndGet() > Math.max(MIN_STALE_NODES_BEFORE_CLEANUP, entries.size())) {
+            staleNodes.set(0);
+            insertionOrder.removeIf(node -> entries.get(node.key) != node);
+        }
+    }
+
+    private static int weigh(KeyRefKey key, Optional<byte[]> value) {
+        return ENTRY_OVERHEAD + key.length() + value.map(k -> k.length).orElse(0);
+    }
+
+    private static ExecutorService newRefreshExecutor() {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kafka-encryption-key-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static final class Entry {
+
+        private final KeyRefKey key;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile Loaded loaded;
+
+        Entry(KeyRefKey key, Loaded loaded) {
+            this.key = key;
+            this.loaded = loaded;
+        }
+    }
+
+    private static final class Loaded {
+
+        private final Optional<byte[]> value;
+        private final Optional<KeyHandle> handle;
+        private final long writeTime;
+        private final int weight;
+
+        Loaded(Optional<byte[]> value, Optional<KeyHandle> handle, long writeTime, int weight) {
+            this.value = value;
+            this.handle = handle;
+            this.writeTime = writeTime;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Builder of {@link CachingKeyProvider}
+     */
+    public static class Builder {
+
+        private final KeyProvider delegate;
+        private long maximumSize = 10_000L;
+        private long maximumWeight = Long.MAX_VALUE;
+        private Duration expireAfterWrite = Duration.ofNanos(Long.MAX_VALUE);
+        private Duration refreshAfterWrite;
+        private Duration negativeExpireAfterWrite = Duration.ZERO;
+        private Executor refreshExecutor;
+        private LongSupplier ticker = System::nanoTime;
+        private String keyAlgorithm = KeyHandle.DEFAULT_KEY_ALGORITHM;
+
+        private Builder(KeyProvider delegate) {
+            this.delegate = delegate;
+        }
+
+        /**
+         * @param maximumSize maximum number of cached entries (default 10000)
+         * @return this builder
+         */
+        public Builder maximumSize(long maximumSize) {
+            if (maximumSize < 0) {
+                throw new IllegalArgumentException("maximumSize must be positive");
+            }
+            this.maximumSize = maximumSize;
+            return this;
+        }
+
+        /**
+         * @param maximumWeight memory budget of the cache in bytes, estimated from the size of key references and keys
+         *                      (default unbounded)
+         * @return this builder
+         */
+        public Builder maximumWeight(long maximumWeight) {
+            if (maximumWeight < 0) {
+                throw new IllegalArgumentException("maximumWeight must be positive");
+            }
+            this.maximumWeight = maximumWeight;
+            return this;
+        }
+
+        /**
+         * @param expireAfterWrite time after which a key is removed from the cache (default never)
+         * @return this builder
+         */
+        public Builder expireAfterWrite(Duration expireAfterWrite) {
+            this.expireAfterWrite = expireAfterWrite;
+            return this;
+        }
+
+        /**
+         * @param refreshAfterWrite time after which a key is reloaded in the background on its next lookup,
+         *                          it should be shorter than expireAfterWrite (default no refresh-ahead)
+         * @return this builder
+         */
+        public Builder refreshAfterWrite(Duration refreshAfterWrite) {
+            this.refreshAfterWrite = refreshAfterWrite;
+            return this;
+        }
+
+        /**
+         * @param negativeExpireAfterWrite time during which a {@code Optional.empty()} result is cached
+         *                                 (default {@link Duration#ZERO}: not cached)
+         * @return this builder
+         */
+        public Builder negativeExpireAfterWrite(Duration negativeExpireAfterWrite) {
+            this.negativeExpireAfterWrite = negativeExpireAfterWrite;
+            return this;
+        }
+
+        /**
+         * @param refreshExecutor executor running refresh-ahead lookups (default a dedicated daemon thread, stopped
+         *                        by {@link CachingKeyProvider#close()})
+         * @return this builder
+         */
+        public Builder refreshExecutor(Executor refreshExecutor) {
+            this.refreshExecutor = refreshExecutor;
+            return this;
+        }
+
+        /**
+         * @param keyAlgorithm algorithm of the key handles (default {@link KeyHandle#DEFAULT_KEY_ALGORITHM})
+         * @return this builder
+         */
+        public Builder keyAlgorithm(String keyAlgorithm) {
+            this.keyAlgorithm = keyAlgorithm;
+            return this;
+        }
+
+        Builder ticker(LongSupplier ticker) {
+            this.ticker = ticker;
+            return this;
+        }
+
+        public CachingKeyProvider build() {
+            return new CachingKeyProvider(this);
+        }
+    }
+}
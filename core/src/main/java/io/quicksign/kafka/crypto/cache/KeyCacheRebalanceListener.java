@@ -0,0 +1,280 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.cache;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Header;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.quicksign.kafka.crypto.EncryptedEnvelope;
+import io.quicksign.kafka.crypto.KafkaCryptoConstants;
+import io.quicksign.kafka.crypto.KeyRefHeaderMode;
+import io.quicksign.kafka.crypto.LazyDecrypted;
+
+/**
+ * <p>{@link ConsumerRebalanceListener} warming up and trimming a {@link CachingKeyProvider} according to the
+ * partitions assigned to the consumer.</p>
+ *
+ * <ul>
+ * <li>On assignment, the records preceding the position of the consumer on each new partition (at most
+ * {@code lookbackRecords} per partition) are read with a dedicated scan consumer. The key references found in
+ * these records, which are likely to be used again by the next records, are preloaded in the cache
+ * (see {@link CachingKeyProvider#preload(Iterable)}).</li>
+ * <li>On revocation, the keys used only by the revoked partitions are invalidated.</li>
+ * </ul>
+ *
+ * <p>The scan consumer must be a distinct consumer, using {@link org.apache.kafka.common.serialization.ByteArrayDeserializer}
+ * for values and no consumer group, as the consumer being rebalanced can not poll from its listener.
+ * Key references used by consumed records are tracked through {@link #track(ConsumerRecords)}, which must be
+ * called with the records returned by each poll, from the polling thread.</p>
+ *
+ * <p>Trimming on revocation only works for the records whose key reference can be read by {@link #track(ConsumerRecords)}:
+ * values still encrypted ({@code byte[]}), {@link LazyDecrypted} values, or records decrypted by a
+ * {@link io.quicksign.kafka.crypto.CryptoDeserializer} adding the header {@link KafkaCryptoConstants#KEY_REF_HEADER}
+ * ({@link KeyRefHeaderMode#ALWAYS} or {@link KeyRefHeaderMode#ENCRYPTED_ONLY}). With {@link KeyRefHeaderMode#NONE},
+ * decrypted records are not tracked, and only the keys found while warming up are invalidated on revocation.</p>
+ *
+ * <pre>{@code
+ *  KeyCacheRebalanceListener listener = new KeyCacheRebalanceListener(cachingKeyProvider, consumer, scanConsumer,
+ *          1000, Duration.ofSeconds(5));
+ *  consumer.subscribe(topics, listener);
+ *  while (running) {
+ *      ConsumerRecords<K, V> records = consumer.poll(timeout);
+ *      listener.track(records);
+ *      ...
+ *  }
+ * }</pre>
+ *
+ * <p>The key references of the keys evicted from the cache are dropped from the tracking once the tracked
+ * key references outnumber twice the last count of tracked keys still cached, so that per-record keys do not grow the
+ * tracking for as long as a partition stays assigned.</p>
+ *
+ * <p>Errors while warming up the cache are logged and do not fail the rebalance.</p>
+ */
+public class KeyCacheRebalanceListener implements ConsumerRebalanceListener {
+
+    private static final Logger log = LoggerFactory.getLogger(KeyCacheRebalanceListener.class);
+
+    private static final Duration SCAN_POLL_TIMEOUT = Duration.ofMillis(100);
+
+    private static final int MIN_TRACKED_BEFORE_PRUNING = 1024;
+
+    private final CachingKeyProvider cache;
+    private final Consumer<?, ?> consumer;
+    private final Consumer<byte[], byte[]> scanConsumer;
+    private final int lookbackRecords;
+    private final Duration scanTimeout;
+    private final Map<TopicPartition, Set<KeyRefKey>> keyRefsByPartition = new HashMap<>();
+    private final Map<KeyRefKey, Set<TopicPartition>> partitionsByKeyRef = new HashMap<>();
+    private int pruningThreshold = MIN_TRACKED_BEFORE_PRUNING;
+
+    /**
+     * @param cache           the cache to warm up and trim
+     * @param consumer        the consumer being rebalanced, used to get the positions of the assigned partitions
+     * @param scanConsumer    the consumer reading the lookback window of the assigned partitions
+     * @param lookbackRecords maximum number of records read per assigned partition (0 to disable the warm-up)
+     * @param scanTimeout     maximum time spent reading the lookback windows on each assignment
+     */
+    public KeyCacheRebalanceListener(CachingKeyProvider cache, Consumer<?, ?> consumer,
+                                     Consumer<byte[], byte[]> scanConsumer, int lookbackRecords, Duration scanTimeout) {
+        if (lookbackRecords < 0) {
+            throw new IllegalArgumentException("lookbackRecords must not be negative");
+        }
+        this.cache = cache;
+        this.consumer = consumer;
+        this.scanConsumer = scanConsumer;
+        this.lookbackRecords = lookbackRecords;
+        this.scanTimeout = scanTimeout;
+    }
+
+    @Override
+    public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+        if (lookbackRecords == 0 || partitions.isEmpty()) {
+            return;
+        }
+        try {
+            Map<TopicPartition, Set<KeyRefKey>> keyRefsFound = scan(partitions);
+            Set<KeyRefKey> keyRefs = new HashSet<>();
+            keyRefsFound.values().forEach(keyRefs::addAll);
+            List<byte[]> toPreload = new ArrayList<>(keyRefs.size());
+            keyRefs.forEach(key -> toPreload.add(key.keyRef()));
+            cache.preload(toPreload);
+            // tracked once preloaded, so that they are not dropped as evicted keys
+            synchronized (this) {
+                keyRefsFound.forEach((partition, found) -> found.forEach(key -> track(partition, key)));
+            }
+            log.debug("{} keys preloaded for partitions {}", toPreload.size(), partitions);
+        }
+        catch (RuntimeException e) {
+            log.warn("unable to warm up the key cache for partitions {}", partitions, e);
+        }
+    }
+
+    @Override
+    public synchronized void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+        for (TopicPartition partition : partitions) {
+            Set<KeyRefKey> keyRefs = keyRefsByPartition.remove(partition);
+            if (keyRefs == null) {
+                continue;
+            }
+            for (KeyRefKey keyRef : keyRefs) {
+                Set<TopicPartition> usedBy = partitionsByKeyRef.get(keyRef);
+                usedBy.remove(partition);
+                if (usedBy.isEmpty()) {
+                    partitionsByKeyRef.remove(keyRef);
+                    cache.invalidate(keyRef.keyRef());
+                }
+            }
+        }
+    }
+
+    /**
+     * Record the key references used by the records of each partition. The key reference is read from the header
+     * {@link KafkaCryptoConstants#KEY_REF_HEADER}, or from the value when it is still encrypted or a {@link LazyDecrypted}.
+     * Decrypted records without the header are ignored.
+     *
+     * @param records records returned by a poll of the consumer
+     */
+    public synchronized void track(ConsumerRecords<?, ?> records) {
+        for (ConsumerRecord<?, ?> record : records) {
+            byte[] keyRef = keyRef(record);
+            if (keyRef != null) {
+                track(new TopicPartition(record.topic(), record.partition()), KeyRefKey.lookup(keyRef));
+            }
+        }
+    }
+
+    synchronized int trackedKeyRefCount() {
+        return partitionsByKeyRef.size();
+    }
+
+    private Map<TopicPartition, Set<KeyRefKey>> scan(Collection<TopicPartition> partitions) {
+        Map<TopicPartition, Long> endOffsets = new HashMap<>();
+        for (TopicPartition partition : partitions) {
+            endOffsets.put(partition, consumer.position(partition));
+        }
+        Map<TopicPartition, Long> beginningOffsets = scanConsumer.beginningOffsets(partitions);
+        Set<TopicPartition> remaining = new HashSet<>();
+        Map<TopicPartition, Set<KeyRefKey>> keyRefs = new HashMap<>();
+        try {
+            scanConsumer.assign(partitions);
+            for (TopicPartition partition : partitions) {
+                long end = endOffsets.get(partition);
+                long start = Math.max(beginningOffsets.getOrDefault(partition, 0L), end - lookbackRecords);
+                if (start < end) {
+                    scanConsumer.seek(partition, start);
+                    remaining.add(partition);
+                }
+                else {
+                    scanConsumer.pause(Collections.singleton(partition));
+                }
+            }
+            long deadline = System.nanoTime() + scanTimeout.toNanos();
+            while (!remaining.isEmpty() && System.nanoTime() - deadline < 0) {
+                for (ConsumerRecord<byte[], byte[]> record : scanConsumer.poll(SCAN_POLL_TIMEOUT)) {
+                    TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+                    if (!remaining.contains(partition) || record.offset() >= endOffsets.get(partition)) {
+                        continue;
+                    }
+                    byte[] keyRef = keyRef(record.value());
+                    if (keyRef != null) {
+                        keyRefs.computeIfAbsent(partition, p -> new HashSet<>()).add(KeyRefKey.lookup(keyRef).stored());
+                    }
+                    if (record.offset() + 1 >= endOffsets.get(partition)) {
+                        remaining.remove(partition);
+                        scanConsumer.pause(Collections.singleton(partition));
+                    }
+                }
+            }
+            if (!remaining.isEmpty()) {
+                log.debug("lookback window of partitions {} not fully read before timeout", remaining);
+            }
+        }
+        finally {
+            scanConsumer.assign(Collections.emptyList());
+        }
+        return keyRefs;
+    }
+
+    private void track(TopicPartition partition, KeyRefKey keyRef) {
+        Set<KeyRefKey> keyRefs = keyRefsByPartition.computeIfAbsent(partition, p -> new HashSet<>());
+        if (keyRefs.contains(keyRef)) {
+            return;
+        }
+        KeyRefKey stored = keyRef.stored();
+        keyRefs.add(stored);
+        partitionsByKeyRef.computeIfAbsent(stored, k -> new HashSet<>()).add(partition);
+        if (partitionsByKeyRef.size() > pruningThreshold) {
+            pruneEvictedKeyRefs();
+        }
+    }
+
+    private void pruneEvictedKeyRefs() {
+        Iterator<Map.Entry<KeyRefKey, Set<TopicPartition>>> iterator = partitionsByKeyRef.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<KeyRefKey, Set<TopicPartition>> tracked = iterator.next();
+            if (!cache.contains(tracked.getKey().keyRef())) {
+                for (TopicPartition partition : tracked.getValue()) {
+                    keyRefsByPartition.get(partition).remove(tracked.getKey());
+                }
+                iterator.remove();
+            }
+        }
+        pruningThreshold = Math.max(MIN_TRACKED_BEFORE_PRUNING, 2 * partitionsByKeyRef.size());
+    }
+
+    private static byte[] keyRef(ConsumerRecord<?, ?> record) {
+        Header header = record.headers().lastHeader(KafkaCryptoConstants.KEY_REF_HEADER);
+        if (header != null) {
+            return header.value();
+        }
+        if (record.value() instanceof LazyDecrypted) {
+            return ((LazyDecrypted<?>) record.value()).keyRef();
+        }
+        return record.value() instanceof byte[] ? keyRef((byte[]) record.value()) : null;
+    }
+
+    private static byte[] keyRef(byte[] value) {
+        try {
+            EncryptedEnvelope envelope = EncryptedEnvelope.parse(value);
+            return envelope == null ? null : envelope.getKeyRef();
+        }
+        catch (SerializationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.cache;
+
+import java.util.Arrays;
+
+/**
+ * Wrapper of a key reference comparing its content rather than the identity of the array
+ */
+public final class KeyRefKey {
+
+    private final byte[] keyRef;
+    private final int hashCode;
+
+    private KeyRefKey(byte[] keyRef) {
+        this.keyRef = keyRef;
+        this.hashCode = Arrays.hashCode(keyRef);
+    }
+
+    /**
+     * @param keyRef a key reference
+     * @return a key wrapping the array itself, to be used only for lookups
+     */
+    public static KeyRefKey lookup(byte[] keyRef) {
+        return new KeyRefKey(keyRef);
+    }
+
+    /**
+     * @return a key wrapping a copy of the key reference, safe to be stored
+     */
+    public KeyRefKey stored() {
+        return new KeyRefKey(keyRef.clone());
+    }
+
+    public byte[] keyRef() {
+        return keyRef;
+    }
+
+    int length() {
+        return keyRef.length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof KeyRefKey)) {
+            return false;
+        }
+        KeyRefKey other = (KeyRefKey) o;
+        return hashCode == other.hashCode && Arrays.equals(keyRef, other.keyRef);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+}
@@ -0,0 +1,502 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.cache;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import io.quicksign.kafka.crypto.encryption.AsyncKeyProvider;
+import io.quicksign.kafka.crypto.encryption.KeyProvider;
+
+/**
+ * <p>{@link KeyProvider} decorator caching the keys returned by another {@link KeyProvider} outside of the heap,
+ * so that millions of cached keys add neither to the heap size nor to the GC marking time.</p>
+ *
+ * <ul>
+ * <li>Keys are stored in fixed-size slots of direct buffers, split into independently locked segments.</li>
+ * <li>Each segment indexes its slots by a 128-bit hash of the key reference, in an open-addressing table.
+ * The key references themselves are not stored. The hash is seeded randomly for each cache, so that colliding
+ * key references can not be precomputed.</li>
+ * <li>When a segment is full, a slot is evicted with the CLOCK algorithm (second chance to the slots read since
+ * the last pass).</li>
+ * <li>The slots of evicted and invalidated keys are zeroed, as is the whole cache on {@link #close()}.</li>
+ * <li>Keys larger than the slot size and {@code Optional.empty()} results are not cached.</li>
+ * </ul>
+ *
+ * <p>It is meant to sit between a small on-heap {@link CachingKeyProvider}, which also provides single-flight
+ * loading, and the provider backed by the key repository:
+ * <pre>{@code
+ *  OffHeapKeyCache offHeapKeyCache = new OffHeapKeyCache(new RepositoryBasedKeyProvider(keyRepository, keyNameObfuscator),
+ *          5_000_000, 32);
+ *  KeyProvider keyProvider = CachingKeyProvider.builder(offHeapKeyCache)
+ *          .maximumSize(10_000)
+ *          .build();
+ * }</pre>
+ * The keys returned are copied on the heap and are not zeroed.</p>
+ */
+public class OffHeapKeyCache implements KeyProvider, AsyncKeyProvider, Closeable {
+
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SLOTS_PER_SEGMENT = 16;
+
+    /**
+     * slot structure: hash1(8 bytes)|hash2(8 bytes)|key.length(4 bytes, -1 when free)|referenced(4 bytes)|key
+     */
+    private static final int HASH1_OFFSET = 0;
+    private static final int HASH2_OFFSET = 8;
+    private static final int LENGTH_OFFSET = 16;
+    private static final int REFERENCED_OFFSET = 20;
+    private static final int SLOT_HEADER_SIZE = 24;
+
+    private final KeyProvider delegate;
+    private final int maxKeySize;
+    private final long seed;
+    private final Segment[] segments;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder loadSuccessCount = new LongAdder();
+    private final LongAdder loadFailureCount = new LongAdder();
+    private final LongAdder totalLoadTimeNanos = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * @param delegate    the KeyProvider of the keys to cache
+     * @param maximumSize maximum number of cached keys
+     * @param maxKeySize  size of the slots, larger keys are not cached
+     */
+    public OffHeapKeyCache(KeyProvider delegate, int maximumSize, int maxKeySize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be positive");
+        }
+        if (maxKeySize < 1) {
+            throw new IllegalArgumentException("maxKeySize must be positive");
+        }
+        this.delegate = delegate;
+        this.maxKeySize = maxKeySize;
+        this.seed = new SecureRandom().nextLong();
+        int segmentCount = Math.max(1, Math.min(MAX_SEGMENTS, Integer.highestOneBit(maximumSize / MIN_SLOTS_PER_SEGMENT)));
+        int slotsPerSegment = (maximumSize + segmentCount - 1) / segmentCount;
+        if ((long) slotsPerSegment * (SLOT_HEADER_SIZE + maxKeySize) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("maximumSize * maxKeySize too large");
+        }
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(slotsPerSegment, SLOT_HEADER_SIZE + maxKeySize);
+        }
+    }
+
+    /**
+     * Retrieve the key from the cache, or from the underlying KeyProvider if it is not cached.
+     *
+     * @param keyRef the reference of the key to retrieve
+     * @return the actual key or {@code Optional.empty()} if the key cannot be found
+     */
+    @Override
+    public Optional<byte[]> getKey(byte[] keyRef) {
+        long[] hash = hash(keyRef);
+        byte[] cached = segment(hash).get(hash[0], hash[1]);
+        if (cached != null) {
+            hitCount.increment();
+            return Optional.of(cached);
+        }
+        missCount.increment();
+        long start = System.nanoTime();
+        Optional<byte[]> value;
+        try {
+            value = delegate.getKey(keyRef);
+            loadSuccessCount.increment();
+        }
+        catch (RuntimeException e) {
+            loadFailureCount.increment();
+            throw e;
+        }
+        finally {
+            totalLoadTimeNanos.add(System.nanoTime() - start);
+        }
+        return cache(hash, value);
+    }
+
+    /**
+     * Retrieve the key from the cache, or from the underlying KeyProvider if it is not cached,
+     * without waiting for it if the underlying KeyProvider is an {@link AsyncKeyProvider}.
+     *
+     * @param keyRef the reference of the key to retrieve
+     * @return a stage completed with the actual key or {@code Optional.empty()} if the key cannot be found
+     */
+    @Override
+    public CompletionStage<Optional<byte[]>> getKeyAsync(byte[] keyRef) {
+        long[] hash = hash(keyRef);
+        byte[] cached = segment(hash).get(hash[0], hash[1]);
+        if (cached != null) {
+            hitCount.increment();
+            return CompletableFuture.completedFuture(Optional.of(cached));
+        }
+        missCount.increment();
+        long start = System.nanoTime();
+        return AsyncKeyProvider.of(delegate, Runnable::run).getKeyAsync(keyRef).handle((value, e) -> {
+            totalLoadTimeNanos.add(System.nanoTime() - start);
+            if (e != null) {
+                loadFailureCount.increment();
+                throw e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e);
+            }
+            loadSuccessCount.increment();
+            return cache(hash, value);
+        });
+    }
+
+    @Override
+    public KeyProvider toKeyProvider() {
+        return this;
+    }
+
+    /**
+     * Remove the key associated to the key reference from the cache, zeroing its slot
+     *
+     * @param keyRef a key reference
+     */
+    public void invalidate(byte[] keyRef) {
+        long[] hash = hash(keyRef);
+        segment(hash).remove(hash[0], hash[1]);
+    }
+
+    /**
+     * Remove all the keys from the cache, zeroing their slots
+     */
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @return the number of cached keys
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return a snapshot of the statistics of the cache (no negative hit nor refresh, as they are not cached)
+     */
+    public CacheStats stats() {
+        return new CacheStats(hitCount.sum(), 0, missCount.sum(), loadSuccessCount.sum(), loadFailureCount.sum(),
+                totalLoadTimeNanos.sum(), 0, evictionCount.sum());
+    }
+
+    /**
+     * Zero all the slots. The cache must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        invalidateAll();
+    }
+
+    private Optional<byte[]> cache(long[] hash, Optional<byte[]> value) {
+        if (value == null) {
+            return Optional.empty();
+        }
+        value.filter(key -> key.length <= maxKeySize).ifPresent(key -> segment(hash).put(hash[0], hash[1], key));
+        return value;
+    }
+
+    private Segment segment(long[] hash) {
+        return segments[(int) (hash[1] >>> 32) & (segments.length - 1)];
+    }
+
+    private long[] hash(byte[] keyRef) {
+        return murmur3(keyRef, seed);
+    }
+
+    /**
+     * MurmurHash3 x64 128 bits
+     */
+    static long[] murmur3(byte[] data, long seed) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        long h1 = seed;
+        long h2 = seed;
+        int blocks = data.length / 16;
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < blocks; i++) {
+            long k1 = buffer.getLong(i * 16);
+            long k2 = buffer.getLong(i * 16 + 8);
+            h1 ^= mixK1(k1, c1, c2);
+            h1 = Long.rotateLeft(h1, 27) + h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(k2, c1, c2);
+            h2 = Long.rotateLeft(h2, 31) + h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        long k1 = 0;
+        long k2 = 0;
+        int tail = blocks * 16;
+        int remaining = data.length - tail;
+        for (int i = remaining - 1; i >= 8; i--) {
+            k2 ^= (data[tail + i] & 0xFFL) << ((i - 8) * 8);
+        }
+        for (int i = Math.min(remaining, 8) - 1; i >= 0; i--) {
+            k1 ^= (data[tail + i] & 0xFFL) << (i * 8);
+        }
+        if (remaining > 8) {
+            h2 ^= mixK2(k2, c1, c2);
+        }
+        if (remaining > 0) {
+            h1 ^= mixK1(k1, c1, c2);
+        }
+        h1 ^= data.length;
+        h2 ^= data.length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        return new long[]{h1, h2};
+    }
+
+    private static long mixK1(long k1, long c1, long c2) {
+        return Long.rotateLeft(k1 * c1, 31) * c2;
+    }
+
+    private static long mixK2(long k2, long c1, long c2) {
+        return Long.rotateLeft(k2 * c2, 33) * c1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private final class Segment {
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final ByteBuffer slab;
+        private final int slotSize;
+        private final int slotCount;
+        /**
+         * open-addressing table of slot numbers + 1, 0 for empty
+         */
+        private final int[] index;
+        private final int[] freeSlots;
+        private int freeCount;
+        private int allocated;
+        private int size;
+        private int hand;
+
+        private Segment(int slotCount, int slotSize) {
+            this.slotCount = slotCount;
+            this.slotSize = slotSize;
+            this.slab = ByteBuffer.allocateDirect(slotCount * slotSize);
+            this.index = new int[Integer.highestOneBit(slotCount * 2 - 1) << 1];
+            this.freeSlots = new int[slotCount];
+        }
+
+        byte[] get(long hash1, long hash2) {
+            lock.readLock().lock();
+            try {
+                int position = find(hash1, hash2);
+                if (position < 0) {
+                    return null;
+                }
+                int slotOffset = (index[position] - 1) * slotSize;
+                // concurrent readers may set the flag concurrently, which is harmless
+                slab.putInt(slotOffset + REFERENCED_OFFSET, 1);
+                byte[] key = new byte[slab.getInt(slotOffset + LENGTH_OFFSET)];
+                ByteBuffer slot = slab.duplicate();
+                slot.position(slotOffset + SLOT_HEADER_SIZE);
+                slot.get(key);
+                return key;
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void put(long hash1, long hash2, byte[] key) {
+            lock.writeLock().lock();
+            try {
+                int position = find(hash1, hash2);
+                int slot;
+                if (position >= 0) {
+                    slot = index[position] - 1;
+                    zero(slot);
+                }
+                else {
+                    slot = allocate();
+                    insert(hash1, slot);
+                    size++;
+                }
+                int slotOffset = slot * slotSize;
+                slab.putLong(slotOffset + HASH1_OFFSET, hash1);
+                slab.putLong(slotOffset + HASH2_OFFSET, hash2);
+                slab.putInt(slotOffset + LENGTH_OFFSET, key.length);
+                slab.putInt(slotOffset + REFERENCED_OFFSET, 0);
+                ByteBuffer destination = slab.duplicate();
+                destination.position(slotOffset + SLOT_HEADER_SIZE);
+                destination.put(key);
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(long hash1, long hash2) {
+            lock.writeLock().lock();
+            try {
+                int position = find(hash1, hash2);
+                if (position >= 0) {
+                    int slot = index[position] - 1;
+                    delete(position);
+                    zero(slot);
+                    freeSlots[freeCount++] = slot;
+                    size--;
+                }
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void clear() {
+            lock.writeLock().lock();
+            try {
+                for (int slot = 0; slot < allocated; slot++) {
+                    zero(slot);
+                }
+                Arrays.fill(index, 0);
+                freeCount = 0;
+                allocated = 0;
+                size = 0;
+                hand = 0;
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return size;
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private int allocate() {
+            if (freeCount > 0) {
+                return freeSlots[--freeCount];
+            }
+            if (allocated < slotCount) {
+                return allocated++;
+            }
+            // CLOCK: all the slots are used, evict the first slot not read since the last pass
+            while (true) {
+                int slotOffset = hand * slotSize;
+                int slot = hand;
+                hand = (hand + 1) % slotCount;
+                if (slab.getInt(slotOffset + REFERENCED_OFFSET) != 0) {
+                    slab.putInt(slotOffset + REFERENCED_OFFSET, 0);
+                    continue;
+                }
+                delete(find(slab.getLong(slotOffset + HASH1_OFFSET), slab.getLong(slotOffset + HASH2_OFFSET)));
+                zero(slot);
+                size--;
+                evictionCount.increment();
+                return slot;
+            }
+        }
+
+        private int find(long hash1, long hash2) {
+            int mask = index.length - 1;
+            for (int position = home(hash1); ; position = (position + 1) & mask) {
+                int entry = index[position];
+                if (entry == 0) {
+                    return -1;
+                }
+                int slotOffset = (entry - 1) * slotSize;
+                if (slab.getLong(slotOffset + HASH1_OFFSET) == hash1 && slab.getLong(slotOffset + HASH2_OFFSET) == hash2) {
+                    return position;
+                }
+            }
+        }
+
+        private void insert(long hash1, int slot) {
+            int mask = index.length - 1;
+            int position = home(hash1);
+            while (index[position] != 0) {
+                position = (position + 1) & mask;
+            }
+            index[position] = slot + 1;
+        }
+
+        /**
+         * backward shift deletion, keeping the probe sequences without tombstones
+         */
+        private void delete(int position) {
+            int mask = index.length - 1;
+            int hole = position;
+            int next = position;
+            while (true) {
+                next = (next + 1) & mask;
+                int entry = index[next];
+                if (entry == 0) {
+                    break;
+                }
+                int home = home(slab.getLong((entry - 1) * slotSize + HASH1_OFFSET));
+                boolean movable = hole <= next ? (home <= hole || home > next) : (home <= hole && home > next);
+                if (movable) {
+                    index[hole] = entry;
+                    hole = next;
+                }
+            }
+            index[hole] = 0;
+        }
+
+        private int home(long hash1) {
+            return (int) hash1 & (index.length - 1);
+        }
+
+        private void zero(int slot) {
+            int slotOffset = slot * slotSize;
+            for (int i = 0; i < slotSize; i++) {
+                slab.put(slotOffset + i, (byte) 0);
+            }
+            slab.putInt(slotOffset + LENGTH_OFFSET, -1);
+        }
+    }
+}
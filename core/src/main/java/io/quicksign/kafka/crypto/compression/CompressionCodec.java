@@ -0,0 +1,49 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.compression;
+
+/**
+ * A compression codec applied to serialized data before encryption.
+ * The codec {@link #id()} is written in the record so that the deserializer can find the codec to decompress the data.
+ *
+ * @see CompressionType
+ * @see io.quicksign.kafka.crypto.CryptoSerializer
+ */
+public interface CompressionCodec {
+
+    /**
+     * @return the identifier of this codec written in the record, must be unique among the codecs known by the deserializer
+     */
+    byte id();
+
+    /**
+     * @param data data to compress
+     * @return the compressed data, embedding everything needed by {@link #decompress(byte[], int, int)}
+     */
+    byte[] compress(byte[] data);
+
+    /**
+     * @param data   array containing the compressed data
+     * @param offset offset of the compressed data in the array
+     * @param length length of the compressed data
+     * @return the decompressed data
+     */
+    byte[] decompress(byte[] data, int offset, int length);
+}
@@ -0,0 +1,65 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.compression;
+
+/**
+ * Built-in compression codecs, always known by {@link io.quicksign.kafka.crypto.CryptoDeserializer}
+ */
+public enum CompressionType {
+
+    LZ4(Lz4CompressionCodec.ID) {
+        @Override
+        public CompressionCodec codec() {
+            return new Lz4CompressionCodec();
+        }
+    },
+
+    ZSTD(ZstdCompressionCodec.ID) {
+        @Override
+        public CompressionCodec codec() {
+            return new ZstdCompressionCodec();
+        }
+    },
+
+    SNAPPY(SnappyCompressionCodec.ID) {
+        @Override
+        public CompressionCodec codec() {
+            return new SnappyCompressionCodec();
+        }
+    };
+
+    private final byte id;
+
+    CompressionType(byte id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the identifier of the codec written in the record
+     */
+    public byte id() {
+        return id;
+    }
+
+    /**
+     * @return a codec with default settings
+     */
+    public abstract CompressionCodec codec();
+}
@@ -0,0 +1,44 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.compression;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+final class CompressionUtils {
+
+    private CompressionUtils() {
+    }
+
+    static byte[] truncate(byte[] data, int length) {
+        return length == data.length ? data : Arrays.copyOf(data, length);
+    }
+
+    static int readOriginalLength(byte[] data, int offset, int length) {
+        if (length < Integer.BYTES) {
+            throw new IllegalArgumentException("compressed data too short: " + length + " bytes");
+        }
+        int originalLength = ByteBuffer.wrap(data, offset, length).getInt();
+        if (originalLength < 0) {
+            throw new IllegalArgumentException("invalid original length: " + originalLength);
+        }
+        return originalLength;
+    }
+}
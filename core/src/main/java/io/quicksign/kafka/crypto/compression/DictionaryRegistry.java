@@ -0,0 +1,36 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.compression;
+
+import java.util.Optional;
+
+/**
+ * Source of the compression dictionaries used by {@link ZstdDictionaryCompressionCodec}.
+ * Dictionaries are identified by their zstd id, carried in each record, so a registry must keep serving the dictionaries
+ * used by records still present in the topics.
+ */
+public interface DictionaryRegistry {
+
+    /**
+     * @param dictionaryId the id of the dictionary
+     * @return the dictionary or {@link Optional#empty()} if unknown
+     */
+    Optional<byte[]> getDictionary(int dictionaryId);
+}
@@ -0,0 +1,55 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.compression;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link DictionaryRegistry} keeping dictionaries in memory
+ */
+public class InMemoryDictionaryRegistry implements DictionaryRegistry {
+
+    private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+
+    /**
+     * @param dictionaryId the id of the dictionary
+     * @param dictionary   the dictionary
+     * @return this registry
+     */
+    public InMemoryDictionaryRegistry register(int dictionaryId, byte[] dictionary) {
+        dictionaries.put(dictionaryId, dictionary.clone());
+        return this;
+    }
+
+    /**
+     * @param dictionary the dictionary, registered with its zstd id (see {@link ZstdDictionaryCompressionCodec#dictionaryId(byte[])})
+     * @return this registry
+     */
+    public InMemoryDictionaryRegistry register(byte[] dictionary) {
+        return register(ZstdDictionaryCompressionCodec.dictionaryId(dictionary), dictionary);
+    }
+
+    @Override
+    public Optional<byte[]> getDictionary(int dictionaryId) {
+        return Optional.ofNullable(dictionaries.get(dictionaryId));
+    }
+}
@@ -0,0 +1,65 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.compression;
+
+import java.nio.ByteBuffer;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+/**
+ * LZ4 block compression. The compressed data has the following structure:
+ * <pre>data.length(4 bytes)|lz4_block</pre>
+ */
+public class Lz4CompressionCodec implements CompressionCodec {
+
+    static final byte ID = 1;
+
+    private final LZ4Compressor compressor;
+    private final LZ4SafeDecompressor decompressor;
+
+    public Lz4CompressionCodec() {
+        LZ4Factory factory = LZ4Factory.fastestInstance();
+        this.compressor = factory.fastCompressor();
+        this.decompressor = factory.safeDecompressor();
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] data) {
+        byte[] compressed = new byte[Integer.BYTES + compressor.maxCompressedLength(data.length)];
+        ByteBuffer.wrap(compressed).putInt(data.length);
+        int compressedLength = compressor.compress(data, 0, data.length, compressed, Integer.BYTES);
+        return CompressionUtils.truncate(compressed, Integer.BYTES + compressedLength);
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int offset, int length) {
+        int originalLength = CompressionUtils.readOriginalLength(data, offset, length);
+        byte[] decompressed = new byte[originalLength];
+        decompressor.decompress(data, offset + Integer.BYTES, length - Integer.BYTES, decompressed, 0);
+        return decompressed;
+    }
+}
@@ -0,0 +1,60 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.compression;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import org.xerial.snappy.Snappy;
+
+/**
+ * Snappy raw compression, the original length is embedded by the snappy format
+ */
+public class SnappyCompressionCodec implements CompressionCodec {
+
+    static final byte ID = 3;
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] data) {
+        try {
+            return Snappy.compress(data);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("unable to compress data with snappy", e);
+        }
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int offset, int length) {
+        try {
+            byte[] decompressed = new byte[Snappy.uncompressedLength(data, offset, length)];
+            Snappy.uncompress(data, offset, length, decompressed, 0);
+            return decompressed;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("unable to decompress data with snappy", e);
+        }
+    }
+}
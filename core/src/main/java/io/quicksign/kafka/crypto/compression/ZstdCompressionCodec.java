@@ -0,0 +1,85 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.compression;
+
+import java.nio.ByteBuffer;
+
+import com.github.luben.zstd.Zstd;
+
+/**
+ * Zstandard compression. The compressed data has the following structure:
+ * <pre>data.length(4 bytes)|zstd_frame</pre>
+ */
+public class ZstdCompressionCodec implements CompressionCodec {
+
+    static final byte ID = 2;
+
+    /**
+     * default compression level, same as the zstd command line
+     */
+    public static final int DEFAULT_LEVEL = 3;
+
+    private final int level;
+
+    public ZstdCompressionCodec() {
+        this(DEFAULT_LEVEL);
+    }
+
+    /**
+     * @param level zstd compression level
+     */
+    public ZstdCompressionCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] data) {
+        byte[] compressed = new byte[Integer.BYTES + (int) Zstd.compressBound(data.length)];
+        ByteBuffer.wrap(compressed).putInt(data.length);
+        long compressedLength = Zstd.compressByteArray(compressed, Integer.BYTES, compressed.length - Integer.BYTES,
+                data, 0, data.length, level);
+        checkError(compressedLength);
+        return CompressionUtils.truncate(compressed, Integer.BYTES + (int) compressedLength);
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int offset, int length) {
+        int originalLength = CompressionUtils.readOriginalLength(data, offset, length);
+        byte[] decompressed = new byte[originalLength];
+        long decompressedLength = Zstd.decompressByteArray(decompressed, 0, originalLength,
+                data, offset + Integer.BYTES, length - Integer.BYTES);
+        checkError(decompressedLength);
+        if (decompressedLength != originalLength) {
+            throw new IllegalStateException("zstd decompressed " + decompressedLength + " bytes instead of " + originalLength);
+        }
+        return decompressed;
+    }
+
+    static void checkError(long result) {
+        if (Zstd.isError(result)) {
+            throw new IllegalStateException("zstd error: " + Zstd.getErrorName(result));
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.compression;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictCompress;
+import com.github.luben.zstd.ZstdDictDecompress;
+
+/**
+ * <p>Zstandard compression with a dictionary, efficient for small records sharing a common structure
+ * (see {@link ZstdDictionaryTrainer}). The compressed data is a single zstd frame, whose header records
+ * the id of the dictionary and the size of the data, without any other header.
+ * </p>
+ *
+ * <p>Data is compressed with the current dictionary given at construction, and decompressed with the dictionary
+ * identified in the frame, so that records written with older dictionaries can still be read.
+ * Dictionaries are identified by the id written in the dictionary by zstd (see {@link #dictionaryId(byte[])}):
+ * raw content dictionaries, which have no id, are not supported.
+ * Dictionaries are loaded from the {@link DictionaryRegistry} on first use and then kept in memory.
+ * </p>
+ */
+public class ZstdDictionaryCompressionCodec implements CompressionCodec {
+
+    static final byte ID = 4;
+
+    private static final int FRAME_MAGIC = 0xFD2FB528;
+    private static final int DICTIONARY_MAGIC = 0xEC30A437;
+
+    private final DictionaryRegistry dictionaryRegistry;
+    private final int dictionaryId;
+    private final int level;
+    private final Map<Integer, ZstdDictCompress> compressDictionaries = new ConcurrentHashMap<>();
+    private final Map<Integer, ZstdDictDecompress> decompressDictionaries = new ConcurrentHashMap<>();
+
+    /**
+     * @param dictionaryRegistry registry of dictionaries
+     * @param dictionaryId       id of the dictionary used for compression
+     */
+    public ZstdDictionaryCompressionCodec(DictionaryRegistry dictionaryRegistry, int dictionaryId) {
+        this(dictionaryRegistry, dictionaryId, ZstdCompressionCodec.DEFAULT_LEVEL);
+    }
+
+    /**
+     * @param dictionaryRegistry registry of dictionaries
+     * @param dictionaryId       id of the dictionary used for compression
+     * @param level              zstd compression level
+     */
+    public ZstdDictionaryCompressionCodec(DictionaryRegistry dictionaryRegistry, int dictionaryId, int level) {
+        this.dictionaryRegistry = dictionaryRegistry;
+        this.dictionaryId = dictionaryId;
+        this.level = level;
+    }
+
+    /**
+     * @param dictionary a dictionary trained by zstd
+     * @return the id of the dictionary, written by zstd in the frames compressed with it
+     * @throws IllegalArgumentException if the dictionary is a raw content dictionary, without id
+     */
+    public static int dictionaryId(byte[] dictionary) {
+        ByteBuffer header = ByteBuffer.wrap(dictionary).order(ByteOrder.LITTLE_ENDIAN);
+        if (dictionary.length < 2 * Integer.BYTES || header.getInt() != DICTIONARY_MAGIC) {
+            throw new IllegalArgumentException("not a zstd dictionary");
+        }
+        return header.getInt();
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] data) {
+        ZstdDictCompress dictionary = compressDictionaries.computeIfAbsent(dictionaryId,
+                id -> new ZstdDictCompress(loadDictionary(id), level));
+        byte[] compressed = new byte[(int) Zstd.compressBound(data.length)];
+        long compressedLength = Zstd.compressFastDict(compressed, 0, data, 0, data.length, dictionary);
+        ZstdCompressionCodec.checkError(compressedLength);
+        return CompressionUtils.truncate(compressed, (int) compressedLength);
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int offset, int length) {
+        FrameHeader frameHeader = FrameHeader.parse(data, offset, length);
+        ZstdDictDecompress dictionary = decompressDictionaries.computeIfAbsent(frameHeader.dictionaryId,
+                id -> new ZstdDictDecompress(loadDictionary(id)));
+        byte[] decompressed = new byte[frameHeader.contentSize];
+        long decompressedLength = Zstd.decompressFastDict(decompressed, 0, data, offset, length, dictionary);
+        ZstdCompressionCodec.checkError(decompressedLength);
+        if (decompressedLength != frameHeader.contentSize) {
+            throw new IllegalStateException("zstd decompressed " + decompressedLength + " bytes instead of " + frameHeader.contentSize);
+        }
+        return decompressed;
+    }
+
+    private byte[] loadDictionary(int id) {
+        byte[] dictionary = dictionaryRegistry.getDictionary(id)
+                .orElseThrow(() -> new IllegalStateException("unknown compression dictionary " + id));
+        if (dictionaryId(dictionary) != id) {
+            throw new IllegalStateException("compression dictionary " + id + " has the zstd id " + dictionaryId(dictionary));
+        }
+        return dictionary;
+    }
+
+    /**
+     * Fields of the zstd frame header, see RFC 8878
+     */
+    private static final class FrameHeader {
+
+        private final int dictionaryId;
+        private final int contentSize;
+
+        private FrameHeader(int dictionaryId, int contentSize) {
+            this.dictionaryId = dictionaryId;
+            this.contentSize = contentSize;
+        }
+
+        static FrameHeader parse(byte[] data, int offset, int length) {
+            try {
+                ByteBuffer frame = ByteBuffer.wrap(data, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+                if (frame.getInt() != FRAME_MAGIC) {
+                    throw new IllegalArgumentException("not a zstd frame");
+                }
+                int descriptor = frame.get() & 0xFF;
+                boolean singleSegment = (descriptor & 0x20) != 0;
+                if (!singleSegment) {
+                    // window descriptor
+                    frame.get();
+                }
+                int dictionaryId;
+                switch (descriptor & 0x03) {
+                    case 0:
+                        throw new IllegalArgumentException("zstd frame without dictionary id");
+                    case 1:
+                        dictionaryId = frame.get() & 0xFF;
+                        break;
+                    case 2:
+                        dictionaryId = frame.getShort() & 0xFFFF;
+                        break;
+                    default:
+                        dictionaryId = frame.getInt();
+                }
+                long contentSize;
+                switch (descriptor >>> 6) {
+                    case 0:
+                        contentSize = singleSegment ? frame.get() & 0xFF : -1;
+                        break;
+                    case 1:
+                        contentSize = (frame.getShort() & 0xFFFF) + 256;
+                        break;
+                    case 2:
+                        contentSize = frame.getInt() & 0xFFFFFFFFL;
+                        break;
+                    default:
+                        contentSize = frame.getLong();
+                }
+                if (contentSize < 0 || contentSize > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("invalid zstd frame content size: " + contentSize);
+                }
+                return new FrameHeader(dictionaryId, (int) contentSize);
+            }
+            catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("compressed data too short: " + length + " bytes", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.compression;
+
+import java.time.Duration;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+
+import com.github.luben.zstd.ZstdDictTrainer;
+
+/**
+ * <p>Offline training of a zstd dictionary from sample data, to be registered in a {@link DictionaryRegistry}
+ * and used by {@link ZstdDictionaryCompressionCodec}.</p>
+ *
+ * <p>Samples must be the serialized data <b>before</b> compression and encryption. To sample an encrypted topic,
+ * use a consumer with a {@link io.quicksign.kafka.crypto.CryptoDeserializer} wrapping a
+ * {@link org.apache.kafka.common.serialization.ByteArrayDeserializer} as value deserializer.</p>
+ */
+public class ZstdDictionaryTrainer {
+
+    /**
+     * default size of the trained dictionary, as recommended by zstd
+     */
+    public static final int DEFAULT_DICTIONARY_SIZE = 112640;
+
+    private final ZstdDictTrainer trainer;
+    private int sampleCount;
+
+    /**
+     * @param maxSampleBytes maximum total size of the samples
+     * @param dictionarySize maximum size of the trained dictionary
+     */
+    public ZstdDictionaryTrainer(int maxSampleBytes, int dictionarySize) {
+        this.trainer = new ZstdDictTrainer(maxSampleBytes, dictionarySize);
+    }
+
+    /**
+     * @param sample sample data
+     * @return {@code false} if the sample was not added because the maximum total size of samples is reached
+     */
+    public boolean addSample(byte[] sample) {
+        boolean added = trainer.addSample(sample);
+        if (added) {
+            sampleCount++;
+        }
+        return added;
+    }
+
+    /**
+     * Add the values polled by a consumer as samples, until the maximum number of samples or the maximum total
+     * size of samples is reached, or a poll returns no record.
+     *
+     * @param consumer    consumer already subscribed or assigned to the sample topics
+     * @param pollTimeout timeout of each poll
+     * @param maxSamples  maximum number of samples to add
+     * @return the number of samples added
+     */
+    public int addSamples(Consumer<?, byte[]> consumer, Duration pollTimeout, int maxSamples) {
+        int added = 0;
+        while (added < maxSamples) {
+            ConsumerRecords<?, byte[]> records = consumer.poll(pollTimeout);
+            if (records.isEmpty()) {
+                return added;
+            }
+            for (ConsumerRecord<?, byte[]> record : records) {
+                if (record.value() == null) {
+                    continue;
+                }
+                if (added >= maxSamples || !addSample(record.value())) {
+                    return added;
+                }
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * @return the number of samples added
+     */
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return the trained dictionary, identified by {@link ZstdDictionaryCompressionCodec#dictionaryId(byte[])}
+     */
+    public byte[] train() {
+        return trainer.trainSamples();
+    }
+}
@@ -0,0 +1,194 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <p>AES-GCM implementation of {@link CryptoAlgorithm}.</p>
+ *
+ * <p>The encrypted message has the following structure:
+ * <pre>nonce(12 bytes)|encrypted_data|tag(16 bytes)</pre>
+ * </p>
+ *
+ * <p>{@link Cipher} instances are reused per thread, and the data is encrypted directly into
+ * its destination array, so the only allocation per encryption is the output array.
+ * Keys given as {@link KeyHandle} are used as is, without building a key object per message, with a cipher
+ * taken from the pool of the key when the handle holds one (see {@link CipherContextPool}).
+ * An optional associated data can be authenticated along with each message.</p>
+ *
+ * <p>Nonces are provided by a {@link NonceGenerator}, by default a {@link ThreadLocalSecureRandomNonceGenerator}.</p>
+ *
+ * <p>Please note that this format is not compatible with the {@code AesGcmNoPaddingCryptoAlgorithm} of the samples,
+ * which uses a 96 bytes IV.</p>
+ */
+public class AesGcmCryptoAlgorithm implements CryptoAlgorithm {
+
+    /**
+     * size of the nonce prepended to each encrypted message
+     */
+    public static final int NONCE_SIZE = 12;
+
+    /**
+     * size of the authentication tag appended to each encrypted message
+     */
+    public static final int TAG_SIZE = 16;
+
+    /**
+     * id of this algorithm in the records
+     */
+    public static final int ALGORITHM_ID = 1;
+
+    private static final String KEY_SPEC = "AES";
+    private static final String ALGO_TRANSFORMATION_STRING = "AES/GCM/NoPadding";
+
+    private final ThreadLocal<Cipher> cipherHolder = ThreadLocal.withInitial(AesGcmCryptoAlgorithm::newCipher);
+    private final NonceGenerator nonceGenerator;
+    private final byte[] associatedData;
+
+    public AesGcmCryptoAlgorithm() {
+        this(null);
+    }
+
+    /**
+     * @param associatedData data authenticated with each message (may be {@code null})
+     */
+    public AesGcmCryptoAlgorithm(byte[] associatedData) {
+        this(associatedData, new ThreadLocalSecureRandomNonceGenerator());
+    }
+
+    /**
+     * @param associatedData data authenticated with each message (may be {@code null})
+     * @param nonceGenerator generator of the nonce of each message
+     */
+    public AesGcmCryptoAlgorithm(byte[] associatedData, NonceGenerator nonceGenerator) {
+        this.associatedData = associatedData == null ? null : associatedData.clone();
+        this.nonceGenerator = nonceGenerator;
+    }
+
+    @Override
+    public int getAlgorithmId() {
+        return ALGORITHM_ID;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] data, byte[] key) throws Exception {
+        byte[] output = new byte[encryptedSize(data.length)];
+        encrypt(data, key, output, 0);
+        return output;
+    }
+
+    @Override
+    public int encryptedSize(int dataLength) {
+        return NONCE_SIZE + dataLength + TAG_SIZE;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] data, KeyHandle key) throws Exception {
+        byte[] output = new byte[encryptedSize(data.length)];
+        encrypt(data, key, output, 0);
+        return output;
+    }
+
+    @Override
+    public int encrypt(byte[] data, byte[] key, byte[] output, int outputOffset) throws Exception {
+        return encrypt(cipherHolder.get(), data, new SecretKeySpec(key, KEY_SPEC), output, outputOffset);
+    }
+
+    @Override
+    public int encrypt(byte[] data, KeyHandle key, byte[] output, int outputOffset) throws Exception {
+        CipherContextPool cipherContexts = key.cipherContexts(ALGO_TRANSFORMATION_STRING);
+        if (cipherContexts == null) {
+            return encrypt(cipherHolder.get(), data, key.getSecretKey(), output, outputOffset);
+        }
+        Cipher cipher = cipherContexts.borrow();
+        try {
+            return encrypt(cipher, data, key.getSecretKey(), output, outputOffset);
+        }
+        finally {
+            cipherContexts.release(cipher);
+        }
+    }
+
+    private int encrypt(Cipher cipher, byte[] data, Key key, byte[] output, int outputOffset) throws Exception {
+        byte[] nonce = new byte[NONCE_SIZE];
+        nonceGenerator.nextNonce(nonce);
+        System.arraycopy(nonce, 0, output, outputOffset, NONCE_SIZE);
+
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE * Byte.SIZE, nonce));
+        if (associatedData != null) {
+            cipher.updateAAD(associatedData);
+        }
+        return NONCE_SIZE + cipher.doFinal(data, 0, data.length, output, outputOffset + NONCE_SIZE);
+    }
+
+    @Override
+    public byte[] decrypt(byte[] encryptedData, byte[] key) throws Exception {
+        return decrypt(encryptedData, 0, encryptedData.length, key);
+    }
+
+    @Override
+    public byte[] decrypt(byte[] encryptedData, int offset, int length, byte[] key) throws Exception {
+        return decrypt(cipherHolder.get(), encryptedData, offset, length, new SecretKeySpec(key, KEY_SPEC));
+    }
+
+    @Override
+    public byte[] decrypt(byte[] encryptedData, int offset, int length, KeyHandle key) throws Exception {
+        CipherContextPool cipherContexts = key.cipherContexts(ALGO_TRANSFORMATION_STRING);
+        if (cipherContexts == null) {
+            return decrypt(cipherHolder.get(), encryptedData, offset, length, key.getSecretKey());
+        }
+        Cipher cipher = cipherContexts.borrow();
+        try {
+            return decrypt(cipher, encryptedData, offset, length, key.getSecretKey());
+        }
+        finally {
+            cipherContexts.release(cipher);
+        }
+    }
+
+    private byte[] decrypt(Cipher cipher, byte[] encryptedData, int offset, int length, Key key) throws Exception {
+        if (length < NONCE_SIZE + TAG_SIZE) {
+            throw new GeneralSecurityException("encrypted data too short: " + length + " bytes");
+        }
+        cipher.init(Cipher.DECRYPT_MODE, key,
+                new GCMParameterSpec(TAG_SIZE * Byte.SIZE, encryptedData, offset, NONCE_SIZE));
+        if (associatedData != null) {
+            cipher.updateAAD(associatedData);
+        }
+        return cipher.doFinal(encryptedData, offset + NONCE_SIZE, length - NONCE_SIZE);
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(ALGO_TRANSFORMATION_STRING);
+        }
+        catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new RuntimeException("unable to handle AES-GCM encryption", e);
+        }
+    }
+}
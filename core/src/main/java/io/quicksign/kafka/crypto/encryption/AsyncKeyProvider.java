@@ -0,0 +1,64 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>A key provider retrieving the key associated to a keyRef without blocking the calling thread,
+ * typically from a remote key service.</p>
+ *
+ * <p>A {@link DefaultEncryptor} or {@link DefaultDecryptor} built with a {@link KeyProvider} which is also
+ * an AsyncKeyProvider (see {@link #toKeyProvider()}) continues the encryption or decryption when the key
+ * is retrieved, instead of waiting for it.</p>
+ */
+public interface AsyncKeyProvider {
+
+    /**
+     * @param keyRef the reference of the key to retrieve
+     * @return a stage completed with the actual key or {@code Optional.empty()} if the key cannot be found
+     */
+    CompletionStage<Optional<byte[]>> getKeyAsync(byte[] keyRef);
+
+    /**
+     * The returned KeyProvider is also this AsyncKeyProvider, so that encryptors and decryptors can use
+     * both APIs.
+     *
+     * @return a KeyProvider waiting for the keys retrieved by this AsyncKeyProvider
+     */
+    default KeyProvider toKeyProvider() {
+        return new BlockingKeyProvider(this);
+    }
+
+    /**
+     * @param keyProvider the blocking KeyProvider
+     * @param executor    executor running the blocking retrievals ({@code Runnable::run} to run them on the calling thread)
+     * @return an AsyncKeyProvider retrieving the keys with the KeyProvider on the executor
+     */
+    static AsyncKeyProvider of(KeyProvider keyProvider, Executor executor) {
+        if (keyProvider instanceof AsyncKeyProvider) {
+            return (AsyncKeyProvider) keyProvider;
+        }
+        return keyRef -> CompletableFuture.supplyAsync(() -> keyProvider.getKey(keyRef), executor);
+    }
+}
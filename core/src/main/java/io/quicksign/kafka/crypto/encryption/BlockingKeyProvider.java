@@ -0,0 +1,59 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * KeyProvider waiting for the keys retrieved by an {@link AsyncKeyProvider}.
+ */
+class BlockingKeyProvider implements KeyProvider, AsyncKeyProvider {
+
+    private final AsyncKeyProvider asyncKeyProvider;
+
+    BlockingKeyProvider(AsyncKeyProvider asyncKeyProvider) {
+        this.asyncKeyProvider = asyncKeyProvider;
+    }
+
+    @Override
+    public Optional<byte[]> getKey(byte[] keyRef) {
+        try {
+            return asyncKeyProvider.getKeyAsync(keyRef).toCompletableFuture().join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public CompletionStage<Optional<byte[]>> getKeyAsync(byte[] keyRef) {
+        return asyncKeyProvider.getKeyAsync(keyRef);
+    }
+
+    @Override
+    public KeyProvider toKeyProvider() {
+        return this;
+    }
+}
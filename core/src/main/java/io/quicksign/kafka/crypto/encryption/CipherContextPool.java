@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.crypto.Cipher;
+
+/**
+ * <p>Pool of {@link Cipher} instances dedicated to a single key, held by its {@link KeyHandle}.</p>
+ *
+ * <p>A {@link Cipher} keeps the expanded schedule of the last key it was initialized with, and only expands it
+ * again when initialized with another key. A thread-local cipher shared by all the keys loses it each time
+ * consecutive records use different keys, whereas a cipher taken from the pool of the key always finds it.
+ * The nonce still has to be given to {@link Cipher#init} for each record, as required by AES-GCM.</p>
+ *
+ * <p>Borrowing and releasing are lock free: each thread starts probing the slots at an index derived from its id.
+ * When all the slots are taken a new cipher is created, and it is dropped on release if the pool is full.</p>
+ */
+final class CipherContextPool {
+
+    private static final int MAX_SLOTS = 64;
+    private static final int SLOTS = slots(Runtime.getRuntime().availableProcessors());
+
+    private final String transformation;
+    private final AtomicReferenceArray<Cipher> slots = new AtomicReferenceArray<>(SLOTS);
+
+    CipherContextPool(String transformation) {
+        this.transformation = transformation;
+    }
+
+    /**
+     * @return a cipher of the transformation of this pool, to be given back with {@link #release(Cipher)}
+     * @throws GeneralSecurityException if the transformation is not available
+     */
+    Cipher borrow() throws GeneralSecurityException {
+        int start = start();
+        for (int i = 0; i < SLOTS; i++) {
+            Cipher cipher = slots.getAndSet((start + i) & (SLOTS - 1), null);
+            if (cipher != null) {
+                return cipher;
+            }
+        }
+        return Cipher.getInstance(transformation);
+    }
+
+    /**
+     * @param cipher cipher returned by {@link #borrow()}, no longer used by the caller
+     */
+    void release(Cipher cipher) {
+        int start = start();
+        for (int i = 0; i < SLOTS; i++) {
+            if (slots.compareAndSet((start + i) & (SLOTS - 1), null, cipher)) {
+                return;
+            }
+        }
+    }
+
+    private static int start() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 32)) * 0x9E3779B9 >>> 16;
+    }
+
+    static int slots(int processors) {
+        int slots = Integer.highestOneBit(Math.max(1, Math.min(processors, MAX_SLOTS)) * 2 - 1);
+        return Math.min(slots, MAX_SLOTS);
+    }
+}
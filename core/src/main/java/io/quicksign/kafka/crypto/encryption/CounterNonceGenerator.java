@@ -0,0 +1,87 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+import java.security.SecureRandom;
+
+/**
+ * <p>Counter based {@link NonceGenerator}, following the deterministic construction of NIST SP 800-38D.</p>
+ *
+ * <p>Each thread owns a nonce space made of a random prefix followed by a 32 bits counter:
+ * <pre>random_prefix(nonce.length - 4 bytes)|counter(4 bytes)</pre>
+ * The prefix is drawn from a {@link SecureRandom} when the thread generates its first nonce and each time its
+ * counter wraps, so the shared {@link SecureRandom} is only used once every 2^32 nonces per thread.
+ * As prefixes are drawn randomly and never persisted, nonces stay unique across restarts and across producer
+ * instances: with 12 bytes nonces, the probability that two of {@code n} prefixes collide is about n^2/2^65.</p>
+ *
+ * <p>Nonces must be at least 8 bytes long.</p>
+ */
+public class CounterNonceGenerator implements NonceGenerator {
+
+    private static final int COUNTER_SIZE = Integer.BYTES;
+
+    private final SecureRandom secureRandom = new SecureRandom();
+    private final ThreadLocal<NonceSpace> nonceSpaceHolder = new ThreadLocal<>();
+
+    @Override
+    public void nextNonce(byte[] nonce) {
+        if (nonce.length < 2 * COUNTER_SIZE) {
+            throw new IllegalArgumentException("nonce too short: " + nonce.length + " bytes");
+        }
+        NonceSpace nonceSpace = nonceSpaceHolder.get();
+        if (nonceSpace == null || nonceSpace.prefix.length != nonce.length - COUNTER_SIZE || nonceSpace.exhausted()) {
+            nonceSpace = new NonceSpace(newPrefix(nonce.length - COUNTER_SIZE));
+            nonceSpaceHolder.set(nonceSpace);
+        }
+        int counter = nonceSpace.next();
+        System.arraycopy(nonceSpace.prefix, 0, nonce, 0, nonceSpace.prefix.length);
+        int offset = nonceSpace.prefix.length;
+        nonce[offset] = (byte) (counter >>> 24);
+        nonce[offset + 1] = (byte) (counter >>> 16);
+        nonce[offset + 2] = (byte) (counter >>> 8);
+        nonce[offset + 3] = (byte) counter;
+    }
+
+    private byte[] newPrefix(int size) {
+        byte[] prefix = new byte[size];
+        secureRandom.nextBytes(prefix);
+        return prefix;
+    }
+
+    private static class NonceSpace {
+
+        private static final long MAX_COUNTER = 1L << (COUNTER_SIZE * Byte.SIZE);
+
+        private final byte[] prefix;
+        private long counter;
+
+        NonceSpace(byte[] prefix) {
+            this.prefix = prefix;
+        }
+
+        boolean exhausted() {
+            return counter >= MAX_COUNTER;
+        }
+
+        int next() {
+            return (int) counter++;
+        }
+    }
+}
@@ -19,6 +19,8 @@
  */
 package io.quicksign.kafka.crypto.encryption;
 
+import java.util.Arrays;
+
 /**
  * Interface to handle cryptographic algorithm
  *
@@ -37,6 +39,38 @@ public interface CryptoAlgorithm {
      */
     byte[] encrypt(byte[] data, byte[] key) throws Exception;
 
+    /**
+     * Size of the encrypted message for a clear message of the given size.
+     * Algorithms able to compute it should override this method together with
+     * {@link #encrypt(byte[], byte[], byte[], int)} so that the encrypted message can be written
+     * directly into its final destination.
+     *
+     * @param dataLength size of the message to be encrypted
+     * @return the size of the encrypted message or {@code -1} if it cannot be known before encryption
+     */
+    default int encryptedSize(int dataLength) {
+        return -1;
+    }
+
+    /**
+     * Encrypt the data using the provided key and write the result into {@code output} starting at {@code outputOffset}.
+     * {@code output} must have at least {@link #encryptedSize(int)} bytes available after {@code outputOffset}.
+     * <p>
+     * The default implementation delegates to {@link #encrypt(byte[], byte[])} and copies the result.
+     *
+     * @param data         message to be encrypted
+     * @param key          encryption key
+     * @param output       destination of the encrypted message
+     * @param outputOffset offset in output where the encrypted message starts
+     * @return the number of bytes written into output
+     * @throws Exception
+     */
+    default int encrypt(byte[] data, byte[] key, byte[] output, int outputOffset) throws Exception {
+        byte[] encryptedData = encrypt(data, key);
+        System.arraycopy(encryptedData, 0, output, outputOffset, encryptedData.length);
+        return encryptedData.length;
+    }
+
     /**
      * Decrypt the data using the provided key
      *
@@ -46,4 +80,88 @@ public interface CryptoAlgorithm {
      * @throws Exception
      */
     byte[] decrypt(byte[] encryptedData, byte[] key) throws Exception;
+
+    /**
+     * Decrypt the {@code length} bytes of {@code encryptedData} starting at {@code offset} using the provided key.
+     * Algorithms should override this method to read the encrypted message in place.
+     * <p>
+     * The default implementation copies the encrypted message and delegates to {@link #decrypt(byte[], byte[])}.
+     *
+     * @param encryptedData array containing the message to be decrypted
+     * @param offset        offset of the encrypted message in encryptedData
+     * @param length        length of the encrypted message
+     * @param key           encryption key
+     * @return decrypted message
+     * @throws Exception
+     */
+    default byte[] decrypt(byte[] encryptedData, int offset, int length, byte[] key) throws Exception {
+        if (offset == 0 && length == encryptedData.length) {
+            return decrypt(encryptedData, key);
+        }
+        return decrypt(Arrays.copyOfRange(encryptedData, offset, offset + length), key);
+    }
+
+    /**
+     * Encrypt the data using the provided key handle
+     * <p>
+     * The default implementation delegates to {@link #encrypt(byte[], byte[])} with the encoded key.
+     *
+     * @param data message to be encrypted
+     * @param key  handle of the encryption key
+     * @return encrypted message
+     * @throws Exception
+     */
+    default byte[] encrypt(byte[] data, KeyHandle key) throws Exception {
+        return encrypt(data, key.encoded());
+    }
+
+    /**
+     * Encrypt the data using the provided key handle and write the result into {@code output} starting at {@code outputOffset}.
+     * <p>
+     * The default implementation delegates to {@link #encrypt(byte[], byte[], byte[], int)} with the encoded key.
+     *
+     * @param data         message to be encrypted
+     * @param key          handle of the encryption key
+     * @param output       destination of the encrypted message
+     * @param outputOffset offset in output where the encrypted message starts
+     * @return the number of bytes written into output
+     * @throws Exception
+     */
+    default int encrypt(byte[] data, KeyHandle key, byte[] output, int outputOffset) throws Exception {
+        return encrypt(data, key.encoded(), output, outputOffset);
+    }
+
+    /**
+     * Decrypt the {@code length} bytes of {@code encryptedData} starting at {@code offset} using the provided key handle.
+     * <p>
+     * The default implementation delegates to {@link #decrypt(byte[], int, int, byte[])} with the encoded key.
+     *
+     * @param encryptedData array containing the message to be decrypted
+     * @param offset        offset of the encrypted message in encryptedData
+     * @param length        length of the encrypted message
+     * @param key           handle of the encryption key
+     * @return decrypted message
+     * @throws Exception
+     */
+    default byte[] decrypt(byte[] encryptedData, int offset, int length, KeyHandle key) throws Exception {
+        return decrypt(encryptedData, offset, length, key.encoded());
+    }
+
+    /**
+     * The id of the algorithm is written in the records so that they can be decrypted by the algorithm registered
+     * with this id in a {@link CryptoAlgorithmRegistry}. Ids from 1 to 127 are reserved for the algorithms of
+     * this library, ids from 128 to 255 can be used by applications.
+     *
+     * @return the id of the algorithm or {@code -1} if not identified
+     */
+    default int getAlgorithmId() {
+        return -1;
+    }
+
+    /**
+     * @return {@code true} if the data is encrypted by independent segments
+     */
+    default boolean isChunked() {
+        return false;
+    }
 }
@@ -0,0 +1,66 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+/**
+ * Registry of the {@link CryptoAlgorithm} used by {@link DefaultDecryptor}, indexed by {@link CryptoAlgorithm#getAlgorithmId()}.
+ * The default algorithm decrypts the records not identifying their algorithm.
+ * <p>
+ * Algorithms must be registered before the registry is used for decryption.
+ */
+public class CryptoAlgorithmRegistry {
+
+    private final CryptoAlgorithm defaultAlgorithm;
+    private final CryptoAlgorithm[] algorithms = new CryptoAlgorithm[256];
+
+    /**
+     * @param defaultAlgorithm algorithm used for records not identifying their algorithm, registered with its id if it has one
+     */
+    public CryptoAlgorithmRegistry(CryptoAlgorithm defaultAlgorithm) {
+        this.defaultAlgorithm = defaultAlgorithm;
+        if (defaultAlgorithm.getAlgorithmId() > 0) {
+            register(defaultAlgorithm);
+        }
+    }
+
+    /**
+     * @param cryptoAlgorithm algorithm to register with its id, replacing any algorithm having the same id
+     * @return this registry
+     */
+    public CryptoAlgorithmRegistry register(CryptoAlgorithm cryptoAlgorithm) {
+        int algorithmId = cryptoAlgorithm.getAlgorithmId();
+        if (algorithmId < 1 || algorithmId >= algorithms.length) {
+            throw new IllegalArgumentException("algorithm id must be between 1 and 255: " + algorithmId);
+        }
+        algorithms[algorithmId] = cryptoAlgorithm;
+        return this;
+    }
+
+    /**
+     * @param algorithmId id of the algorithm, or a negative value for records not identifying their algorithm
+     * @return the algorithm or {@code null} if no algorithm is registered with this id
+     */
+    public CryptoAlgorithm get(int algorithmId) {
+        if (algorithmId < 1) {
+            return defaultAlgorithm;
+        }
+        return algorithmId < algorithms.length ? algorithms[algorithmId] : null;
+    }
+}
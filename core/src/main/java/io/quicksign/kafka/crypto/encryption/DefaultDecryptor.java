@@ -20,7 +20,10 @@
 package io.quicksign.kafka.crypto.encryption;
 
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
+import org.apache.kafka.common.errors.SerializationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,19 +32,38 @@ import io.quicksign.kafka.crypto.Decryptor;
 /**
  * Default implementation of Decryptor.
  * It uses a {@link KeyProvider} to retrieve the key associated to keyr references.
- * It use a {@link CryptoAlgorithm} to decrypt the data
+ * It use a {@link CryptoAlgorithm} to decrypt the data, selected in a {@link CryptoAlgorithmRegistry}
+ * by the algorithm id of the record if any.
+ * Keys are given to the {@link CryptoAlgorithm} as {@link KeyHandle}, reused if the {@link KeyProvider} is also
+ * a {@link KeyHandleProvider}.
+ * If the {@link KeyProvider} is also an {@link AsyncKeyProvider}, {@link #decryptAsync(byte[], int, int, byte[], int)}
+ * decrypts the data when the key is retrieved, without waiting for it. Keys are resolved
+ * through {@link KeyHandleProvider#getKeyHandleAsync(byte[])}, so that both paths use the same handles.
  */
 public class DefaultDecryptor implements Decryptor {
 
     private static final Logger log = LoggerFactory.getLogger(DefaultDecryptor.class);
 
-    private final KeyProvider keyProvider;
+    private final KeyHandleProvider keyHandleProvider;
     private final CryptoAlgorithm cryptoAlgorithm;
+    private final CryptoAlgorithmRegistry cryptoAlgorithmRegistry;
 
     public DefaultDecryptor(KeyProvider keyProvider, CryptoAlgorithm cryptoAlgorithm) {
 
-        this.keyProvider = keyProvider;
+        this.keyHandleProvider = KeyHandleProvider.of(keyProvider);
         this.cryptoAlgorithm = cryptoAlgorithm;
+        this.cryptoAlgorithmRegistry = new CryptoAlgorithmRegistry(cryptoAlgorithm);
+    }
+
+    /**
+     * @param keyProvider             used to retrieve the keys
+     * @param cryptoAlgorithmRegistry algorithms used to decrypt records, by algorithm id
+     */
+    public DefaultDecryptor(KeyProvider keyProvider, CryptoAlgorithmRegistry cryptoAlgorithmRegistry) {
+
+        this.keyHandleProvider = KeyHandleProvider.of(keyProvider);
+        this.cryptoAlgorithm = cryptoAlgorithmRegistry.get(-1);
+        this.cryptoAlgorithmRegistry = cryptoAlgorithmRegistry;
     }
 
 
@@ -50,11 +72,63 @@ public class DefaultDecryptor implements Decryptor {
      */
     @Override
     public byte[] decrypt(byte[] value, byte[] keyRef) {
+        return decrypt(value, 0, value.length, keyRef, cryptoAlgorithm);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The value is read in place by the {@link CryptoAlgorithm}.
+     */
+    @Override
+    public byte[] decrypt(byte[] data, int offset, int length, byte[] keyRef) {
+        return decrypt(data, offset, length, keyRef, cryptoAlgorithm);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The algorithm is selected in the {@link CryptoAlgorithmRegistry}. An algorithm id not registered makes
+     * the record undecryptable and throws a {@link SerializationException}, like the other malformed envelopes.
+     */
+    @Override
+    public byte[] decrypt(byte[] data, int offset, int length, byte[] keyRef, int algorithmId) {
+        CryptoAlgorithm algorithm = cryptoAlgorithmRegistry.get(algorithmId);
+        if (algorithm == null) {
+            throw unknownAlgorithm(algorithmId);
+        }
+        return decrypt(data, offset, length, keyRef, algorithm);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The stage completes exceptionally if the key retrieval fails or if the algorithm id is not registered.
+     */
+    @Override
+    public CompletionStage<byte[]> decryptAsync(byte[] data, int offset, int length, byte[] keyRef, int algorithmId) {
+        CryptoAlgorithm algorithm = cryptoAlgorithmRegistry.get(algorithmId);
+        if (algorithm == null) {
+            CompletableFuture<byte[]> result = new CompletableFuture<>();
+            result.completeExceptionally(unknownAlgorithm(algorithmId));
+            return result;
+        }
+        return keyHandleProvider.getKeyHandleAsync(keyRef).thenApply(maybeKey -> decrypt(data, offset, length, maybeKey, algorithm));
+    }
+
+    private static SerializationException unknownAlgorithm(int algorithmId) {
+        return new SerializationException("no algorithm registered with id " + algorithmId);
+    }
+
+    private byte[] decrypt(byte[] data, int offset, int length, byte[] keyRef, CryptoAlgorithm algorithm) {
         //error on key retrieving must stop the world
-        Optional<byte[]> maybeKey = keyProvider.getKey(keyRef);
+        return decrypt(data, offset, length, keyHandleProvider.getKeyHandle(keyRef), algorithm);
+    }
+
+    private byte[] decrypt(byte[] data, int offset, int length, Optional<KeyHandle> maybeKey, CryptoAlgorithm algorithm) {
         return maybeKey.map(key -> {
                     try {
-                        return cryptoAlgorithm.decrypt(value, key);
+                        return algorithm.decrypt(data, offset, length, key);
                     }
                     catch (Exception e) {
                         log.error("error while decrypting data", e);
@@ -20,27 +20,34 @@
 package io.quicksign.kafka.crypto.encryption;
 
 import java.util.Optional;
+import java.util.concurrent.CompletionStage;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.quicksign.kafka.crypto.EncryptedEnvelope;
 import io.quicksign.kafka.crypto.Encryptor;
 
 /**
  * Default implementation of Encryptor.
  * It uses a {@link KeyProvider} to retrieve the key associated to keyr references.
- * It use a {@link CryptoAlgorithm} to encrypt the data
+ * It use a {@link CryptoAlgorithm} to encrypt the data.
+ * Keys are given to the {@link CryptoAlgorithm} as {@link KeyHandle}, reused if the {@link KeyProvider} is also
+ * a {@link KeyHandleProvider}.
+ * If the {@link KeyProvider} is also an {@link AsyncKeyProvider}, {@link #encryptAsync(byte[], byte[], int)}
+ * encrypts the data when the key is retrieved, without waiting for it. Keys are resolved
+ * through {@link KeyHandleProvider#getKeyHandleAsync(byte[])}, so that both paths use the same handles.
  */
 public class DefaultEncryptor implements Encryptor {
 
     private static final Logger log = LoggerFactory.getLogger(DefaultEncryptor.class);
 
-    private final KeyProvider keyProvider;
+    private final KeyHandleProvider keyHandleProvider;
     private final CryptoAlgorithm cryptoAlgorithm;
 
     public DefaultEncryptor(KeyProvider keyProvider, CryptoAlgorithm cryptoAlgorithm) {
 
-        this.keyProvider = keyProvider;
+        this.keyHandleProvider = KeyHandleProvider.of(keyProvider);
         this.cryptoAlgorithm = cryptoAlgorithm;
     }
 
@@ -51,7 +58,7 @@ public class DefaultEncryptor implements Encryptor {
     @Override
     public byte[] encrypt(byte[] value, byte[] keyRef) {
         //error on key retrieving must stop the world
-        Optional<byte[]> maybeKey = keyProvider.getKey(keyRef);
+        Optional<KeyHandle> maybeKey = keyHandleProvider.getKeyHandle(keyRef);
         return maybeKey.map(key -> {
             try {
                 return cryptoAlgorithm.encrypt(value, key);
@@ -62,4 +69,68 @@ public class DefaultEncryptor implements Encryptor {
             }
         }).orElse(null);
     }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * When the {@link CryptoAlgorithm} knows the size of its output, the encrypted value is written directly
+     * after the header in a single exactly-sized array.
+     */
+    @Override
+    public byte[] encrypt(byte[] value, byte[] keyRef, int headerLength) {
+        //error on key retrieving must stop the world
+        return encrypt(value, keyHandleProvider.getKeyHandle(keyRef), headerLength);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The stage completes exceptionally if the key retrieval fails.
+     */
+    @Override
+    public CompletionStage<byte[]> encryptAsync(byte[] value, byte[] keyRef, int headerLength) {
+        return keyHandleProvider.getKeyHandleAsync(keyRef).thenApply(maybeKey -> encrypt(value, maybeKey, headerLength));
+    }
+
+    private byte[] encrypt(byte[] value, Optional<KeyHandle> maybeKey, int headerLength) {
+        int encryptedSize = cryptoAlgorithm.encryptedSize(value.length);
+        return maybeKey.map(key -> {
+            try {
+                if (encryptedSize < 0) {
+                    byte[] encryptedData = cryptoAlgorithm.encrypt(value, key);
+                    byte[] result = new byte[headerLength + encryptedData.length];
+                    System.arraycopy(encryptedData, 0, result, headerLength, encryptedData.length);
+                    return result;
+                }
+                byte[] result = new byte[headerLength + encryptedSize];
+                int written = cryptoAlgorithm.encrypt(value, key, result, headerLength);
+                if (written != encryptedSize) {
+                    log.error("unexpected encrypted size {}, expected {}", written, encryptedSize);
+                    return null;
+                }
+                return result;
+            }
+            catch (Exception e) {
+                log.error("error while encrypting data", e);
+                return null;
+            }
+        }).orElse(null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getAlgorithmId() {
+        int algorithmId = cryptoAlgorithm.getAlgorithmId();
+        return algorithmId > 0 ? algorithmId : EncryptedEnvelope.NO_ALGORITHM_ID;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isChunked() {
+        return cryptoAlgorithm.isChunked();
+    }
 }
@@ -0,0 +1,53 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import io.quicksign.kafka.crypto.StreamingEncryptor;
+
+/**
+ * Default implementation of StreamingEncryptor.
+ * It uses a {@link KeyProvider} to retrieve the key associated to key references.
+ * It uses a {@link StreamingAesGcmCryptoAlgorithm} to encrypt the data
+ */
+public class DefaultStreamingEncryptor implements StreamingEncryptor {
+
+    private final KeyHandleProvider keyHandleProvider;
+    private final StreamingAesGcmCryptoAlgorithm cryptoAlgorithm;
+
+    public DefaultStreamingEncryptor(KeyProvider keyProvider, StreamingAesGcmCryptoAlgorithm cryptoAlgorithm) {
+
+        this.keyHandleProvider = KeyHandleProvider.of(keyProvider);
+        this.cryptoAlgorithm = cryptoAlgorithm;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputStream encryptingStream(OutputStream out, byte[] keyRef) throws IOException {
+        //error on key retrieving must stop the world
+        KeyHandle key = keyHandleProvider.getKeyHandle(keyRef)
+                .orElseThrow(() -> new IOException("no key found for the key reference"));
+        return cryptoAlgorithm.newEncryptingStream(out, key);
+    }
+}
@@ -0,0 +1,48 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+import java.util.Optional;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * KeyHandleProvider building a handle for each key returned by a {@link KeyProvider},
+ * retrieving the keys without blocking when the KeyProvider is also an {@link AsyncKeyProvider}.
+ */
+class EncodedKeyHandleProvider implements KeyHandleProvider {
+
+    private final KeyProvider keyProvider;
+    private final AsyncKeyProvider asyncKeyProvider;
+
+    EncodedKeyHandleProvider(KeyProvider keyProvider) {
+        this.keyProvider = keyProvider;
+        this.asyncKeyProvider = AsyncKeyProvider.of(keyProvider, Runnable::run);
+    }
+
+    @Override
+    public Optional<KeyHandle> getKeyHandle(byte[] keyRef) {
+        return keyProvider.getKey(keyRef).map(KeyHandle::of);
+    }
+
+    @Override
+    public CompletionStage<Optional<KeyHandle>> getKeyHandleAsync(byte[] keyRef) {
+        return asyncKeyProvider.getKeyAsync(keyRef).thenApply(maybeKey -> maybeKey.map(KeyHandle::of));
+    }
+}
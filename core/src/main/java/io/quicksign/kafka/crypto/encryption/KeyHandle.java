@@ -0,0 +1,128 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+import java.security.InvalidKeyException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <p>Immutable handle of a key, built once and reused for all the records encrypted or decrypted with the key,
+ * so that no key object is built per record.</p>
+ *
+ * <p>Handles are provided by a {@link KeyHandleProvider} and consumed by the {@link CryptoAlgorithm}.
+ * Handles kept for many records, built with {@link #KeyHandle(SecretKey)} or {@link #cached(byte[], String)},
+ * also hold the cipher contexts initialized with their key, so that consecutive records using different keys
+ * do not re-initialize a shared cipher with each key.</p>
+ */
+public final class KeyHandle {
+
+    /**
+     * algorithm of the keys built from their encoded form by default
+     */
+    public static final String DEFAULT_KEY_ALGORITHM = "AES";
+
+    private final SecretKey secretKey;
+    private final byte[] encoded;
+    private final boolean reused;
+    private volatile ConcurrentMap<String, CipherContextPool> cipherContexts;
+
+    /**
+     * @param secretKey the key, which may not be extractable (e.g. stored in a HSM)
+     */
+    public KeyHandle(SecretKey secretKey) {
+        this(secretKey, secretKey.getEncoded(), true);
+    }
+
+    private KeyHandle(SecretKey secretKey, byte[] encoded, boolean reused) {
+        this.secretKey = secretKey;
+        this.encoded = encoded;
+        this.reused = reused;
+    }
+
+    /**
+     * @param key encoded key, which must not be modified afterwards
+     * @return a handle of an {@link #DEFAULT_KEY_ALGORITHM} key, used for a single record
+     */
+    public static KeyHandle of(byte[] key) {
+        return of(key, DEFAULT_KEY_ALGORITHM);
+    }
+
+    /**
+     * @param key          encoded key, which must not be modified afterwards
+     * @param keyAlgorithm algorithm of the key
+     * @return a handle of the key, used for a single record
+     */
+    public static KeyHandle of(byte[] key, String keyAlgorithm) {
+        return new KeyHandle(new SecretKeySpec(key, keyAlgorithm), key, false);
+    }
+
+    /**
+     * @param key          encoded key, which must not be modified afterwards
+     * @param keyAlgorithm algorithm of the key
+     * @return a handle of the key, kept by a cache for many records and holding per key cipher contexts
+     */
+    public static KeyHandle cached(byte[] key, String keyAlgorithm) {
+        return new KeyHandle(new SecretKeySpec(key, keyAlgorithm), key, true);
+    }
+
+    /**
+     * @return the key
+     */
+    public SecretKey getSecretKey() {
+        return secretKey;
+    }
+
+    /**
+     * @return the encoded key, not copied, for the algorithms working on encoded keys
+     * @throws InvalidKeyException if the key is not extractable
+     */
+    byte[] encoded() throws InvalidKeyException {
+        if (encoded == null) {
+            throw new InvalidKeyException("key not extractable");
+        }
+        return encoded;
+    }
+
+    /**
+     * @param transformation transformation of the ciphers
+     * @return the pool of ciphers of this key, or {@code null} if this handle is used for a single record
+     */
+    CipherContextPool cipherContexts(String transformation) {
+        if (!reused) {
+            return null;
+        }
+        ConcurrentMap<String, CipherContextPool> contexts = cipherContexts;
+        if (contexts == null) {
+            synchronized (this) {
+                contexts = cipherContexts;
+                if (contexts == null) {
+                    contexts = new ConcurrentHashMap<>(2);
+                    cipherContexts = contexts;
+                }
+            }
+        }
+        CipherContextPool pool = contexts.get(transformation);
+        return pool != null ? pool : contexts.computeIfAbsent(transformation, CipherContextPool::new);
+    }
+}
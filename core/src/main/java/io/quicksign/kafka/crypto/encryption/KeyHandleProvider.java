@@ -0,0 +1,68 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A key handle provider has to provide the handle of the key associated to a keyRef.
+ * The same handle should be returned for the same key, typically from a cache.
+ * <p>
+ * A {@link DefaultEncryptor} or {@link DefaultDecryptor} built with a {@link KeyProvider} which is also
+ * a KeyHandleProvider uses the handles instead of the encoded keys.
+ *
+ * @see io.quicksign.kafka.crypto.cache.CachingKeyProvider
+ */
+public interface KeyHandleProvider {
+
+    /**
+     * @param keyRef the reference of the key to retrieve
+     * @return the handle of the key or {@code Optional.empty()} if the key cannot be found
+     */
+    Optional<KeyHandle> getKeyHandle(byte[] keyRef);
+
+    /**
+     * Retrieve the handle like {@link #getKeyHandle(byte[])}, without waiting for the key when the implementation
+     * supports it.
+     * <p>
+     * The default implementation runs {@link #getKeyHandle(byte[])} on the calling thread.
+     *
+     * @param keyRef the reference of the key to retrieve
+     * @return a stage completed with the handle of the key or {@code Optional.empty()} if the key cannot be found
+     */
+    default CompletionStage<Optional<KeyHandle>> getKeyHandleAsync(byte[] keyRef) {
+        return CompletableFuture.supplyAsync(() -> getKeyHandle(keyRef), Runnable::run);
+    }
+
+    /**
+     * @param keyProvider the KeyProvider
+     * @return the KeyProvider itself if it is a KeyHandleProvider, else a KeyHandleProvider building a handle of
+     * {@link KeyHandle#DEFAULT_KEY_ALGORITHM} for each key returned by the KeyProvider, without blocking
+     * if the KeyProvider is also an {@link AsyncKeyProvider}
+     */
+    static KeyHandleProvider of(KeyProvider keyProvider) {
+        if (keyProvider instanceof KeyHandleProvider) {
+            return (KeyHandleProvider) keyProvider;
+        }
+        return new EncodedKeyHandleProvider(keyProvider);
+    }
+}
@@ -0,0 +1,38 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+/**
+ * Generator of nonces (initialization vectors) for {@link CryptoAlgorithm} implementations.
+ * <p>
+ * Implementations must be thread safe, and must never return twice the same nonce for a given key.
+ *
+ * @see NonceGeneratorType
+ * @see AesGcmCryptoAlgorithm
+ */
+public interface NonceGenerator {
+
+    /**
+     * Fill the provided array with a new nonce
+     *
+     * @param nonce array to fill
+     */
+    void nextNonce(byte[] nonce);
+}
@@ -0,0 +1,58 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+/**
+ * Available {@link NonceGenerator} strategies. It allows to choose the strategy from configuration:
+ * <pre>{@code
+ *  NonceGenerator nonceGenerator = NonceGeneratorType.valueOf(properties.getProperty("nonce.generator")).create();
+ * }</pre>
+ */
+public enum NonceGeneratorType {
+
+    /**
+     * random nonces drawn from one {@link java.security.SecureRandom} per thread
+     *
+     * @see ThreadLocalSecureRandomNonceGenerator
+     */
+    SECURE_RANDOM {
+        @Override
+        public NonceGenerator create() {
+            return new ThreadLocalSecureRandomNonceGenerator();
+        }
+    },
+
+    /**
+     * random prefix per thread followed by a counter
+     *
+     * @see CounterNonceGenerator
+     */
+    COUNTER {
+        @Override
+        public NonceGenerator create() {
+            return new CounterNonceGenerator();
+        }
+    };
+
+    /**
+     * @return a new {@link NonceGenerator} of this type
+     */
+    public abstract NonceGenerator create();
+}
@@ -0,0 +1,605 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * <p>Segmented AES-GCM implementation of {@link CryptoAlgorithm}, in the STREAM construction style.
+ * The clear message is split into segments of a fixed size, each encrypted and authenticated independently,
+ * so that large messages can be processed segment by segment with a memory bounded by the segment size.</p>
+ *
+ * <p>The encrypted message has the following structure:
+ * <pre>segment_size(4 bytes)|nonce_prefix(7 bytes)|segment_0|...|segment_n</pre>
+ * where each segment is {@code encrypted_data|tag(16 bytes)}, all segments but the last one holding
+ * {@code segment_size} bytes of clear data. The nonce of a segment is
+ * <pre>nonce_prefix(7 bytes)|segment_index(4 bytes)|last_segment_flag(1 byte)</pre>
+ * so segments can neither be reordered nor dropped, and truncation of the message is detected.
+ * The header is authenticated with each segment.</p>
+ *
+ * <p>The nonce prefix is random, so a key should not be used for more than about 2^20 messages.
+ * Keys generated per record do not have this limitation.</p>
+ *
+ * <p>As segments are independent, the byte array API encrypts and decrypts the segments of messages larger than
+ * the parallel threshold in parallel on a {@link ForkJoinPool}, the common pool by default.
+ * Smaller messages are processed by the calling thread.</p>
+ *
+ * <p>Besides the byte array API, {@link #newEncryptingStream(OutputStream, byte[])} and
+ * {@link #newDecryptingStream(InputStream, byte[])} encrypt and decrypt streams with the same format.
+ * Decrypted data is only released once the segment holding it has been authenticated.</p>
+ *
+ * @see io.quicksign.kafka.crypto.StreamingEncryptor
+ * @see io.quicksign.kafka.crypto.StreamingDecryptor
+ */
+public class StreamingAesGcmCryptoAlgorithm implements CryptoAlgorithm {
+
+    /**
+     * default size of the clear data of a segment
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    /**
+     * maximum size of the clear data of a segment
+     */
+    public static final int MAX_SEGMENT_SIZE = 1 << 24;
+
+    /**
+     * size of the random nonce prefix of each message
+     */
+    public static final int NONCE_PREFIX_SIZE = 7;
+
+    /**
+     * size of the header of each message
+     */
+    public static final int HEADER_SIZE = Integer.BYTES + NONCE_PREFIX_SIZE;
+
+    /**
+     * size of the authentication tag of each segment
+     */
+    public static final int TAG_SIZE = 16;
+
+    /**
+     * id of this algorithm in the records
+     */
+    public static final int ALGORITHM_ID = 2;
+
+    /**
+     * default size of the messages above which segments are processed in parallel
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 4 << 20;
+
+    private static final int NONCE_SIZE = NONCE_PREFIX_SIZE + Integer.BYTES + 1;
+    private static final long MAX_SEGMENTS = 1L << 32;
+    private static final String KEY_SPEC = "AES";
+    private static final String ALGO_TRANSFORMATION_STRING = "AES/GCM/NoPadding";
+
+    private final ThreadLocal<Cipher> cipherHolder = ThreadLocal.withInitial(StreamingAesGcmCryptoAlgorithm::newCipher);
+    private final NonceGenerator noncePrefixGenerator = new ThreadLocalSecureRandomNonceGenerator();
+    private final int segmentSize;
+    private final int parallelThreshold;
+    private final ForkJoinPool pool;
+
+    public StreamingAesGcmCryptoAlgorithm() {
+        this(DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize size of the clear data of a segment
+     */
+    public StreamingAesGcmCryptoAlgorithm(int segmentSize) {
+        this(segmentSize, DEFAULT_PARALLEL_THRESHOLD, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param segmentSize       size of the clear data of a segment
+     * @param parallelThreshold size of the messages above which segments are processed in parallel
+     *                          ({@link Integer#MAX_VALUE} to disable parallelism)
+     * @param pool              pool processing the segments in parallel
+     */
+    public StreamingAesGcmCryptoAlgorithm(int segmentSize, int parallelThreshold, ForkJoinPool pool) {
+        checkSegmentSize(segmentSize);
+        this.segmentSize = segmentSize;
+        this.parallelThreshold = parallelThreshold;
+        this.pool = pool;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    @Override
+    public int getAlgorithmId() {
+        return ALGORITHM_ID;
+    }
+
+    @Override
+    public boolean isChunked() {
+        return true;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] data, byte[] key) throws Exception {
+        int encryptedSize = encryptedSize(data.length);
+        if (encryptedSize < 0) {
+            throw new GeneralSecurityException("data too large: " + data.length + " bytes");
+        }
+        byte[] output = new byte[encryptedSize];
+        encrypt(data, key, output, 0);
+        return output;
+    }
+
+    @Override
+    public int encryptedSize(int dataLength) {
+        long size = HEADER_SIZE + dataLength + segmentCount(dataLength, segmentSize) * TAG_SIZE;
+        return size > Integer.MAX_VALUE ? -1 : (int) size;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] data, KeyHandle key) throws Exception {
+        int encryptedSize = encryptedSize(data.length);
+        if (encryptedSize < 0) {
+            throw new GeneralSecurityException("data too large: " + data.length + " bytes");
+        }
+        byte[] output = new byte[encryptedSize];
+        encrypt(data, key, output, 0);
+        return output;
+    }
+
+    @Override
+    public int encrypt(byte[] data, byte[] key, byte[] output, int outputOffset) throws Exception {
+        return encrypt(data, new SecretKeySpec(key, KEY_SPEC), output, outputOffset);
+    }
+
+    @Override
+    public int encrypt(byte[] data, KeyHandle key, byte[] output, int outputOffset) throws Exception {
+        return encrypt(data, key.getSecretKey(), output, outputOffset);
+    }
+
+    private int encrypt(byte[] data, Key secretKey, byte[] output, int outputOffset) throws Exception {
+        byte[] header = newHeader();
+        System.arraycopy(header, 0, output, outputOffset, HEADER_SIZE);
+        int segments = (int) segmentCount(data.length, segmentSize);
+        forEachSegment(data.length, segments, segment -> {
+            int offset = segment * segmentSize;
+            int length = Math.min(segmentSize, data.length - offset);
+            encryptSegment(cipherHolder.get(), secretKey, header, segment, segment == segments - 1,
+                    data, offset, length, output, outputOffset + HEADER_SIZE + offset + segment * TAG_SIZE);
+        });
+        return HEADER_SIZE + data.length + segments * TAG_SIZE;
+    }
+
+    @Override
+    public byte[] decrypt(byte[] encryptedData, byte[] key) throws Exception {
+        return decrypt(encryptedData, 0, encryptedData.length, key);
+    }
+
+    @Override
+    public byte[] decrypt(byte[] encryptedData, int offset, int length, byte[] key) throws Exception {
+        return decrypt(encryptedData, offset, length, new SecretKeySpec(key, KEY_SPEC));
+    }
+
+    @Override
+    public byte[] decrypt(byte[] encryptedData, int offset, int length, KeyHandle key) throws Exception {
+        return decrypt(encryptedData, offset, length, key.getSecretKey());
+    }
+
+    private byte[] decrypt(byte[] encryptedData, int offset, int length, Key secretKey) throws Exception {
+        if (length < HEADER_SIZE + TAG_SIZE) {
+            throw new GeneralSecurityException("encrypted data too short: " + length + " bytes");
+        }
+        byte[] header = Arrays.copyOfRange(encryptedData, offset, offset + HEADER_SIZE);
+        int headerSegmentSize = readSegmentSize(header);
+        int encryptedSegmentSize = headerSegmentSize + TAG_SIZE;
+        int body = length - HEADER_SIZE;
+        int segments = (int) ((body + (long) encryptedSegmentSize - 1) / encryptedSegmentSize);
+        if (body - (segments - 1) * encryptedSegmentSize < TAG_SIZE) {
+            throw new GeneralSecurityException("truncated last segment");
+        }
+        byte[] output = new byte[body - segments * TAG_SIZE];
+        forEachSegment(output.length, segments, segment -> {
+            int segmentOffset = segment * encryptedSegmentSize;
+            int segmentLength = Math.min(encryptedSegmentSize, body - segmentOffset);
+            decryptSegment(cipherHolder.get(), secretKey, header, segment, segment == segments - 1,
+                    encryptedData, offset + HEADER_SIZE + segmentOffset, segmentLength,
+                    output, segment * headerSegmentSize);
+        });
+        return output;
+    }
+
+    private void forEachSegment(int dataLength, int segments, SegmentOperation operation) throws GeneralSecurityException {
+        if (segments < 2 || dataLength < parallelThreshold) {
+            for (int segment = 0; segment < segments; segment++) {
+                operation.apply(segment);
+            }
+            return;
+        }
+        try {
+            pool.invoke(new SegmentTask(operation, 0, segments));
+        }
+        catch (SegmentException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @param out destination of the encrypted data, closed with the returned stream
+     * @param key encryption key
+     * @return a stream encrypting the data written into it. It must be closed to write the last segment.
+     * @throws IOException if the header can not be written
+     */
+    public OutputStream newEncryptingStream(OutputStream out, byte[] key) throws IOException {
+        return newEncryptingStream(out, new SecretKeySpec(key, KEY_SPEC));
+    }
+
+    /**
+     * @param out destination of the encrypted data, closed with the returned stream
+     * @param key handle of the encryption key
+     * @return a stream encrypting the data written into it. It must be closed to write the last segment.
+     * @throws IOException if the header can not be written
+     */
+    public OutputStream newEncryptingStream(OutputStream out, KeyHandle key) throws IOException {
+        return newEncryptingStream(out, key.getSecretKey());
+    }
+
+    private OutputStream newEncryptingStream(OutputStream out, Key key) throws IOException {
+        byte[] header = newHeader();
+        out.write(header);
+        return new EncryptingOutputStream(out, key, header);
+    }
+
+    /**
+     * @param in  source of the encrypted data, closed with the returned stream
+     * @param key encryption key
+     * @return a stream of the decrypted data, throwing an {@link IOException} if the encrypted data is not authentic
+     * @throws IOException if the header can not be read
+     */
+    public InputStream newDecryptingStream(InputStream in, byte[] key) throws IOException {
+        return newDecryptingStream(in, new SecretKeySpec(key, KEY_SPEC));
+    }
+
+    /**
+     * @param in  source of the encrypted data, closed with the returned stream
+     * @param key handle of the encryption key
+     * @return a stream of the decrypted data, throwing an {@link IOException} if the encrypted data is not authentic
+     * @throws IOException if the header can not be read
+     */
+    public InputStream newDecryptingStream(InputStream in, KeyHandle key) throws IOException {
+        return newDecryptingStream(in, key.getSecretKey());
+    }
+
+    private InputStream newDecryptingStream(InputStream in, Key key) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        if (readFully(in, header, 0, HEADER_SIZE) < HEADER_SIZE) {
+            throw new EOFException("encrypted stream too short");
+        }
+        try {
+            return new DecryptingInputStream(in, key, header, readSegmentSize(header));
+        }
+        catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private byte[] newHeader() {
+        byte[] header = new byte[HEADER_SIZE];
+        byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+        noncePrefixGenerator.nextNonce(noncePrefix);
+        ByteBuffer.wrap(header).putInt(segmentSize).put(noncePrefix);
+        return header;
+    }
+
+    static long segmentCount(long dataLength, int segmentSize) {
+        return dataLength == 0 ? 1 : (dataLength + segmentSize - 1) / segmentSize;
+    }
+
+    static int readSegmentSize(byte[] header) throws GeneralSecurityException {
+        int segmentSize = ByteBuffer.wrap(header).getInt();
+        if (segmentSize < 1 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new GeneralSecurityException("invalid segment size: " + segmentSize);
+        }
+        return segmentSize;
+    }
+
+    static int encryptSegment(Cipher cipher, Key key, byte[] header, long segment, boolean last,
+                              byte[] input, int inputOffset, int inputLength,
+                              byte[] output, int outputOffset) throws GeneralSecurityException {
+        cipher.init(Cipher.ENCRYPT_MODE, key, segmentParameters(header, segment, last));
+        cipher.updateAAD(header);
+        return cipher.doFinal(input, inputOffset, inputLength, output, outputOffset);
+    }
+
+    static int decryptSegment(Cipher cipher, Key key, byte[] header, long segment, boolean last,
+                              byte[] input, int inputOffset, int inputLength,
+                              byte[] output, int outputOffset) throws GeneralSecurityException {
+        cipher.init(Cipher.DECRYPT_MODE, key, segmentParameters(header, segment, last));
+        cipher.updateAAD(header);
+        return cipher.doFinal(input, inputOffset, inputLength, output, outputOffset);
+    }
+
+    private static GCMParameterSpec segmentParameters(byte[] header, long segment, boolean last)
+            throws GeneralSecurityException {
+        if (segment >= MAX_SEGMENTS) {
+            throw new GeneralSecurityException("too many segments");
+        }
+        byte[] nonce = new byte[NONCE_SIZE];
+        System.arraycopy(header, Integer.BYTES, nonce, 0, NONCE_PREFIX_SIZE);
+        ByteBuffer.wrap(nonce, NONCE_PREFIX_SIZE, Integer.BYTES + 1)
+                .putInt((int) segment)
+                .put(last ? (byte) 1 : (byte) 0);
+        return new GCMParameterSpec(TAG_SIZE * Byte.SIZE, nonce);
+    }
+
+    private static void checkSegmentSize(int segmentSize) {
+        if (segmentSize < 1 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("segmentSize must be between 1 and " + MAX_SEGMENT_SIZE);
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buffer, offset + read, length - read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(ALGO_TRANSFORMATION_STRING);
+        }
+        catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new RuntimeException("unable to handle AES-GCM encryption", e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface SegmentOperation {
+
+        void apply(int segment) throws GeneralSecurityException;
+    }
+
+    private static class SegmentException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        SegmentException(GeneralSecurityException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized GeneralSecurityException getCause() {
+            return (GeneralSecurityException) super.getCause();
+        }
+    }
+
+    private static class SegmentTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SegmentOperation operation;
+        private final int from;
+        private final int to;
+
+        SegmentTask(SegmentOperation operation, int from, int to) {
+            this.operation = operation;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new SegmentTask(operation, from, middle), new SegmentTask(operation, middle, to));
+                return;
+            }
+            try {
+                operation.apply(from);
+            }
+            catch (GeneralSecurityException e) {
+                throw new SegmentException(e);
+            }
+        }
+    }
+
+    private static class EncryptingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private final Cipher cipher = newCipher();
+        private final Key key;
+        private final byte[] header;
+        private final byte[] segmentBuffer;
+        private final byte[] encryptedBuffer;
+        private int segmentLength;
+        private long segment;
+        private boolean closed;
+
+        EncryptingOutputStream(OutputStream out, Key key, byte[] header) throws IOException {
+            this.out = out;
+            this.key = key;
+            this.header = header;
+            try {
+                int segmentSize = readSegmentSize(header);
+                this.segmentBuffer = new byte[segmentSize];
+                this.encryptedBuffer = new byte[segmentSize + TAG_SIZE];
+            }
+            catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            while (len > 0) {
+                // a full segment is written only once more data arrives, as the last segment must be flagged
+                if (segmentLength == segmentBuffer.length) {
+                    writeSegment(false);
+                }
+                int n = Math.min(segmentBuffer.length - segmentLength, len);
+                System.arraycopy(b, off, segmentBuffer, segmentLength, n);
+                segmentLength += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                writeSegment(true);
+            }
+            finally {
+                Arrays.fill(segmentBuffer, (byte) 0);
+                out.close();
+            }
+        }
+
+        private void writeSegment(boolean last) throws IOException {
+            try {
+                int n = encryptSegment(cipher, key, header, segment++, last,
+                        segmentBuffer, 0, segmentLength, encryptedBuffer, 0);
+                out.write(encryptedBuffer, 0, n);
+                segmentLength = 0;
+            }
+            catch (GeneralSecurityException e) {
+                throw new IOException("unable to encrypt segment", e);
+            }
+        }
+    }
+
+    private static class DecryptingInputStream extends InputStream {
+
+        private final InputStream in;
+        private final Cipher cipher = newCipher();
+        private final Key key;
+        private final byte[] header;
+        private final byte[] encryptedBuffer;
+        private final byte[] segmentBuffer;
+        private int encryptedLength;
+        private int position;
+        private int limit;
+        private long segment;
+        private boolean lastSegmentRead;
+
+        DecryptingInputStream(InputStream in, Key key, byte[] header, int segmentSize) {
+            this.in = in;
+            this.key = key;
+            this.header = header;
+            // one more byte is read ahead to know whether a segment is the last one
+            this.encryptedBuffer = new byte[segmentSize + TAG_SIZE + 1];
+            this.segmentBuffer = new byte[segmentSize];
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (position == limit) {
+                if (lastSegmentRead) {
+                    return -1;
+                }
+                readSegment();
+            }
+            int n = Math.min(limit - position, len);
+            System.arraycopy(segmentBuffer, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        @Override
+        public void close() throws IOException {
+            Arrays.fill(segmentBuffer, (byte) 0);
+            in.close();
+        }
+
+        private void readSegment() throws IOException {
+            encryptedLength += readFully(in, encryptedBuffer, encryptedLength, encryptedBuffer.length - encryptedLength);
+            boolean last = encryptedLength < encryptedBuffer.length;
+            int segmentLength = last ? encryptedLength : encryptedLength - 1;
+            if (segmentLength < TAG_SIZE) {
+                throw new EOFException("truncated segment");
+            }
+            try {
+                limit = decryptSegment(cipher, key, header, segment++, last,
+                        encryptedBuffer, 0, segmentLength, segmentBuffer, 0);
+                position = 0;
+            }
+            catch (GeneralSecurityException e) {
+                throw new IOException("unable to decrypt segment", e);
+            }
+            if (last) {
+                lastSegmentRead = true;
+                encryptedLength = 0;
+            }
+            else {
+                encryptedBuffer[0] = encryptedBuffer[segmentLength];
+                encryptedLength = 1;
+            }
+        }
+    }
+}
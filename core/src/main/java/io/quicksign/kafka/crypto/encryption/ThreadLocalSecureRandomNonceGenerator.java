@@ -0,0 +1,80 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * {@link NonceGenerator} drawing random nonces from one {@link SecureRandom} instance per thread,
+ * so that producer threads never contend on the lock of a shared instance.
+ * <p>
+ * Random nonces should not be used to encrypt more than 2^32 messages with the same key.
+ */
+public class ThreadLocalSecureRandomNonceGenerator implements NonceGenerator {
+
+    private static final String DRBG = "DRBG";
+    private static final String SHA1PRNG = "SHA1PRNG";
+
+    private final ThreadLocal<SecureRandom> secureRandomHolder;
+
+    /**
+     * Use a {@code DRBG} {@link SecureRandom} per thread when available (Java 9+), a {@code SHA1PRNG} one otherwise.
+     * The default {@link SecureRandom} of the platform is not used, as {@code NativePRNG} instances share
+     * a global lock.
+     */
+    public ThreadLocalSecureRandomNonceGenerator() {
+        this(isAvailable(DRBG) ? DRBG : SHA1PRNG);
+    }
+
+    /**
+     * @param algorithm name of the {@link SecureRandom} algorithm to use for each thread
+     *                  (for example {@code DRBG} on Java 9+ or {@code NativePRNGNonBlocking})
+     */
+    public ThreadLocalSecureRandomNonceGenerator(String algorithm) {
+        // fail fast if the algorithm is not available
+        newSecureRandom(algorithm);
+        this.secureRandomHolder = ThreadLocal.withInitial(() -> newSecureRandom(algorithm));
+    }
+
+    @Override
+    public void nextNonce(byte[] nonce) {
+        secureRandomHolder.get().nextBytes(nonce);
+    }
+
+    private static boolean isAvailable(String algorithm) {
+        try {
+            SecureRandom.getInstance(algorithm);
+            return true;
+        }
+        catch (NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+    private static SecureRandom newSecureRandom(String algorithm) {
+        try {
+            return SecureRandom.getInstance(algorithm);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("unable to init secureRandom " + algorithm, e);
+        }
+    }
+}
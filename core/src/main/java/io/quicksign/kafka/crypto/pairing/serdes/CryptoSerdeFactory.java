@@ -19,6 +19,8 @@
  */
 package io.quicksign.kafka.crypto.pairing.serdes;
 
+import java.util.Collections;
+
 import org.apache.kafka.common.serialization.Serde;
 import org.apache.kafka.common.serialization.Serdes;
 
@@ -26,6 +28,7 @@ import io.quicksign.kafka.crypto.CryptoDeserializer;
 import io.quicksign.kafka.crypto.CryptoSerializer;
 import io.quicksign.kafka.crypto.Decryptor;
 import io.quicksign.kafka.crypto.Encryptor;
+import io.quicksign.kafka.crypto.compression.CompressionCodec;
 import io.quicksign.kafka.crypto.pairing.internal.CryptoAwareSerializerWrapper;
 import io.quicksign.kafka.crypto.pairing.keyextractor.KeyReferenceExtractor;
 
@@ -45,6 +48,8 @@ public class CryptoSerdeFactory implements SerdeFactory {
     private final Encryptor encryptor;
     private final Decryptor decryptor;
     private final KeyReferenceExtractor keyReferenceExtractor;
+    private final CompressionCodec compressionCodec;
+    private final int compressionThreshold;
 
     /**
      * @param encryptor             used for value encryption
@@ -52,10 +57,24 @@ public class CryptoSerdeFactory implements SerdeFactory {
      * @param keyReferenceExtractor used to
      */
     public CryptoSerdeFactory(Encryptor encryptor, Decryptor decryptor, KeyReferenceExtractor keyReferenceExtractor) {
+        this(encryptor, decryptor, keyReferenceExtractor, null, 0);
+    }
+
+    /**
+     * @param encryptor             used for value encryption
+     * @param decryptor             used for value decryption
+     * @param keyReferenceExtractor used to
+     * @param compressionCodec      codec used to compress values before encryption ({@code null} to disable compression)
+     * @param compressionThreshold  values smaller than this number of bytes are not compressed
+     */
+    public CryptoSerdeFactory(Encryptor encryptor, Decryptor decryptor, KeyReferenceExtractor keyReferenceExtractor,
+                              CompressionCodec compressionCodec, int compressionThreshold) {
 
         this.encryptor = encryptor;
         this.decryptor = decryptor;
         this.keyReferenceExtractor = keyReferenceExtractor;
+        this.compressionCodec = compressionCodec;
+        this.compressionThreshold = compressionThreshold;
     }
 
     public <T> Serde<T> buildFrom(Serde<T> rawSerde) {
@@ -63,8 +82,10 @@ public class CryptoSerdeFactory implements SerdeFactory {
     }
 
     private <T> Serde<T> buildFrom(Serde<T> rawSerde, ThreadLocal<byte[]> keyRefHolder) {
-        return Serdes.serdeFrom(new CryptoSerializer<>(rawSerde.serializer(), encryptor, keyRefHolder),
-                new CryptoDeserializer<>(rawSerde.deserializer(), decryptor));
+        return Serdes.serdeFrom(
+                new CryptoSerializer<>(rawSerde.serializer(), encryptor, keyRefHolder, compressionCodec, compressionThreshold),
+                new CryptoDeserializer<>(rawSerde.deserializer(), decryptor,
+                        compressionCodec == null ? Collections.emptyList() : Collections.singletonList(compressionCodec)));
     }
 
     /**
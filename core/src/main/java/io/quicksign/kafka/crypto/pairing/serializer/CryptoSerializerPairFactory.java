@@ -23,6 +23,7 @@ import org.apache.kafka.common.serialization.Serializer;
 
 import io.quicksign.kafka.crypto.CryptoSerializer;
 import io.quicksign.kafka.crypto.Encryptor;
+import io.quicksign.kafka.crypto.compression.CompressionCodec;
 import io.quicksign.kafka.crypto.pairing.internal.CryptoAwareSerializerWrapper;
 import io.quicksign.kafka.crypto.pairing.keyextractor.KeyReferenceExtractor;
 
@@ -32,16 +33,47 @@ import io.quicksign.kafka.crypto.pairing.keyextractor.KeyReferenceExtractor;
  * <li>the keySerializer is wrapped to call the {@link KeyReferenceExtractor}</li>
  * <li> the valueSerializer is wrapped into a {@link CryptoSerializer} </li>
  * </ul>
- * The keyref extracted by the wrapped key serializer will be shared with the wrapped value serializer using Kafka headers
+ * The keyref extracted by the wrapped key serializer will be shared with the wrapped value serializer using Kafka headers.
+ * As the keyref is part of the encrypted value, the value serializer can remove this header to avoid sending the keyref twice.
  */
 public class CryptoSerializerPairFactory implements SerializerPairFactory {
 
     private final Encryptor encryptor;
     private final KeyReferenceExtractor keyReferenceExtractor;
+    private final CompressionCodec compressionCodec;
+    private final int compressionThreshold;
+    private final boolean stripKeyRefHeader;
 
     public CryptoSerializerPairFactory(Encryptor encryptor, KeyReferenceExtractor keyReferenceExtractor) {
+        this(encryptor, keyReferenceExtractor, null, 0);
+    }
+
+    /**
+     * @param encryptor             used for value encryption
+     * @param keyReferenceExtractor used to extract the keyref from the record key
+     * @param compressionCodec      codec used to compress values before encryption ({@code null} to disable compression)
+     * @param compressionThreshold  values smaller than this number of bytes are not compressed
+     */
+    public CryptoSerializerPairFactory(Encryptor encryptor, KeyReferenceExtractor keyReferenceExtractor,
+                                       CompressionCodec compressionCodec, int compressionThreshold) {
+        this(encryptor, keyReferenceExtractor, compressionCodec, compressionThreshold, false);
+    }
+
+    /**
+     * @param encryptor             used for value encryption
+     * @param keyReferenceExtractor used to extract the keyref from the record key
+     * @param compressionCodec      codec used to compress values before encryption ({@code null} to disable compression)
+     * @param compressionThreshold  values smaller than this number of bytes are not compressed
+     * @param stripKeyRefHeader     {@code true} to remove the keyref header from the records once read by the value serializer
+     */
+    public CryptoSerializerPairFactory(Encryptor encryptor, KeyReferenceExtractor keyReferenceExtractor,
+                                       CompressionCodec compressionCodec, int compressionThreshold,
+                                       boolean stripKeyRefHeader) {
         this.encryptor = encryptor;
         this.keyReferenceExtractor = keyReferenceExtractor;
+        this.compressionCodec = compressionCodec;
+        this.compressionThreshold = compressionThreshold;
+        this.stripKeyRefHeader = stripKeyRefHeader;
     }
 
     /**
@@ -50,7 +82,8 @@ public class CryptoSerializerPairFactory implements SerializerPairFactory {
     @Override
     public <K, V> SerializerPair<K, V> build(Serializer<K> keySerializer, Serializer<V> valueSerializer) {
         Serializer<K> newKeySerializer = new CryptoAwareSerializerWrapper<K>(keySerializer, keyReferenceExtractor, null);
-        Serializer<V> newvalueSerializer = new CryptoSerializer<>(valueSerializer, encryptor, null);
+        Serializer<V> newvalueSerializer = new CryptoSerializer<>(valueSerializer, encryptor, null,
+                compressionCodec, compressionThreshold, stripKeyRefHeader);
         return new SerializerPair<>(newKeySerializer, newvalueSerializer);
     }
 }
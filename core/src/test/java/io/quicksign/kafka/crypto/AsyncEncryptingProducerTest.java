@@ -0,0 +1,198 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Test;
+
+public class AsyncEncryptingProducerTest {
+
+    @Test
+    public void testRecordsAreSerializedByWorkersInKeyOrder() throws Exception {
+        MockProducer<byte[], byte[]> mockProducer = new MockProducer<>(true, new ByteArraySerializer(), new ByteArraySerializer());
+        Map<String, String> serializingThreads = new ConcurrentHashMap<>();
+        StringSerializer valueSerializer = new StringSerializer() {
+            @Override
+            public byte[] serialize(String topic, Headers headers, String data) {
+                serializingThreads.put(data, Thread.currentThread().getName());
+                return super.serialize(topic, headers, data);
+            }
+        };
+        AtomicReference<RecordMetadata> callbackMetadata = new AtomicReference<>();
+
+        try (AsyncEncryptingProducer<String, String> producer = new AsyncEncryptingProducer<>(mockProducer,
+                new StringSerializer(), valueSerializer, 3, 2)) {
+            Future<RecordMetadata> future = null;
+            for (int i = 0; i < 20; i++) {
+                future = producer.send(new ProducerRecord<>("topic1", "key" + (i % 4), "value" + i),
+                        (metadata, exception) -> callbackMetadata.set(metadata));
+            }
+            producer.flush();
+
+            assertThat(future.get().topic()).isEqualTo("topic1");
+            assertThat(callbackMetadata.get()).isNotNull();
+        }
+
+        List<ProducerRecord<byte[], byte[]>> history = mockProducer.history();
+        assertThat(history).hasSize(20);
+        for (int key = 0; key < 4; key++) {
+            String expectedKey = "key" + key;
+            List<String> values = history.stream()
+                    .filter(r -> new String(r.key(), StandardCharsets.UTF_8).equals(expectedKey))
+                    .map(r -> new String(r.value(), StandardCharsets.UTF_8))
+                    .collect(Collectors.toList());
+            assertThat(values).containsExactly("value" + key, "value" + (key + 4), "value" + (key + 8),
+                    "value" + (key + 12), "value" + (key + 16));
+        }
+        assertThat(serializingThreads.values()).allMatch(name -> name.startsWith("kafka-encryption-producer-"));
+        assertThat(mockProducer.closed()).isTrue();
+    }
+
+    @Test
+    public void testSerializationErrorIsReportedThroughFutureAndCallback() throws Exception {
+        MockProducer<byte[], byte[]> mockProducer = new MockProducer<>(true, new ByteArraySerializer(), new ByteArraySerializer());
+        StringSerializer valueSerializer = new StringSerializer() {
+            @Override
+            public byte[] serialize(String topic, Headers headers, String data) {
+                throw new SerializationException("failure");
+            }
+        };
+        AtomicReference<Exception> callbackException = new AtomicReference<>();
+
+        try (AsyncEncryptingProducer<String, String> producer = new AsyncEncryptingProducer<>(mockProducer,
+                new StringSerializer(), valueSerializer, 1, 1)) {
+            Future<RecordMetadata> future = producer.send(new ProducerRecord<>("topic1", "key", "value"),
+                    (metadata, exception) -> callbackException.set(exception));
+
+            assertThatThrownBy(future::get).isInstanceOf(ExecutionException.class)
+                    .hasCauseInstanceOf(SerializationException.class);
+            assertThat(callbackException.get()).isInstanceOf(SerializationException.class);
+            assertThat(mockProducer.history()).isEmpty();
+        }
+    }
+
+    @Test
+    public void testEqualByteArrayKeysAreSentInOrder() {
+        MockProducer<byte[], byte[]> mockProducer = new MockProducer<>(true, new ByteArraySerializer(), new ByteArraySerializer());
+
+        try (AsyncEncryptingProducer<byte[], String> producer = new AsyncEncryptingProducer<>(mockProducer,
+                new ByteArraySerializer(), new StringSerializer(), 8, 4)) {
+            for (int i = 0; i < 50; i++) {
+                producer.send(new ProducerRecord<>("topic1", "key".getBytes(StandardCharsets.UTF_8), "value" + i));
+            }
+            producer.flush();
+        }
+
+        List<String> values = mockProducer.history().stream()
+                .map(r -> new String(r.value(), StandardCharsets.UTF_8))
+                .collect(Collectors.toList());
+        assertThat(values).containsExactlyElementsOf(
+                IntStream.range(0, 50).mapToObj(i -> "value" + i).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testCloseFailsQueuedRecordsBehindAFlush() throws Exception {
+        MockProducer<byte[], byte[]> mockProducer = new MockProducer<>(true, new ByteArraySerializer(), new ByteArraySerializer());
+        CountDownLatch serializing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        StringSerializer valueSerializer = new StringSerializer() {
+            @Override
+            public byte[] serialize(String topic, Headers headers, String data) {
+                if (data.equals("blocking")) {
+                    serializing.countDown();
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.serialize(topic, headers, data);
+            }
+        };
+        AsyncEncryptingProducer<String, String> producer = new AsyncEncryptingProducer<>(mockProducer,
+                new StringSerializer(), valueSerializer, 1, 2);
+        AtomicReference<Exception> flushException = new AtomicReference<>();
+
+        producer.send(new ProducerRecord<>("topic1", "key", "blocking"));
+        serializing.await();
+        Thread flushThread = new Thread(() -> {
+            try {
+                producer.flush();
+            }
+            catch (KafkaException e) {
+                flushException.set(e);
+            }
+        });
+        flushThread.start();
+        while (flushThread.getState() != Thread.State.WAITING) {
+            Thread.yield();
+        }
+        Future<RecordMetadata> queued = producer.send(new ProducerRecord<>("topic1", "key", "queued"));
+
+        producer.close(10, TimeUnit.MILLISECONDS);
+        release.countDown();
+        flushThread.join();
+
+        assertThatThrownBy(queued::get).isInstanceOf(ExecutionException.class).hasCauseInstanceOf(KafkaException.class);
+        assertThat(flushException.get()).isInstanceOf(KafkaException.class);
+        assertThat(mockProducer.closed()).isTrue();
+    }
+
+    @Test
+    public void testTransactionIsCommittedWithItsQueuedRecords() {
+        MockProducer<byte[], byte[]> mockProducer = new MockProducer<>(true, new ByteArraySerializer(), new ByteArraySerializer());
+
+        try (AsyncEncryptingProducer<String, String> producer = new AsyncEncryptingProducer<>(mockProducer,
+                new StringSerializer(), new StringSerializer(), 2, 4)) {
+            producer.initTransactions();
+            producer.beginTransaction();
+            for (int i = 0; i < 10; i++) {
+                producer.send(new ProducerRecord<>("topic1", "key" + i, "value" + i));
+            }
+            producer.commitTransaction();
+
+            assertThat(mockProducer.transactionCommitted()).isTrue();
+            assertThat(mockProducer.history()).hasSize(10);
+        }
+    }
+}
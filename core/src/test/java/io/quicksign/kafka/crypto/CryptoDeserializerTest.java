@@ -21,17 +21,19 @@ package io.quicksign.kafka.crypto;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verifyZeroInteractions;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 
 import org.apache.kafka.common.header.Headers;
 import org.apache.kafka.common.header.internals.RecordHeaders;
 import org.apache.kafka.common.serialization.Deserializer;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
@@ -44,9 +46,13 @@ public class CryptoDeserializerTest {
     @Mock
     Deserializer<String> rawDeserializer;
 
-    @InjectMocks
     CryptoDeserializer<String> cryptoDeserializer;
 
+    @Before
+    public void setUp() {
+        cryptoDeserializer = new CryptoDeserializer<>(rawDeserializer, decryptor);
+    }
+
     @Test
     public void testDeserializeWhenKeyRefIsSet() {
         byte[] encoded = "encoded".getBytes(StandardCharsets.UTF_8);
@@ -59,7 +65,8 @@ public class CryptoDeserializerTest {
         encodedValue.put(encoded);
 
 
-        given(decryptor.decrypt(encoded, keyRef)).willReturn("decoded".getBytes(StandardCharsets.UTF_8));
+        int headerSize = KafkaCryptoConstants.ENCRYPTED_PREFIX.length + Integer.BYTES + keyRef.length;
+        given(decryptor.decrypt(encodedValue.array(), headerSize, encoded.length, keyRef)).willReturn("decoded".getBytes(StandardCharsets.UTF_8));
         given(rawDeserializer.deserialize("topic1", new RecordHeaders(), "decoded".getBytes(StandardCharsets.UTF_8))).willReturn("deserialized value");
 
         RecordHeaders recordHeaders = new RecordHeaders();
@@ -90,6 +97,56 @@ public class CryptoDeserializerTest {
         verifyZeroInteractions(decryptor);
     }
 
+    @Test
+    public void testDeserializeSliceWhenKeyRefIsNotSet() {
+        @SuppressWarnings("unchecked")
+        SliceDeserializer<String> sliceDeserializer = mock(SliceDeserializer.class);
+        CryptoDeserializer<String> sliceCryptoDeserializer = new CryptoDeserializer<>(sliceDeserializer, decryptor);
+        Headers headers = new RecordHeaders();
+
+        byte[] clearValue = "clearValue".getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer rawValue = ByteBuffer.allocate(KafkaCryptoConstants.ENCRYPTED_PREFIX.length + Integer.BYTES + clearValue.length);
+        rawValue.put(KafkaCryptoConstants.ENCRYPTED_PREFIX);
+        rawValue.putInt(0);
+        rawValue.put(clearValue);
+
+        int headerSize = KafkaCryptoConstants.ENCRYPTED_PREFIX.length + Integer.BYTES;
+        given(sliceDeserializer.deserialize("topic1", headers, rawValue.array(), headerSize, clearValue.length)).willReturn("deserialized value");
+
+        String value = sliceCryptoDeserializer.deserialize("topic1", headers, rawValue.array());
+
+        assertThat(value).isEqualTo("deserialized value");
+        assertThat(headers.lastHeader(KafkaCryptoConstants.KEY_REF_HEADER).value()).isNull();
+        verifyZeroInteractions(decryptor);
+    }
+
+    @Test
+    public void testKeyRefHeaderModes() {
+        byte[] clearValue = "clearValue".getBytes(StandardCharsets.UTF_8);
+        byte[] keyRef = "keyref1".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer encodedValue = ByteBuffer.allocate(KafkaCryptoConstants.ENCRYPTED_PREFIX.length + Integer.BYTES + keyRef.length + 1);
+        encodedValue.put(KafkaCryptoConstants.ENCRYPTED_PREFIX);
+        encodedValue.putInt(keyRef.length);
+        encodedValue.put(keyRef);
+        given(decryptor.decrypt(encodedValue.array(), encodedValue.capacity() - 1, 1, keyRef)).willReturn(clearValue);
+
+        CryptoDeserializer<String> encryptedOnlyDeserializer = new CryptoDeserializer<>(rawDeserializer, decryptor,
+                Collections.emptyList(), KeyRefHeaderMode.ENCRYPTED_ONLY);
+        Headers clearHeaders = new RecordHeaders();
+        encryptedOnlyDeserializer.deserialize("topic1", clearHeaders, clearValue);
+        assertThat(clearHeaders.toArray()).isEmpty();
+        Headers encryptedHeaders = new RecordHeaders();
+        encryptedOnlyDeserializer.deserialize("topic1", encryptedHeaders, encodedValue.array());
+        assertThat(encryptedHeaders.lastHeader(KafkaCryptoConstants.KEY_REF_HEADER).value()).isEqualTo(keyRef);
+
+        CryptoDeserializer<String> noHeaderDeserializer = new CryptoDeserializer<>(rawDeserializer, decryptor,
+                Collections.emptyList(), KeyRefHeaderMode.NONE);
+        Headers headers = new RecordHeaders();
+        noHeaderDeserializer.deserialize("topic1", headers, encodedValue.array());
+        assertThat(headers.toArray()).isEmpty();
+    }
+
     @Test
     public void testDeserializeWhenNoEncryptionStructure() {
         Headers headers = new RecordHeaders();
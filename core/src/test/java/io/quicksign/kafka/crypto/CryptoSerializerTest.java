@@ -30,9 +30,9 @@ import java.nio.charset.StandardCharsets;
 import org.apache.kafka.common.header.Headers;
 import org.apache.kafka.common.header.internals.RecordHeaders;
 import org.apache.kafka.common.serialization.Serializer;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
@@ -48,9 +48,13 @@ public class CryptoSerializerTest {
     @Mock
     ThreadLocal<byte[]> keyRefHolder;
 
-    @InjectMocks
     CryptoSerializer<String> cryptoSerializer;
 
+    @Before
+    public void setUp() {
+        cryptoSerializer = new CryptoSerializer<>(rawSerializer, encryptor, keyRefHolder);
+    }
+
     @Test
     public void testSerializeWhenKeyRefHeaderIsSet() {
         final String keyRef = "org1";
@@ -62,8 +66,9 @@ public class CryptoSerializerTest {
         Headers headers = new RecordHeaders().add(KafkaCryptoConstants.KEY_REF_HEADER, toByteArray(keyRef));
         given(rawSerializer.serialize("topic1", headers, "final value"))
                 .willReturn("clear serialized value".getBytes(StandardCharsets.UTF_8));
-        given(encryptor.encrypt("clear serialized value".getBytes(StandardCharsets.UTF_8), toByteArray(keyRef)))
-                .willReturn(toByteArray(encoded));
+        final int headerSize = ENCRYPTED_PREFIX.length + Integer.BYTES + keyRefSize;
+        given(encryptor.encrypt("clear serialized value".getBytes(StandardCharsets.UTF_8), toByteArray(keyRef), headerSize))
+                .willReturn(withHeaderSpace(toByteArray(encoded), headerSize));
 
         byte[] result = cryptoSerializer.serialize("topic1", headers, "final value");
 
@@ -82,6 +87,23 @@ public class CryptoSerializerTest {
 
     }
 
+    @Test
+    public void testSerializeStripsKeyRefHeader() {
+        CryptoSerializer<String> strippingSerializer = new CryptoSerializer<>(rawSerializer, encryptor, null, null, 0, true);
+        final byte[] keyRef = toByteArray("org1");
+        Headers headers = new RecordHeaders().add(KafkaCryptoConstants.KEY_REF_HEADER, keyRef);
+        given(rawSerializer.serialize("topic1", headers, "final value"))
+                .willReturn(toByteArray("clear serialized value"));
+        final int headerSize = ENCRYPTED_PREFIX.length + Integer.BYTES + keyRef.length;
+        given(encryptor.encrypt(toByteArray("clear serialized value"), keyRef, headerSize))
+                .willReturn(withHeaderSpace(toByteArray("encodedValue"), headerSize));
+
+        byte[] result = strippingSerializer.serialize("topic1", headers, "final value");
+
+        assertThat(result).hasSize(headerSize + toByteArray("encodedValue").length);
+        assertThat(headers.lastHeader(KafkaCryptoConstants.KEY_REF_HEADER)).isNull();
+    }
+
     @Test
     public void testSerializeWhenKeyRefHeaderIsNotSet() {
         final String clearPayload = "clear serialized value";
@@ -124,8 +146,9 @@ public class CryptoSerializerTest {
 
         given(rawSerializer.serialize("topic1", "final value"))
                 .willReturn("clear serialized value".getBytes(StandardCharsets.UTF_8));
-        given(encryptor.encrypt("clear serialized value".getBytes(StandardCharsets.UTF_8), toByteArray(keyRef)))
-                .willReturn(toByteArray(encoded));
+        final int headerSize = ENCRYPTED_PREFIX.length + Integer.BYTES + keyRefSize;
+        given(encryptor.encrypt("clear serialized value".getBytes(StandardCharsets.UTF_8), toByteArray(keyRef), headerSize))
+                .willReturn(withHeaderSpace(toByteArray(encoded), headerSize));
 
         byte[] result = cryptoSerializer.serialize("topic1", "final value");
 
@@ -144,6 +167,12 @@ public class CryptoSerializerTest {
 
     }
 
+    private byte[] withHeaderSpace(byte[] encoded, int headerSize) {
+        byte[] result = new byte[headerSize + encoded.length];
+        System.arraycopy(encoded, 0, result, headerSize, encoded.length);
+        return result;
+    }
+
     private byte[] toByteArray(String s) {
         return s.getBytes(StandardCharsets.UTF_8);
     }
@@ -0,0 +1,140 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto;
+
+import static io.quicksign.kafka.crypto.KafkaCryptoConstants.ENCRYPTED_PREFIX;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Optional;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Test;
+
+import io.quicksign.kafka.crypto.compression.CompressionType;
+import io.quicksign.kafka.crypto.encryption.AesGcmCryptoAlgorithm;
+import io.quicksign.kafka.crypto.encryption.CryptoAlgorithm;
+import io.quicksign.kafka.crypto.encryption.CryptoAlgorithmRegistry;
+import io.quicksign.kafka.crypto.encryption.DefaultDecryptor;
+import io.quicksign.kafka.crypto.encryption.DefaultEncryptor;
+import io.quicksign.kafka.crypto.encryption.KeyProvider;
+import io.quicksign.kafka.crypto.encryption.StreamingAesGcmCryptoAlgorithm;
+
+public class EncryptedEnvelopeTest {
+
+    private final KeyProvider keyProvider = keyRef -> Optional.of(new byte[32]);
+    private final byte[] keyRef = new byte[200];
+
+    private final CryptoDeserializer<String> deserializer = new CryptoDeserializer<>(new StringDeserializer(),
+            new DefaultDecryptor(keyProvider, new CryptoAlgorithmRegistry(new LegacyCryptoAlgorithm())
+                    .register(new AesGcmCryptoAlgorithm())
+                    .register(new StreamingAesGcmCryptoAlgorithm(16))));
+
+    @Test
+    public void testVersion2IsWrittenForIdentifiedAlgorithms() {
+        byte[] serialized = serializer(new AesGcmCryptoAlgorithm()).serialize("topic", headers(), "value");
+
+        EncryptedEnvelope envelope = EncryptedEnvelope.parse(serialized);
+        assertThat(envelope.getVersion()).isEqualTo(EncryptedEnvelope.VERSION_2);
+        assertThat(envelope.getAlgorithmId()).isEqualTo(AesGcmCryptoAlgorithm.ALGORITHM_ID);
+        assertThat(envelope.getFlags()).isZero();
+        assertThat(envelope.getKeyRef()).isEqualTo(keyRef);
+        // 200 bytes keyref length is encoded on 2 bytes
+        assertThat(envelope.getPayloadOffset()).isEqualTo(ENCRYPTED_PREFIX.length + 3 + 2 + keyRef.length);
+        assertThat(deserializer.deserialize("topic", serialized)).isEqualTo("value");
+    }
+
+    @Test
+    public void testChunkedAndCompressedFlags() {
+        String value = "a long and very repetitive value, a long and very repetitive value";
+        byte[] serialized = new CryptoSerializer<String>(new StringSerializer(),
+                new DefaultEncryptor(keyProvider, new StreamingAesGcmCryptoAlgorithm(16)), null,
+                CompressionType.LZ4.codec(), 0).serialize("topic", headers(), value);
+
+        EncryptedEnvelope envelope = EncryptedEnvelope.parse(serialized);
+        assertThat(envelope.getAlgorithmId()).isEqualTo(StreamingAesGcmCryptoAlgorithm.ALGORITHM_ID);
+        assertThat(envelope.isChunked()).isTrue();
+        assertThat(envelope.isCompressed()).isTrue();
+        assertThat(envelope.getCompressionCodecId()).isEqualTo(CompressionType.LZ4.id());
+        assertThat(deserializer.deserialize("topic", serialized)).isEqualTo(value);
+    }
+
+    @Test
+    public void testVersion1IsStillWrittenAndReadForUnidentifiedAlgorithms() {
+        Headers headers = headers();
+        byte[] serialized = serializer(new LegacyCryptoAlgorithm()).serialize("topic", headers, "value");
+
+        EncryptedEnvelope envelope = EncryptedEnvelope.parse(serialized);
+        assertThat(envelope.getVersion()).isEqualTo(EncryptedEnvelope.VERSION_1);
+        assertThat(envelope.getAlgorithmId()).isEqualTo(EncryptedEnvelope.NO_ALGORITHM_ID);
+        assertThat(ByteBuffer.wrap(serialized, ENCRYPTED_PREFIX.length, 4).getInt()).isEqualTo(keyRef.length);
+        assertThat(deserializer.deserialize("topic", serialized)).isEqualTo("value");
+    }
+
+    @Test
+    public void testUnknownFlagsAreRejected() {
+        byte[] serialized = serializer(new AesGcmCryptoAlgorithm()).serialize("topic", headers(), "value");
+        serialized[ENCRYPTED_PREFIX.length + 2] = (byte) 0x80;
+        try {
+            EncryptedEnvelope.parse(serialized);
+            fail("should fail");
+        }
+        catch (SerializationException e) {
+            assertThat(e).hasMessageContaining("unknown envelope flags");
+        }
+    }
+
+    private CryptoSerializer<String> serializer(CryptoAlgorithm cryptoAlgorithm) {
+        return new CryptoSerializer<>(new StringSerializer(), new DefaultEncryptor(keyProvider, cryptoAlgorithm), null);
+    }
+
+    private Headers headers() {
+        return new RecordHeaders().add(KafkaCryptoConstants.KEY_REF_HEADER, keyRef);
+    }
+
+    /**
+     * algorithm without id, reversing the bytes
+     */
+    private static class LegacyCryptoAlgorithm implements CryptoAlgorithm {
+
+        @Override
+        public byte[] encrypt(byte[] data, byte[] key) {
+            return reverse(data);
+        }
+
+        @Override
+        public byte[] decrypt(byte[] encryptedData, byte[] key) {
+            return reverse(encryptedData);
+        }
+
+        private static byte[] reverse(byte[] data) {
+            byte[] result = new byte[data.length];
+            for (int i = 0; i < data.length; i++) {
+                result[i] = data[data.length - 1 - i];
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LazyCryptoDeserializerTest {
+
+    @Mock
+    Decryptor decryptor;
+
+    @Test
+    public void testValueIsDecryptedOnceOnFirstAccess() {
+        byte[] keyRef = "keyref1".getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = "encoded".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer encodedValue = ByteBuffer.allocate(KafkaCryptoConstants.ENCRYPTED_PREFIX.length + Integer.BYTES + keyRef.length + encoded.length);
+        encodedValue.put(KafkaCryptoConstants.ENCRYPTED_PREFIX);
+        encodedValue.putInt(keyRef.length);
+        encodedValue.put(keyRef);
+        encodedValue.put(encoded);
+        int headerSize = KafkaCryptoConstants.ENCRYPTED_PREFIX.length + Integer.BYTES + keyRef.length;
+        given(decryptor.decrypt(encodedValue.array(), headerSize, encoded.length, keyRef))
+                .willReturn("decoded".getBytes(StandardCharsets.UTF_8));
+        LazyCryptoDeserializer<String> deserializer = new LazyCryptoDeserializer<>(
+                new CryptoDeserializer<>(new StringDeserializer(), decryptor));
+        Headers headers = new RecordHeaders();
+
+        LazyDecrypted<String> lazyDecrypted = deserializer.deserialize("topic1", headers, encodedValue.array());
+
+        assertThat(lazyDecrypted.keyRef()).isEqualTo(keyRef);
+        assertThat(lazyDecrypted.isEncrypted()).isTrue();
+        assertThat(lazyDecrypted.isDecrypted()).isFalse();
+        verifyZeroInteractions(decryptor);
+
+        assertThat(lazyDecrypted.get()).isEqualTo("decoded");
+        assertThat(lazyDecrypted.get()).isEqualTo("decoded");
+        assertThat(lazyDecrypted.keyRef()).isEqualTo(keyRef);
+        assertThat(headers.lastHeader(KafkaCryptoConstants.KEY_REF_HEADER).value()).isEqualTo(keyRef);
+        verify(decryptor, times(1)).decrypt(encodedValue.array(), headerSize, encoded.length, keyRef);
+    }
+
+    @Test
+    public void testClearValue() {
+        LazyCryptoDeserializer<String> deserializer = new LazyCryptoDeserializer<>(
+                new CryptoDeserializer<>(new StringDeserializer(), decryptor));
+
+        LazyDecrypted<String> lazyDecrypted = deserializer.deserialize("topic1", "clear".getBytes(StandardCharsets.UTF_8));
+
+        assertThat(lazyDecrypted.keyRef()).isNull();
+        assertThat(lazyDecrypted.isEncrypted()).isFalse();
+        assertThat(lazyDecrypted.get()).isEqualTo("clear");
+        assertThat(deserializer.deserialize("topic1", null)).isNull();
+        verifyZeroInteractions(decryptor);
+    }
+}
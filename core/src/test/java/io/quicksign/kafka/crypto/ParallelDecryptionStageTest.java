@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.After;
+import org.junit.Test;
+
+import io.quicksign.kafka.crypto.compression.Lz4CompressionCodec;
+import io.quicksign.kafka.crypto.encryption.AesGcmCryptoAlgorithm;
+import io.quicksign.kafka.crypto.encryption.DefaultDecryptor;
+import io.quicksign.kafka.crypto.encryption.DefaultEncryptor;
+import io.quicksign.kafka.crypto.encryption.KeyProvider;
+
+public class ParallelDecryptionStageTest {
+
+    private final KeyProvider keyProvider = keyRef -> Optional.of(new byte[32]);
+    private final CryptoSerializer<String> serializer = new CryptoSerializer<>(new StringSerializer(),
+            new DefaultEncryptor(keyProvider, new AesGcmCryptoAlgorithm()), null);
+    private final CryptoDeserializer<String> deserializer = new CryptoDeserializer<>(new StringDeserializer(),
+            new DefaultDecryptor(keyProvider, new AesGcmCryptoAlgorithm()));
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void testRecordsAreDecryptedInOrder() {
+        ConsumerRecords<String, byte[]> records = encryptedRecords(3, 50);
+
+        for (long maxInFlightBytes : new long[]{1, 1000, Long.MAX_VALUE}) {
+            ConsumerRecords<String, String> result = new ParallelDecryptionStage<>(deserializer, pool, maxInFlightBytes)
+                    .process(records);
+
+            assertThat(result.count()).isEqualTo(150);
+            for (int partition = 0; partition < 3; partition++) {
+                List<ConsumerRecord<String, String>> partitionRecords = result.records(new TopicPartition("topic", partition));
+                assertThat(partitionRecords).hasSize(50);
+                for (int i = 0; i < 50; i++) {
+                    ConsumerRecord<String, String> record = partitionRecords.get(i);
+                    assertThat(record.offset()).isEqualTo(i);
+                    assertThat(record.key()).isEqualTo("key" + i);
+                    assertThat(record.value()).isEqualTo("value " + partition + "-" + i);
+                    assertThat(record.headers().lastHeader(KafkaCryptoConstants.KEY_REF_HEADER).value())
+                            .containsExactly(partition);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testNullAndClearValues() {
+        Map<TopicPartition, List<ConsumerRecord<String, byte[]>>> map = new HashMap<>();
+        List<ConsumerRecord<String, byte[]>> list = new ArrayList<>();
+        list.add(new ConsumerRecord<>("topic", 0, 0, "tombstone", null));
+        list.add(new ConsumerRecord<>("topic", 0, 1, "clear", "clear value".getBytes(StandardCharsets.UTF_8)));
+        map.put(new TopicPartition("topic", 0), list);
+
+        ConsumerRecords<String, String> result = new ParallelDecryptionStage<>(deserializer, pool, 100)
+                .process(new ConsumerRecords<>(map));
+
+        List<ConsumerRecord<String, String>> records = result.records(new TopicPartition("topic", 0));
+        assertThat(records.get(0).value()).isNull();
+        assertThat(records.get(1).value()).isEqualTo("clear value");
+    }
+
+    @Test
+    public void testFailuresDoNotDropTheRecordsOfOtherPartitions() {
+        KeyProvider failingKeyProvider = keyRef -> {
+            if (keyRef[0] == 2) {
+                throw new IllegalStateException("key service unavailable");
+            }
+            return Optional.of(new byte[32]);
+        };
+        StringDeserializer failingDeserializer = new StringDeserializer() {
+            @Override
+            public String deserialize(String topic, byte[] data) {
+                String value = super.deserialize(topic, data);
+                if ("value 1-3".equals(value)) {
+                    throw new SerializationException("malformed value");
+                }
+                return value;
+            }
+        };
+        CryptoDeserializer<String> cryptoDeserializer = new CryptoDeserializer<>(failingDeserializer,
+                new DefaultDecryptor(failingKeyProvider, new AesGcmCryptoAlgorithm()));
+        ParallelDecryptionStage<String> stage = new ParallelDecryptionStage<>(cryptoDeserializer, pool, 1000);
+
+        assertThatThrownBy(() -> stage.process(encryptedRecords(3, 10)))
+                .isInstanceOfSatisfying(ParallelDecryptionException.class, e -> {
+                    Map<TopicPartition, Long> failedOffsets = new HashMap<>();
+                    failedOffsets.put(new TopicPartition("topic", 1), 3L);
+                    failedOffsets.put(new TopicPartition("topic", 2), 0L);
+                    assertThat(e.getFailedOffsets()).isEqualTo(failedOffsets);
+                    assertThat(e.getProcessedRecords().records(new TopicPartition("topic", 0))).hasSize(10);
+                    assertThat(e.getProcessedRecords().records(new TopicPartition("topic", 1)))
+                            .extracting(ConsumerRecord::offset).containsExactly(0L, 1L, 2L);
+                    assertThat(e.getProcessedRecords().records(new TopicPartition("topic", 2))).isEmpty();
+                });
+    }
+
+    @Test
+    public void testDecompressedSizeIsCountedInFlight() {
+        CryptoSerializer<String> compressingSerializer = new CryptoSerializer<>(new StringSerializer(),
+                new DefaultEncryptor(keyProvider, new AesGcmCryptoAlgorithm()), null, new Lz4CompressionCodec(), 0);
+        String largeValue = String.join("", Collections.nCopies(10_000, "a"));
+        List<ConsumerRecord<String, byte[]>> list = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            Headers headers = new RecordHeaders().add(KafkaCryptoConstants.KEY_REF_HEADER, new byte[]{0});
+            list.add(new ConsumerRecord<>("topic", 0, i, "key" + i, compressingSerializer.serialize("topic", headers, largeValue)));
+        }
+        assertThat(list.get(0).value().length).isLessThan(1000);
+
+        // a single decompressed value exceeds the limit
+        ConsumerRecords<String, String> result = new ParallelDecryptionStage<>(deserializer, pool, 5000)
+                .process(new ConsumerRecords<>(Collections.singletonMap(new TopicPartition("topic", 0), list)));
+
+        assertThat(result.records(new TopicPartition("topic", 0))).extracting(ConsumerRecord::value)
+                .hasSize(20).containsOnly(largeValue);
+    }
+
+    private ConsumerRecords<String, byte[]> encryptedRecords(int partitions, int recordsPerPartition) {
+        Map<TopicPartition, List<ConsumerRecord<String, byte[]>>> map = new HashMap<>();
+        for (int partition = 0; partition < partitions; partition++) {
+            List<ConsumerRecord<String, byte[]>> list = new ArrayList<>();
+            for (int i = 0; i < recordsPerPartition; i++) {
+                Headers headers = new RecordHeaders().add(KafkaCryptoConstants.KEY_REF_HEADER, new byte[]{(byte) partition});
+                byte[] value = serializer.serialize("topic", headers, "value " + partition + "-" + i);
+                list.add(new ConsumerRecord<>("topic", partition, i, "key" + i, value));
+            }
+            map.put(new TopicPartition("topic", partition), list);
+        }
+        return new ConsumerRecords<>(map);
+    }
+}
@@ -0,0 +1,368 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import io.quicksign.kafka.crypto.encryption.AsyncKeyProvider;
+import io.quicksign.kafka.crypto.encryption.KeyHandle;
+import io.quicksign.kafka.crypto.encryption.KeyProvider;
+
+public class CachingKeyProviderTest {
+
+    private final KeyProvider delegate = mock(KeyProvider.class);
+    private final AtomicLong time = new AtomicLong();
+
+    @Test
+    public void testKeyIsLoadedOnceAndMatchedByContent() {
+        given(delegate.getKey(any(byte[].class))).willReturn(Optional.of(bytes("key1")));
+        CachingKeyProvider cachingKeyProvider = CachingKeyProvider.builder(delegate).build();
+
+        assertThat(cachingKeyProvider.getKey(bytes("keyref1"))).contains(bytes("key1"));
+        assertThat(cachingKeyProvider.getKey(bytes("keyref1"))).contains(bytes("key1"));
+
+        verify(delegate, times(1)).getKey(any(byte[].class));
+        CacheStats stats = cachingKeyProvider.stats();
+        assertThat(stats.getHitCount()).isEqualTo(1);
+        assertThat(stats.getMissCount()).isEqualTo(1);
+        assertThat(stats.getLoadSuccessCount()).isEqualTo(1);
+        assertThat(stats.getHitRatio()).isEqualTo(0.5);
+    }
+
+    @Test
+    public void testPreloadRequestsAllKeysBeforeWaitingWithAsyncKeyProvider() {
+        List<CompletableFuture<Optional<byte[]>>> pending = new ArrayList<>();
+        AsyncKeyProvider asyncDelegate = keyRef -> {
+            CompletableFuture<Optional<byte[]>> loading = new CompletableFuture<>();
+            pending.add(loading);
+            if (pending.size() == 3) {
+                pending.forEach(future -> future.complete(Optional.of(bytes("key"))));
+            }
+            return loading;
+        };
+        CachingKeyProvider cachingKeyProvider = CachingKeyProvider.builder(asyncDelegate.toKeyProvider()).build();
+
+        cachingKeyProvider.preload(Arrays.asList(bytes("keyref1"), bytes("keyref2"), bytes("keyref3")));
+
+        assertThat(cachingKeyProvider.contains(bytes("keyref1"))).isTrue();
+        assertThat(cachingKeyProvider.contains(bytes("keyref3"))).isTrue();
+        assertThat(cachingKeyProvider.stats().getLoadSuccessCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void testKeyExpiresAfterWrite() {
+        given(delegate.getKey(any(byte[].class))).willReturn(Optional.of(bytes("key1")));
+        CachingKeyProvider cachingKeyProvider = CachingKeyProvider.builder(delegate)
+                .expireAfterWrite(Duration.ofSeconds(10))
+                .ticker(time::get)
+                .build();
+
+        cachingKeyProvider.getKey(bytes("keyref1"));
+        time.set(TimeUnit.SECONDS.toNanos(9));
+        cachingKeyProvider.getKey(bytes("keyref1"));
+        verify(delegate, times(1)).getKey(any(byte[].class));
+
+        time.set(TimeUnit.SECONDS.toNanos(10));
+        cachingKeyProvider.getKey(bytes("keyref1"));
+        verify(delegate, times(2)).getKey(any(byte[].class));
+    }
+
+    @Test
+    public void testKeyIsRefreshedAheadOfExpiration() {
+        given(delegate.getKey(any(byte[].class)))
+                .willReturn(Optional.of(bytes("key1")))
+                .willReturn(Optional.of(bytes("key2")));
+        CachingKeyProvider cachingKeyProvider = CachingKeyProvider.builder(delegate)
+                .expireAfterWrite(Duration.ofSeconds(10))
+                .refreshAfterWrite(Duration.ofSeconds(5))
+                .refreshExecutor(Runnable::run)
+                .ticker(time::get)
+                .build();
+
+        cachingKeyProvider.getKey(bytes("keyref1"));
+        time.set(TimeUnit.SECONDS.toNanos(6));
+
+        assertThat(cachingKeyProvider.getKey(bytes("keyref1"))).contains(bytes("key1"));
+        assertThat(cachingKeyProvider.getKey(bytes("keyref1"))).contains(bytes("key2"));
+        assertThat(cachingKeyProvider.stats().getRefreshCount()).isEqualTo(1);
+        assertThat(cachingKeyProvider.stats().getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testMissDuringRefreshWaitsForTheRefresh() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch refreshStarted = new CountDownLatch(1);
+        CountDownLatch refreshReleased = new CountDownLatch(1);
+        KeyProvider slowDelegate = keyRef -> {
+            if (loads.incrementAndGet() == 1) {
+                return Optional.of(bytes("key1"));
+            }
+            refreshStarted.countDown();
+            try {
+                refreshReleased.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Optional.of(bytes("key2"));
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            CachingKeyProvider cachingKeyProvider = CachingKeyProvider.builder(slowDelegate)
+                    .expireAfterWrite(Duration.ofSeconds(10))
+                    .refreshAfterWrite(Duration.ofSeconds(5))
+                    .refreshExecutor(executor)
+                    .ticker(time::get)
+                    .build();
+            cachingKeyProvider.getKey(bytes("keyref1"));
+            time.set(TimeUnit.SECONDS.toNanos(6));
+            assertThat(cachingKeyProvider.getKey(bytes("keyref1"))).contains(bytes("key1"));
+            refreshStarted.await();
+
+            time.set(TimeUnit.SECONDS.toNanos(11));
+            Future<Optional<byte[]>> miss = executor.submit(() -> cachingKeyProvider.getKey(bytes("keyref1")));
+            Thread.sleep(100);
+            refreshReleased.countDown();
+
+            assertThat(miss.get()).contains(bytes("key2"));
+            assertThat(loads.get()).isEqualTo(2);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testKeysAreNotRefreshedAfterClose() {
+        given(delegate.getKey(any(byte[].class))).willReturn(Optional.of(bytes("key1")));
+        CachingKeyProvider cachingKeyProvider = CachingKeyProvider.builder(delegate)
+                .expireAfterWrite(Duration.ofSeconds(10))
+                .refreshAfterWrite(Duration.ofSeconds(5))
+                .ticker(time::get)
+                .build();
+        cachingKeyProvider.getKey(bytes("keyref1"));
+
+        cachingKeyProvider.close();
+        time.set(TimeUnit.SECONDS.toNanos(6));
+
+        assertThat(cachingKeyProvider.getKey(bytes("keyref1"))).contains(bytes("key1"));
+        assertThat(cachingKeyProvider.stats().getRefreshCount()).isEqualTo(0);
+        verify(delegate, times(1)).getKey(any(byte[].class));
+    }
+
+    @Test
+    public void testNegativeResultsAreCachedSeparately() {
+        given(delegate.getKey(any(byte[].class))).willReturn(Optional.empty());
+        CachingKeyProvider cachingKeyProvider = CachingKeyProvider.builder(delegate)
+                .expireAfterWrite(Duration.ofHours(1))
+                .negativeExpireAfterWrite(Duration.ofSeconds(1))
+                .ticker(time::get)
+                .build();
+
+        assertThat(cachingKeyProvider.getKey(bytes("keyref1"))).isEmpty();
+        assertThat(cachingKeyProvider.getKey(bytes("keyref1"))).isEmpty();
+        verify(delegate, times(1)).getKey(any(byte[].class));
+        assertThat(cachingKeyProvider.stats().getNegativeHitCount()).isEqualTo(1);
+
+        time.set(TimeUnit.SECONDS.toNanos(1));
+        cachingKeyProvider.getKey(bytes("keyref1"));
+        verify(delegate, times(2)).getKey(any(byte[].class));
+    }
+
+    @Test
+    public void testNegativeResultsAreNotCachedByDefault() {
+        given(delegate.getKey(any(byte[].class))).willReturn(Optional.empty());
+        CachingKeyProvider cachingKeyProvider = CachingKeyProvider.builder(delegate).build();
+
+        cachingKeyProvider.getKey(bytes("keyref1"));
+        cachingKeyProvider.getKey(bytes("keyref1"));
+
+        verify(delegate, times(2)).getKey(any(byte[].class));
+        assertThat(cachingKeyProvider.size()).isZero();
+    }
+
+    @Test
+    public void testEldestEntriesAreEvictedWhenMaximumSizeIsReached() {
+        given(delegate.getKey(any(byte[].class))).willReturn(Optional.of(bytes("key")));
+        CachingKeyProvider cachingKeyProvider = CachingKeyProvider.builder(delegate).maximumSize(2).build();
+
+        cachingKeyProvider.getKey(bytes("keyref1"));
+        cachingKeyProvider.getKey(bytes("keyref2"));
+        cachingKeyProvider.getKey(bytes("keyref3"));
+
+        assertThat(cachingKeyProvider.size()).isEqualTo(2);
+        assertThat(cachingKeyProvider.contains(bytes("keyref1"))).isFalse();
+        assertThat(cachingKeyProvider.contains(bytes("keyref3"))).isTrue();
+        assertThat(cachingKeyProvider.stats().getEvictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testEntriesAreEvictedWhenMemoryBudgetIsReached() {
+        given(delegate.getKey(any(byte[].class))).willReturn(Optional.of(new byte[32]));
+        long entryWeight = CachingKeyProvider.ENTRY_OVERHEAD + bytes("keyref1").length + 32;
+        CachingKeyProvider cachingKeyProvider = CachingKeyProvider.builder(delegate)
+                .maximumWeight(2 * entryWeight)
+                .build();
+
+        cachingKeyProvider.getKey(bytes("keyref1"));
+        cachingKeyProvider.getKey(bytes("keyref2"));
+        assertThat(cachingKeyProvider.weight()).isEqualTo(2 * entryWeight);
+
+        cachingKeyProvider.getKey(bytes("keyref3"));
+        assertThat(cachingKeyProvider.size()).isEqualTo(2);
+        assertThat(cachingKeyProvider.weight()).isEqualTo(2 * entryWeight);
+    }
+
+    @Test
+    public void testInvalidate() {
+        given(delegate.getKey(any(byte[].class))).willReturn(Optional.of(bytes("key")));
+        CachingKeyProvider cachingKeyProvider = CachingKeyProvider.builder(delegate).build();
+
+        cachingKeyProvider.getKey(bytes("keyref1"));
+        cachingKeyProvider.invalidate(bytes("keyref1"));
+
+        assertThat(cachingKeyProvider.contains(bytes("keyref1"))).isFalse();
+        assertThat(cachingKeyProvider.weight()).isZero();
+    }
+
+    @Test
+    public void testConcurrentMissesAreServedByASingleLoad() throws Exception {
+        CountDownLatch loadStarted = new CountDownLatch(1);
+        CountDownLatch releaseLoad = new CountDownLatch(1);
+        AtomicInteger loadCount = new AtomicInteger();
+        CachingKeyProvider cachingKeyProvider = CachingKeyProvider.builder(keyRef -> {
+            loadCount.incrementAndGet();
+            loadStarted.countDown();
+            try {
+                releaseLoad.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Optional.of(bytes("key"));
+        }).build();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Optional<byte[]>>> futures = new ArrayList<>();
+            futures.add(executorService.submit(() -> cachingKeyProvider.getKey(bytes("keyref1"))));
+            loadStarted.await();
+            for (int i = 0; i < 7; i++) {
+                futures.add(executorService.submit(() -> cachingKeyProvider.getKey(bytes("keyref1"))));
+            }
+            Thread.sleep(100L);
+            releaseLoad.countDown();
+            for (Future<Optional<byte[]>> future : futures) {
+                assertThat(future.get()).contains(bytes("key"));
+            }
+        }
+        finally {
+            executorService.shutdown();
+        }
+
+        assertThat(loadCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testLoadFailuresAreNotCached() {
+        given(delegate.getKey(any(byte[].class)))
+                .willThrow(new IllegalStateException("key service unavailable"))
+                .willReturn(Optional.of(bytes("key")));
+        CachingKeyProvider cachingKeyProvider = CachingKeyProvider.builder(delegate).build();
+
+        try {
+            cachingKeyProvider.getKey(bytes("keyref1"));
+            fail("the load failure should be propagated");
+        }
+        catch (IllegalStateException e) {
+            assertThat(e).hasMessage("key service unavailable");
+        }
+
+        assertThat(cachingKeyProvider.getKey(bytes("keyref1"))).contains(bytes("key"));
+        assertThat(cachingKeyProvider.stats().getLoadFailureCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testKeyHandleIsBuiltOncePerLoadedKey() {
+        given(delegate.getKey(bytes("keyref1"))).willReturn(Optional.of(bytes("key")));
+        CachingKeyProvider cachingKeyProvider = CachingKeyProvider.builder(delegate).build();
+
+        Optional<KeyHandle> first = cachingKeyProvider.getKeyHandle(bytes("keyref1"));
+        Optional<KeyHandle> second = cachingKeyProvider.getKeyHandle(bytes("keyref1"));
+
+        assertThat(first).isPresent();
+        assertThat(second.get()).isSameAs(first.get());
+        assertThat(first.get().getSecretKey().getEncoded()).isEqualTo(bytes("key"));
+        assertThat(cachingKeyProvider.getKeyHandle(bytes("unknown"))).isEmpty();
+    }
+
+    @Test
+    public void testKeyHandleIsRetrievedAsynchronouslyWithAsyncKeyProvider() throws Exception {
+        CompletableFuture<Optional<byte[]>> pendingKey = new CompletableFuture<>();
+        AsyncKeyProvider asyncDelegate = keyRef -> pendingKey;
+        CachingKeyProvider cachingKeyProvider = CachingKeyProvider.builder(asyncDelegate.toKeyProvider()).build();
+
+        CompletableFuture<Optional<KeyHandle>> handle = cachingKeyProvider.getKeyHandleAsync(bytes("keyref1")).toCompletableFuture();
+        assertThat(handle).isNotDone();
+        pendingKey.complete(Optional.of(bytes("key")));
+
+        assertThat(handle.get().get()).isSameAs(cachingKeyProvider.getKeyHandle(bytes("keyref1")).get());
+    }
+
+    @Test
+    public void testPreload() {
+        given(delegate.getKey(any(byte[].class))).willReturn(Optional.of(bytes("key")));
+        CachingKeyProvider cachingKeyProvider = CachingKeyProvider.builder(delegate).build();
+
+        cachingKeyProvider.preload(Arrays.asList(bytes("keyref1"), bytes("keyref2"), bytes("keyref1")));
+
+        assertThat(cachingKeyProvider.size()).isEqualTo(2);
+        verify(delegate, times(2)).getKey(any(byte[].class));
+        assertThat(cachingKeyProvider.stats().getRequestCount()).isZero();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,184 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.junit.Test;
+
+import io.quicksign.kafka.crypto.CryptoDeserializer;
+import io.quicksign.kafka.crypto.Decryptor;
+import io.quicksign.kafka.crypto.KafkaCryptoConstants;
+import io.quicksign.kafka.crypto.KeyRefHeaderMode;
+import io.quicksign.kafka.crypto.encryption.KeyProvider;
+
+public class KeyCacheRebalanceListenerTest {
+
+    private final TopicPartition partition0 = new TopicPartition("topic1", 0);
+    private final TopicPartition partition1 = new TopicPartition("topic1", 1);
+    private final KeyProvider delegate = mock(KeyProvider.class);
+    private final CachingKeyProvider cache = CachingKeyProvider.builder(delegate).build();
+    @SuppressWarnings("unchecked")
+    private final Consumer<byte[], byte[]> consumer = mock(Consumer.class);
+    private final MockConsumer<byte[], byte[]> scanConsumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+
+    @Test
+    public void testLookbackWindowIsPreloadedAndRevokedKeysInvalidated() {
+        given(delegate.getKey(any(byte[].class))).willReturn(Optional.of(bytes("key")));
+        given(consumer.position(partition0)).willReturn(5L);
+        given(consumer.position(partition1)).willReturn(1L);
+        Map<TopicPartition, Long> beginningOffsets = new HashMap<>();
+        beginningOffsets.put(partition0, 0L);
+        beginningOffsets.put(partition1, 0L);
+        scanConsumer.updateBeginningOffsets(beginningOffsets);
+        scanConsumer.schedulePollTask(() -> {
+            scanConsumer.addRecord(record(partition0, 0, encrypted("keyref1")));
+            scanConsumer.addRecord(record(partition0, 1, encrypted("keyref2")));
+            scanConsumer.addRecord(record(partition0, 2, encrypted("keyref1")));
+            scanConsumer.addRecord(record(partition0, 3, bytes("clear value")));
+            scanConsumer.addRecord(record(partition0, 4, encrypted("keyref3")));
+            scanConsumer.addRecord(record(partition1, 0, encrypted("keyref3")));
+        });
+        KeyCacheRebalanceListener listener = new KeyCacheRebalanceListener(cache, consumer, scanConsumer, 3, Duration.ofSeconds(5));
+
+        listener.onPartitionsAssigned(Arrays.asList(partition0, partition1));
+
+        assertThat(cache.contains(bytes("keyref1"))).isTrue();
+        assertThat(cache.contains(bytes("keyref2"))).isFalse();
+        assertThat(cache.contains(bytes("keyref3"))).isTrue();
+        assertThat(scanConsumer.assignment()).isEmpty();
+
+        listener.onPartitionsRevoked(Collections.singletonList(partition0));
+
+        assertThat(cache.contains(bytes("keyref1"))).isFalse();
+        assertThat(cache.contains(bytes("keyref3"))).isTrue();
+    }
+
+    @Test
+    public void testTrackedKeysAreInvalidatedOnRevocation() {
+        given(delegate.getKey(any(byte[].class))).willReturn(Optional.of(bytes("key")));
+        KeyCacheRebalanceListener listener = new KeyCacheRebalanceListener(cache, consumer, scanConsumer, 0, Duration.ofSeconds(5));
+        cache.getKey(bytes("keyref1"));
+        cache.getKey(bytes("keyref2"));
+        ConsumerRecord<byte[], byte[]> record = record(partition1, 0, bytes("decrypted"));
+        record.headers().add(KafkaCryptoConstants.KEY_REF_HEADER, bytes("keyref1"));
+
+        listener.onPartitionsAssigned(Collections.singletonList(partition1));
+        listener.track(new ConsumerRecords<>(Collections.singletonMap(partition1, Collections.singletonList(record))));
+        listener.onPartitionsRevoked(Collections.singletonList(partition1));
+
+        assertThat(cache.contains(bytes("keyref1"))).isFalse();
+        assertThat(cache.contains(bytes("keyref2"))).isTrue();
+        verify(consumer, never()).position(any(TopicPartition.class));
+    }
+
+    @Test
+    public void testKeysEvictedFromTheCacheAreNoLongerTracked() {
+        given(delegate.getKey(any(byte[].class))).willReturn(Optional.of(bytes("key")));
+        CachingKeyProvider smallCache = CachingKeyProvider.builder(delegate).maximumSize(10).build();
+        KeyCacheRebalanceListener listener = new KeyCacheRebalanceListener(smallCache, consumer, scanConsumer, 0, Duration.ofSeconds(5));
+
+        for (int i = 0; i < 10_000; i++) {
+            // one key per record, loaded when the record is decrypted
+            smallCache.getKey(bytes("keyref" + i));
+            ConsumerRecord<byte[], byte[]> record = record(partition0, i, bytes("decrypted"));
+            record.headers().add(KafkaCryptoConstants.KEY_REF_HEADER, bytes("keyref" + i));
+            listener.track(new ConsumerRecords<>(Collections.singletonMap(partition0, Collections.singletonList(record))));
+        }
+
+        assertThat(listener.trackedKeyRefCount()).isLessThanOrEqualTo(2048);
+        listener.onPartitionsRevoked(Collections.singletonList(partition0));
+        assertThat(smallCache.size()).isZero();
+    }
+
+    @Test
+    public void testRevocationWithDecryptedRecords() {
+        given(delegate.getKey(any(byte[].class))).willReturn(Optional.of(bytes("key")));
+        Decryptor decryptor = mock(Decryptor.class);
+        given(decryptor.decrypt(any(byte[].class), anyInt(), anyInt(), any(byte[].class))).willReturn(bytes("clear"));
+        KeyCacheRebalanceListener listener = new KeyCacheRebalanceListener(cache, consumer, scanConsumer, 0, Duration.ofSeconds(5));
+        cache.getKey(bytes("keyref1"));
+        cache.getKey(bytes("keyref2"));
+
+        listener.track(decrypted(partition0, "keyref1", KeyRefHeaderMode.ENCRYPTED_ONLY, decryptor));
+        listener.track(decrypted(partition1, "keyref2", KeyRefHeaderMode.NONE, decryptor));
+        listener.onPartitionsRevoked(Arrays.asList(partition0, partition1));
+
+        // without the header, the key reference of a decrypted record is unknown
+        assertThat(cache.contains(bytes("keyref1"))).isFalse();
+        assertThat(cache.contains(bytes("keyref2"))).isTrue();
+    }
+
+    private static ConsumerRecords<String, String> decrypted(TopicPartition partition, String keyRef,
+                                                             KeyRefHeaderMode keyRefHeaderMode, Decryptor decryptor) {
+        CryptoDeserializer<String> deserializer = new CryptoDeserializer<>(new StringDeserializer(), decryptor,
+                Collections.emptyList(), keyRefHeaderMode);
+        RecordHeaders headers = new RecordHeaders();
+        String value = deserializer.deserialize(partition.topic(), headers, encrypted(keyRef));
+        ConsumerRecord<String, String> decrypted = new ConsumerRecord<>(partition.topic(), partition.partition(), 0,
+                ConsumerRecord.NO_TIMESTAMP, TimestampType.NO_TIMESTAMP_TYPE, (long) ConsumerRecord.NULL_CHECKSUM,
+                ConsumerRecord.NULL_SIZE, ConsumerRecord.NULL_SIZE, null, value, headers);
+        assertThat(decrypted.value()).isEqualTo("clear");
+        return new ConsumerRecords<>(Collections.singletonMap(partition, Collections.singletonList(decrypted)));
+    }
+
+    private static ConsumerRecord<byte[], byte[]> record(TopicPartition partition, long offset, byte[] value) {
+        return new ConsumerRecord<>(partition.topic(), partition.partition(), offset, null, value);
+    }
+
+    private static byte[] encrypted(String keyRef) {
+        byte[] keyRefBytes = bytes(keyRef);
+        byte[] payload = bytes("encrypted");
+        return ByteBuffer.allocate(KafkaCryptoConstants.ENCRYPTED_PREFIX.length + Integer.BYTES + keyRefBytes.length + payload.length)
+                .put(KafkaCryptoConstants.ENCRYPTED_PREFIX)
+                .putInt(keyRefBytes.length)
+                .put(keyRefBytes)
+                .put(payload)
+                .array();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
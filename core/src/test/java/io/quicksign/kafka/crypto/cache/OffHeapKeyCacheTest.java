@@ -0,0 +1,130 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.cache;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import io.quicksign.kafka.crypto.encryption.KeyProvider;
+
+public class OffHeapKeyCacheTest {
+
+    private final KeyProvider delegate = mock(KeyProvider.class);
+
+    @Test
+    public void testKeyIsLoadedOnce() {
+        given(delegate.getKey(any(byte[].class))).will(invocation -> Optional.of(key((byte[]) invocation.getArguments()[0])));
+        OffHeapKeyCache cache = new OffHeapKeyCache(delegate, 100, 32);
+
+        assertThat(cache.getKey(bytes("keyref1"))).contains(key(bytes("keyref1")));
+        assertThat(cache.getKey(bytes("keyref1"))).contains(key(bytes("keyref1")));
+
+        verify(delegate, times(1)).getKey(any(byte[].class));
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.stats().getHitCount()).isEqualTo(1);
+        assertThat(cache.stats().getMissCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testClockEvictionGivesSecondChanceToReadKeys() {
+        given(delegate.getKey(any(byte[].class))).will(invocation -> Optional.of(key((byte[]) invocation.getArguments()[0])));
+        OffHeapKeyCache cache = new OffHeapKeyCache(delegate, 16, 32);
+        for (int i = 0; i < 16; i++) {
+            cache.getKey(bytes("keyref" + i));
+        }
+        cache.getKey(bytes("keyref0"));
+
+        cache.getKey(bytes("keyref16"));
+
+        assertThat(cache.size()).isEqualTo(16);
+        assertThat(cache.stats().getEvictionCount()).isEqualTo(1);
+        cache.getKey(bytes("keyref0"));
+        verify(delegate, times(1)).getKey(bytes("keyref0"));
+        cache.getKey(bytes("keyref1"));
+        verify(delegate, times(2)).getKey(bytes("keyref1"));
+    }
+
+    @Test
+    public void testInvalidateAndUncacheableValues() {
+        given(delegate.getKey(bytes("keyref1"))).willReturn(Optional.of(bytes("key1")));
+        given(delegate.getKey(bytes("large"))).willReturn(Optional.of(new byte[64]));
+        given(delegate.getKey(bytes("unknown"))).willReturn(Optional.empty());
+        OffHeapKeyCache cache = new OffHeapKeyCache(delegate, 100, 32);
+
+        cache.getKey(bytes("keyref1"));
+        cache.invalidate(bytes("keyref1"));
+        assertThat(cache.getKey(bytes("keyref1"))).contains(bytes("key1"));
+        verify(delegate, times(2)).getKey(bytes("keyref1"));
+
+        assertThat(cache.getKey(bytes("large"))).isPresent();
+        assertThat(cache.getKey(bytes("unknown"))).isEmpty();
+        assertThat(cache.size()).isEqualTo(1);
+
+        cache.close();
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void testIndexStaysConsistentWithRandomInsertionsAndRemovals() {
+        given(delegate.getKey(any(byte[].class))).will(invocation -> Optional.of(key((byte[]) invocation.getArguments()[0])));
+        OffHeapKeyCache cache = new OffHeapKeyCache(delegate, 16, 32);
+        Set<String> cached = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 10_000; i++) {
+            String keyRef = "keyref" + random.nextInt(16);
+            if (random.nextInt(3) == 0) {
+                cache.invalidate(bytes(keyRef));
+                cached.remove(keyRef);
+            }
+            else {
+                assertThat(cache.getKey(bytes(keyRef))).contains(key(bytes(keyRef)));
+                cached.add(keyRef);
+            }
+        }
+        assertThat(cache.size()).isEqualTo(cached.size());
+        assertThat(cache.stats().getEvictionCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void testMurmur3() {
+        assertThat(OffHeapKeyCache.murmur3(new byte[0], 0)).containsExactly(0L, 0L);
+        assertThat(OffHeapKeyCache.murmur3(bytes("hello"), 0)).containsExactly(0xcbd8a7b341bd9b02L, 0x5b1e906a48ae1d19L);
+    }
+
+    private static byte[] key(byte[] keyRef) {
+        return ("key-" + new String(keyRef, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.compression;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Optional;
+
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Test;
+
+import io.quicksign.kafka.crypto.CryptoDeserializer;
+import io.quicksign.kafka.crypto.CryptoSerializer;
+import io.quicksign.kafka.crypto.EncryptedEnvelope;
+import io.quicksign.kafka.crypto.KafkaCryptoConstants;
+import io.quicksign.kafka.crypto.encryption.AesGcmCryptoAlgorithm;
+import io.quicksign.kafka.crypto.encryption.DefaultDecryptor;
+import io.quicksign.kafka.crypto.encryption.DefaultEncryptor;
+import io.quicksign.kafka.crypto.encryption.KeyProvider;
+
+public class CompressionCodecTest {
+
+    private static final String VALUE = String.join(",", Collections.nCopies(200, "a compressible value"));
+
+    private final KeyProvider keyProvider = keyRef -> Optional.of(new byte[32]);
+    private final AesGcmCryptoAlgorithm cryptoAlgorithm = new AesGcmCryptoAlgorithm();
+    private final CryptoDeserializer<String> deserializer = new CryptoDeserializer<>(new StringDeserializer(),
+            new DefaultDecryptor(keyProvider, cryptoAlgorithm));
+
+    @Test
+    public void testBuiltInCodecsRoundTrip() {
+        byte[] data = VALUE.getBytes(StandardCharsets.UTF_8);
+        for (CompressionType compressionType : CompressionType.values()) {
+            CompressionCodec codec = compressionType.codec();
+            assertThat(codec.id()).isEqualTo(compressionType.id());
+
+            byte[] compressed = codec.compress(data);
+            assertThat(compressed.length).isLessThan(data.length);
+
+            byte[] shifted = new byte[compressed.length + 3];
+            System.arraycopy(compressed, 0, shifted, 3, compressed.length);
+            assertThat(codec.decompress(shifted, 3, compressed.length)).isEqualTo(data);
+        }
+    }
+
+    @Test
+    public void testValueIsCompressedBeforeEncryption() {
+        for (CompressionType compressionType : CompressionType.values()) {
+            CryptoSerializer<String> serializer = serializer(compressionType.codec(), 64);
+
+            byte[] serialized = serializer.serialize("topic", headers(), VALUE);
+
+            EncryptedEnvelope envelope = EncryptedEnvelope.parse(serialized);
+            assertThat(envelope.isCompressed()).isTrue();
+            assertThat(envelope.getCompressionCodecId()).isEqualTo(compressionType.id());
+            assertThat(serialized.length).isLessThan(VALUE.length());
+            Headers headers = new RecordHeaders();
+            assertThat(deserializer.deserialize("topic", headers, serialized)).isEqualTo(VALUE);
+            assertThat(headers.lastHeader(KafkaCryptoConstants.KEY_REF_HEADER).value()).containsExactly(1, 2);
+        }
+    }
+
+    @Test
+    public void testSmallValueIsNotCompressed() {
+        CryptoSerializer<String> serializer = serializer(CompressionType.LZ4.codec(), 64);
+
+        byte[] serialized = serializer.serialize("topic", headers(), "small");
+
+        assertThat(EncryptedEnvelope.parse(serialized).isCompressed()).isFalse();
+        assertThat(deserializer.deserialize("topic", new RecordHeaders(), serialized)).isEqualTo("small");
+    }
+
+    @Test
+    public void testIncompressibleValueIsNotCompressed() {
+        CryptoSerializer<String> serializer = serializer(CompressionType.ZSTD.codec(), 0);
+
+        byte[] serialized = serializer.serialize("topic", headers(), "x");
+
+        assertThat(EncryptedEnvelope.parse(serialized).isCompressed()).isFalse();
+        assertThat(deserializer.deserialize("topic", new RecordHeaders(), serialized)).isEqualTo("x");
+    }
+
+    private CryptoSerializer<String> serializer(CompressionCodec codec, int threshold) {
+        return new CryptoSerializer<>(new StringSerializer(), new DefaultEncryptor(keyProvider, cryptoAlgorithm), null,
+                codec, threshold);
+    }
+
+    private static Headers headers() {
+        return new RecordHeaders().add(KafkaCryptoConstants.KEY_REF_HEADER, new byte[]{1, 2});
+    }
+}
@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.compression;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ZstdDictionaryCompressionCodecTest {
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testSmallRecordsCompressBetterWithDictionary() {
+        byte[] dictionary = trainDictionary();
+        InMemoryDictionaryRegistry registry = new InMemoryDictionaryRegistry().register(dictionary);
+        ZstdDictionaryCompressionCodec codec = new ZstdDictionaryCompressionCodec(registry,
+                ZstdDictionaryCompressionCodec.dictionaryId(dictionary));
+        byte[] data = sampleDocument();
+
+        byte[] compressed = codec.compress(data);
+
+        // a bare zstd frame
+        assertThat(Arrays.copyOf(compressed, 4)).containsExactly(0x28, 0xB5, 0x2F, 0xFD);
+        assertThat(compressed.length).isLessThan(data.length / 2);
+        assertThat(compressed.length).isLessThan(new ZstdCompressionCodec().compress(data).length);
+        assertThat(codec.decompress(compressed, 0, compressed.length)).isEqualTo(data);
+    }
+
+    @Test
+    public void testRecordsWrittenWithOlderDictionaryCanBeRead() {
+        byte[] dictionary1 = trainDictionary();
+        InMemoryDictionaryRegistry registry = new InMemoryDictionaryRegistry().register(dictionary1);
+        byte[] data = sampleDocument();
+        byte[] compressed = new ZstdDictionaryCompressionCodec(registry,
+                ZstdDictionaryCompressionCodec.dictionaryId(dictionary1)).compress(data);
+
+        byte[] dictionary2 = trainDictionary();
+        registry.register(dictionary2);
+        ZstdDictionaryCompressionCodec codec = new ZstdDictionaryCompressionCodec(registry,
+                ZstdDictionaryCompressionCodec.dictionaryId(dictionary2));
+
+        assertThat(codec.decompress(compressed, 0, compressed.length)).isEqualTo(data);
+    }
+
+    @Test
+    public void testUnknownDictionary() {
+        ZstdDictionaryCompressionCodec codec = new ZstdDictionaryCompressionCodec(new InMemoryDictionaryRegistry(), 1);
+        try {
+            codec.compress(sampleDocument());
+            fail("should fail");
+        }
+        catch (IllegalStateException e) {
+            assertThat(e).hasMessageContaining("unknown compression dictionary 1");
+        }
+    }
+
+    @Test
+    public void testDictionaryRegisteredUnderAnotherId() {
+        byte[] dictionary = trainDictionary();
+        int otherId = ZstdDictionaryCompressionCodec.dictionaryId(dictionary) + 1;
+        ZstdDictionaryCompressionCodec codec = new ZstdDictionaryCompressionCodec(
+                new InMemoryDictionaryRegistry().register(otherId, dictionary), otherId);
+        try {
+            codec.compress(sampleDocument());
+            fail("should fail");
+        }
+        catch (IllegalStateException e) {
+            assertThat(e).hasMessageContaining("has the zstd id");
+        }
+    }
+
+    private byte[] trainDictionary() {
+        ZstdDictionaryTrainer trainer = new ZstdDictionaryTrainer(1 << 20, 16 * 1024);
+        for (int i = 0; i < 2000; i++) {
+            trainer.addSample(sampleDocument());
+        }
+        assertThat(trainer.getSampleCount()).isEqualTo(2000);
+        return trainer.train();
+    }
+
+    private byte[] sampleDocument() {
+        return ("{\"customerId\":\"" + random.nextInt(1000000) + "\",\"status\":\"" + (random.nextBoolean() ? "ACTIVE" : "SUSPENDED")
+                + "\",\"firstName\":\"name" + random.nextInt(100) + "\",\"lastName\":\"last" + random.nextInt(100)
+                + "\",\"address\":{\"street\":\"" + random.nextInt(200) + " main street\",\"city\":\"Paris\",\"zipCode\":\"750"
+                + random.nextInt(20) + "\",\"country\":\"FR\"},\"createdAt\":\"2018-0" + (1 + random.nextInt(9))
+                + "-1" + random.nextInt(10) + "T10:00:00Z\",\"documents\":[{\"type\":\"ID_CARD\",\"verified\":"
+                + random.nextBoolean() + "},{\"type\":\"PROOF_OF_ADDRESS\",\"verified\":" + random.nextBoolean() + "}]}")
+                .getBytes(StandardCharsets.UTF_8);
+    }
+}
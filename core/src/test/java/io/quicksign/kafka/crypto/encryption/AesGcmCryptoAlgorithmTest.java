@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.crypto.AEADBadTagException;
+
+import org.junit.Test;
+
+public class AesGcmCryptoAlgorithmTest {
+
+    private final byte[] key = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+    private final byte[] clearData = "clear data".getBytes(StandardCharsets.UTF_8);
+
+    private final AesGcmCryptoAlgorithm cryptoAlgorithm = new AesGcmCryptoAlgorithm("aad".getBytes(StandardCharsets.UTF_8));
+
+    @Test
+    public void testEncryptDecrypt() throws Exception {
+        byte[] encrypted = cryptoAlgorithm.encrypt(clearData, key);
+
+        assertThat(encrypted).hasSize(cryptoAlgorithm.encryptedSize(clearData.length));
+        assertThat(cryptoAlgorithm.decrypt(encrypted, key)).isEqualTo(clearData);
+    }
+
+    @Test
+    public void testEncryptUsesANewNonceEachTime() throws Exception {
+        byte[] encrypted1 = cryptoAlgorithm.encrypt(clearData, key);
+        byte[] encrypted2 = cryptoAlgorithm.encrypt(clearData, key);
+
+        assertThat(Arrays.copyOf(encrypted1, AesGcmCryptoAlgorithm.NONCE_SIZE))
+                .isNotEqualTo(Arrays.copyOf(encrypted2, AesGcmCryptoAlgorithm.NONCE_SIZE));
+    }
+
+    @Test
+    public void testEncryptAndDecryptInPlace() throws Exception {
+        byte[] output = new byte[5 + cryptoAlgorithm.encryptedSize(clearData.length)];
+
+        int written = cryptoAlgorithm.encrypt(clearData, key, output, 5);
+
+        assertThat(written).isEqualTo(output.length - 5);
+        assertThat(cryptoAlgorithm.decrypt(output, 5, written, key)).isEqualTo(clearData);
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void testDecryptTamperedData() throws Exception {
+        byte[] encrypted = cryptoAlgorithm.encrypt(clearData, key);
+        encrypted[AesGcmCryptoAlgorithm.NONCE_SIZE] ^= 1;
+
+        cryptoAlgorithm.decrypt(encrypted, key);
+    }
+
+    @Test(expected = AEADBadTagException.class)
+    public void testDecryptWithOtherAssociatedData() throws Exception {
+        byte[] encrypted = cryptoAlgorithm.encrypt(clearData, key);
+
+        new AesGcmCryptoAlgorithm().decrypt(encrypted, key);
+    }
+
+    @Test
+    public void testCachedKeyHandlesInterleaved() throws Exception {
+        byte[] otherKey = "fedcba9876543210fedcba9876543210".getBytes(StandardCharsets.UTF_8);
+        KeyHandle handle = KeyHandle.cached(key, KeyHandle.DEFAULT_KEY_ALGORITHM);
+        KeyHandle otherHandle = KeyHandle.cached(otherKey, KeyHandle.DEFAULT_KEY_ALGORITHM);
+
+        for (int i = 0; i < 3; i++) {
+            byte[] encrypted = cryptoAlgorithm.encrypt(clearData, handle);
+            byte[] otherEncrypted = cryptoAlgorithm.encrypt(clearData, otherHandle);
+
+            assertThat(cryptoAlgorithm.decrypt(encrypted, key)).isEqualTo(clearData);
+            assertThat(cryptoAlgorithm.decrypt(otherEncrypted, 0, otherEncrypted.length, otherHandle)).isEqualTo(clearData);
+        }
+    }
+
+    @Test
+    public void testCachedKeyHandleIsUsableAfterAFailure() throws Exception {
+        KeyHandle handle = KeyHandle.cached(key, KeyHandle.DEFAULT_KEY_ALGORITHM);
+        byte[] encrypted = cryptoAlgorithm.encrypt(clearData, handle);
+        byte[] tampered = encrypted.clone();
+        tampered[AesGcmCryptoAlgorithm.NONCE_SIZE] ^= 1;
+
+        try {
+            cryptoAlgorithm.decrypt(tampered, 0, tampered.length, handle);
+            fail("should fail");
+        }
+        catch (AEADBadTagException e) {
+            // expected
+        }
+
+        assertThat(cryptoAlgorithm.decrypt(encrypted, 0, encrypted.length, handle)).isEqualTo(clearData);
+    }
+}
@@ -0,0 +1,93 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class CounterNonceGeneratorTest {
+
+    private final CounterNonceGenerator nonceGenerator = new CounterNonceGenerator();
+
+    @Test
+    public void testNoncesOfAThreadShareThePrefixAndIncrementTheCounter() {
+        byte[] nonce1 = new byte[12];
+        byte[] nonce2 = new byte[12];
+
+        nonceGenerator.nextNonce(nonce1);
+        nonceGenerator.nextNonce(nonce2);
+
+        assertThat(Arrays.copyOf(nonce1, 8)).isEqualTo(Arrays.copyOf(nonce2, 8));
+        assertThat(ByteBuffer.wrap(nonce2, 8, 4).getInt()).isEqualTo(ByteBuffer.wrap(nonce1, 8, 4).getInt() + 1);
+    }
+
+    @Test
+    public void testNoncesAreUniqueAcrossThreads() throws Exception {
+        Set<ByteBuffer> nonces = ConcurrentHashMap.newKeySet();
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executorService.submit(() -> {
+                    for (int j = 0; j < 1000; j++) {
+                        byte[] nonce = new byte[12];
+                        nonceGenerator.nextNonce(nonce);
+                        nonces.add(ByteBuffer.wrap(nonce));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executorService.shutdown();
+        }
+
+        assertThat(nonces).hasSize(8000);
+    }
+
+    @Test
+    public void testDistinctGeneratorsUseDistinctPrefixes() {
+        byte[] nonce1 = new byte[12];
+        byte[] nonce2 = new byte[12];
+
+        nonceGenerator.nextNonce(nonce1);
+        new CounterNonceGenerator().nextNonce(nonce2);
+
+        assertThat(Arrays.copyOf(nonce1, 8)).isNotEqualTo(Arrays.copyOf(nonce2, 8));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonceTooShort() {
+        nonceGenerator.nextNonce(new byte[7]);
+    }
+}
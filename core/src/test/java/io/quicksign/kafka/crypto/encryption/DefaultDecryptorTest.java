@@ -20,17 +20,32 @@
 package io.quicksign.kafka.crypto.encryption;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatcher;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import io.quicksign.kafka.crypto.CryptoDeserializer;
+import io.quicksign.kafka.crypto.CryptoSerializer;
+import io.quicksign.kafka.crypto.Encryptor;
+
 @RunWith(MockitoJUnitRunner.class)
 public class DefaultDecryptorTest {
 
@@ -51,10 +66,88 @@ public class DefaultDecryptorTest {
         byte[] encodedData = "encoded data".getBytes(StandardCharsets.UTF_8);
 
         given(keyProvider.getKey(keyRef)).willReturn(Optional.of(key));
-        given(encryptionAlgorithm.decrypt(encodedData, key)).willReturn(clearData);
+        given(encryptionAlgorithm.decrypt(eq(encodedData), eq(0), eq(encodedData.length), keyHandle(key))).willReturn(clearData);
 
         byte[] res = defaultDecryptor.decrypt(encodedData, keyRef);
         assertThat(res).isEqualTo(clearData);
 
     }
+
+    @Test
+    public void testDecryptInPlace() throws Exception {
+        byte[] keyRef = "keyref".getBytes(StandardCharsets.UTF_8);
+        byte[] key = "key".getBytes(StandardCharsets.UTF_8);
+        byte[] clearData = "clear data".getBytes(StandardCharsets.UTF_8);
+        byte[] envelope = "header|encoded data".getBytes(StandardCharsets.UTF_8);
+
+        given(keyProvider.getKey(keyRef)).willReturn(Optional.of(key));
+        given(encryptionAlgorithm.decrypt(eq(envelope), eq(7), eq(envelope.length - 7), keyHandle(key))).willReturn(clearData);
+
+        byte[] res = defaultDecryptor.decrypt(envelope, 7, envelope.length - 7, keyRef);
+        assertThat(res).isEqualTo(clearData);
+    }
+
+    @Test
+    public void testDecryptAsyncContinuesWhenKeyIsRetrieved() throws Exception {
+        byte[] keyRef = "keyref".getBytes(StandardCharsets.UTF_8);
+        byte[] key = "key".getBytes(StandardCharsets.UTF_8);
+        byte[] clearData = "clear data".getBytes(StandardCharsets.UTF_8);
+        byte[] envelope = "header|encoded data".getBytes(StandardCharsets.UTF_8);
+        CompletableFuture<Optional<byte[]>> pendingKey = new CompletableFuture<>();
+        AsyncKeyProvider asyncKeyProvider = ref -> pendingKey;
+
+        given(encryptionAlgorithm.decrypt(eq(envelope), eq(7), eq(envelope.length - 7), keyHandle(key))).willReturn(clearData);
+
+        CompletionStage<byte[]> res = new DefaultDecryptor(asyncKeyProvider.toKeyProvider(), encryptionAlgorithm)
+                .decryptAsync(envelope, 7, envelope.length - 7, keyRef, -1);
+        assertThat(res.toCompletableFuture().isDone()).isFalse();
+
+        pendingKey.complete(Optional.of(key));
+
+        assertThat(res.toCompletableFuture().get()).isEqualTo(clearData);
+    }
+
+    private static KeyHandle keyHandle(byte[] key) {
+        return argThat(new ArgumentMatcher<KeyHandle>() {
+            @Override
+            public boolean matches(Object argument) {
+                return argument instanceof KeyHandle && Arrays.equals(((KeyHandle) argument).getSecretKey().getEncoded(), key);
+            }
+        });
+    }
+
+    @Test
+    public void testUnknownAlgorithmIdIsASerializationError() {
+        byte[] keyRef = "keyref".getBytes(StandardCharsets.UTF_8);
+        byte[] envelope = "header|encoded data".getBytes(StandardCharsets.UTF_8);
+        DefaultDecryptor decryptor = new DefaultDecryptor(keyProvider, new CryptoAlgorithmRegistry(encryptionAlgorithm));
+
+        assertThatThrownBy(() -> decryptor.decrypt(envelope, 7, envelope.length - 7, keyRef, 99))
+                .isInstanceOf(SerializationException.class);
+        assertThatThrownBy(() -> decryptor.decryptAsync(envelope, 7, envelope.length - 7, keyRef, 99).toCompletableFuture().get())
+                .hasCauseInstanceOf(SerializationException.class);
+    }
+
+    @Test
+    public void testUnknownAlgorithmIdFailsDeserialization() {
+        byte[] keyRef = "keyref".getBytes(StandardCharsets.UTF_8);
+        Encryptor otherAlgorithmEncryptor = new Encryptor() {
+            @Override
+            public byte[] encrypt(byte[] value, byte[] ref) {
+                return value.clone();
+            }
+
+            @Override
+            public int getAlgorithmId() {
+                return 99;
+            }
+        };
+        byte[] record = new CryptoSerializer<>(new StringSerializer(), otherAlgorithmEncryptor, ThreadLocal.withInitial(() -> keyRef))
+                .serialize("topic", "value");
+        CryptoDeserializer<String> deserializer = new CryptoDeserializer<>(new StringDeserializer(),
+                new DefaultDecryptor(keyProvider, new CryptoAlgorithmRegistry(encryptionAlgorithm)));
+
+        assertThatThrownBy(() -> deserializer.deserialize("topic", new RecordHeaders(), record))
+                .isInstanceOf(SerializationException.class);
+    }
 }
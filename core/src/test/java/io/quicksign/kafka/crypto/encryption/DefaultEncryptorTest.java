@@ -21,12 +21,23 @@ package io.quicksign.kafka.crypto.encryption;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.BDDMockito.given;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.withSettings;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentMatcher;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
@@ -51,10 +62,99 @@ public class DefaultEncryptorTest {
         byte[] encodedData = "encoded data".getBytes(StandardCharsets.UTF_8);
 
         given(keyProvider.getKey(keyRef)).willReturn(Optional.of(key));
-        given(encryptionAlgorithm.encrypt(clearData, key)).willReturn(encodedData);
+        given(encryptionAlgorithm.encrypt(eq(clearData), keyHandle(key))).willReturn(encodedData);
 
         byte[] res = defaultEncryptor.encrypt(clearData, keyRef);
 
         assertThat(res).isEqualTo(encodedData);
     }
+
+    @Test
+    public void testEncryptWithHeaderWhenEncryptedSizeIsKnown() throws Exception {
+        byte[] keyRef = "keyref".getBytes(StandardCharsets.UTF_8);
+        byte[] key = "key".getBytes(StandardCharsets.UTF_8);
+        byte[] clearData = "clear data".getBytes(StandardCharsets.UTF_8);
+        byte[] encodedData = "encoded data".getBytes(StandardCharsets.UTF_8);
+
+        given(keyProvider.getKey(keyRef)).willReturn(Optional.of(key));
+        given(encryptionAlgorithm.encryptedSize(clearData.length)).willReturn(encodedData.length);
+        given(encryptionAlgorithm.encrypt(eq(clearData), keyHandle(key), any(byte[].class), eq(4))).will(invocation -> {
+            byte[] output = (byte[]) invocation.getArguments()[2];
+            System.arraycopy(encodedData, 0, output, 4, encodedData.length);
+            return encodedData.length;
+        });
+
+        byte[] res = defaultEncryptor.encrypt(clearData, keyRef, 4);
+
+        assertThat(res).hasSize(4 + encodedData.length);
+        assertThat(Arrays.copyOfRange(res, 4, res.length)).isEqualTo(encodedData);
+    }
+
+    @Test
+    public void testEncryptWithHeaderWhenEncryptedSizeIsUnknown() throws Exception {
+        byte[] keyRef = "keyref".getBytes(StandardCharsets.UTF_8);
+        byte[] key = "key".getBytes(StandardCharsets.UTF_8);
+        byte[] clearData = "clear data".getBytes(StandardCharsets.UTF_8);
+        byte[] encodedData = "encoded data".getBytes(StandardCharsets.UTF_8);
+
+        given(keyProvider.getKey(keyRef)).willReturn(Optional.of(key));
+        given(encryptionAlgorithm.encryptedSize(clearData.length)).willReturn(-1);
+        given(encryptionAlgorithm.encrypt(eq(clearData), keyHandle(key))).willReturn(encodedData);
+
+        byte[] res = defaultEncryptor.encrypt(clearData, keyRef, 4);
+
+        assertThat(res).hasSize(4 + encodedData.length);
+        assertThat(Arrays.copyOfRange(res, 4, res.length)).isEqualTo(encodedData);
+    }
+
+    @Test
+    public void testEncryptAsyncContinuesWhenKeyIsRetrieved() throws Exception {
+        byte[] keyRef = "keyref".getBytes(StandardCharsets.UTF_8);
+        byte[] key = "key".getBytes(StandardCharsets.UTF_8);
+        byte[] clearData = "clear data".getBytes(StandardCharsets.UTF_8);
+        byte[] encodedData = "encoded data".getBytes(StandardCharsets.UTF_8);
+        CompletableFuture<Optional<byte[]>> pendingKey = new CompletableFuture<>();
+        AsyncKeyProvider asyncKeyProvider = ref -> pendingKey;
+
+        given(encryptionAlgorithm.encryptedSize(clearData.length)).willReturn(-1);
+        given(encryptionAlgorithm.encrypt(eq(clearData), keyHandle(key))).willReturn(encodedData);
+
+        CompletionStage<byte[]> res = new DefaultEncryptor(asyncKeyProvider.toKeyProvider(), encryptionAlgorithm)
+                .encryptAsync(clearData, keyRef, 4);
+        assertThat(res.toCompletableFuture().isDone()).isFalse();
+
+        pendingKey.complete(Optional.of(key));
+
+        byte[] encrypted = res.toCompletableFuture().get();
+        assertThat(Arrays.copyOfRange(encrypted, 4, encrypted.length)).isEqualTo(encodedData);
+    }
+
+    private static KeyHandle keyHandle(byte[] key) {
+        return argThat(new ArgumentMatcher<KeyHandle>() {
+            @Override
+            public boolean matches(Object argument) {
+                return argument instanceof KeyHandle && Arrays.equals(((KeyHandle) argument).getSecretKey().getEncoded(), key);
+            }
+        });
+    }
+
+    @Test
+    public void testEncryptAsyncUsesTheHandlesOfTheKeyHandleProvider() throws Exception {
+        byte[] keyRef = "keyref".getBytes(StandardCharsets.UTF_8);
+        byte[] key = "key".getBytes(StandardCharsets.UTF_8);
+        byte[] clearData = "clear data".getBytes(StandardCharsets.UTF_8);
+        KeyHandle handle = KeyHandle.cached(key, KeyHandle.DEFAULT_KEY_ALGORITHM);
+        KeyProvider handleKeyProvider = mock(KeyProvider.class, withSettings().extraInterfaces(KeyHandleProvider.class));
+        given(((KeyHandleProvider) handleKeyProvider).getKeyHandleAsync(keyRef))
+                .willReturn(CompletableFuture.completedFuture(Optional.of(handle)));
+
+        given(encryptionAlgorithm.encryptedSize(clearData.length)).willReturn(-1);
+        given(encryptionAlgorithm.encrypt(clearData, handle)).willReturn(clearData);
+
+        byte[] res = new DefaultEncryptor(handleKeyProvider, encryptionAlgorithm).encryptAsync(clearData, keyRef, 0)
+                .toCompletableFuture().get();
+
+        assertThat(res).isEqualTo(clearData);
+        verify(handleKeyProvider, never()).getKey(keyRef);
+    }
 }
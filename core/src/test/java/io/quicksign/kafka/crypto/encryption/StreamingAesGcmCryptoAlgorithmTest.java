@@ -0,0 +1,154 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.encryption;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.AEADBadTagException;
+
+import org.junit.Test;
+
+public class StreamingAesGcmCryptoAlgorithmTest {
+
+    private final byte[] key = "0123456789abcdef0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+    private final StreamingAesGcmCryptoAlgorithm cryptoAlgorithm = new StreamingAesGcmCryptoAlgorithm(64);
+
+    @Test
+    public void testEncryptDecrypt() throws Exception {
+        for (int length : new int[]{0, 1, 63, 64, 65, 128, 1000}) {
+            byte[] clearData = randomData(length);
+
+            byte[] encrypted = cryptoAlgorithm.encrypt(clearData, key);
+
+            assertThat(encrypted).hasSize(cryptoAlgorithm.encryptedSize(length));
+            assertThat(cryptoAlgorithm.decrypt(encrypted, key)).isEqualTo(clearData);
+        }
+    }
+
+    @Test
+    public void testParallelSegmentsAreCompatibleWithSerialSegments() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            StreamingAesGcmCryptoAlgorithm parallelAlgorithm = new StreamingAesGcmCryptoAlgorithm(64, 0, pool);
+            byte[] clearData = randomData(1000);
+
+            byte[] encrypted = parallelAlgorithm.encrypt(clearData, key);
+
+            assertThat(cryptoAlgorithm.decrypt(encrypted, key)).isEqualTo(clearData);
+            assertThat(parallelAlgorithm.decrypt(cryptoAlgorithm.encrypt(clearData, key), key)).isEqualTo(clearData);
+
+            encrypted[encrypted.length - 500] ^= 1;
+            try {
+                parallelAlgorithm.decrypt(encrypted, key);
+                fail("should fail");
+            }
+            catch (AEADBadTagException e) {
+                // expected
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testStreamsAreCompatibleWithByteArrays() throws Exception {
+        for (int length : new int[]{0, 64, 1000}) {
+            byte[] clearData = randomData(length);
+
+            ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+            try (OutputStream out = cryptoAlgorithm.newEncryptingStream(encrypted, key)) {
+                for (int i = 0; i < length; i += 10) {
+                    out.write(clearData, i, Math.min(10, length - i));
+                }
+            }
+
+            assertThat(encrypted.size()).isEqualTo(cryptoAlgorithm.encryptedSize(length));
+            assertThat(cryptoAlgorithm.decrypt(encrypted.toByteArray(), key)).isEqualTo(clearData);
+            assertThat(readAll(cryptoAlgorithm.newDecryptingStream(
+                    new ByteArrayInputStream(cryptoAlgorithm.encrypt(clearData, key)), key))).isEqualTo(clearData);
+        }
+    }
+
+    @Test
+    public void testTruncationAtSegmentBoundaryIsDetected() throws Exception {
+        byte[] encrypted = cryptoAlgorithm.encrypt(randomData(200), key);
+        byte[] truncated = Arrays.copyOf(encrypted, StreamingAesGcmCryptoAlgorithm.HEADER_SIZE
+                + 2 * (64 + StreamingAesGcmCryptoAlgorithm.TAG_SIZE));
+
+        try {
+            cryptoAlgorithm.decrypt(truncated, key);
+            fail("should fail");
+        }
+        catch (AEADBadTagException e) {
+            // expected
+        }
+        try {
+            readAll(cryptoAlgorithm.newDecryptingStream(new ByteArrayInputStream(truncated), key));
+            fail("should fail");
+        }
+        catch (IOException e) {
+            assertThat(e).hasCauseInstanceOf(AEADBadTagException.class);
+        }
+    }
+
+    @Test
+    public void testTamperedSegmentIsDetected() throws Exception {
+        byte[] encrypted = cryptoAlgorithm.encrypt(randomData(200), key);
+        encrypted[StreamingAesGcmCryptoAlgorithm.HEADER_SIZE + 100] ^= 1;
+
+        try {
+            cryptoAlgorithm.decrypt(encrypted, key);
+            fail("should fail");
+        }
+        catch (AEADBadTagException e) {
+            // expected
+        }
+    }
+
+    private static byte[] randomData(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
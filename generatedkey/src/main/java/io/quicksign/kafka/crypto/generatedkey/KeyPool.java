@@ -0,0 +1,121 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.generatedkey;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of items generated ahead of time by a background thread.
+ * When the pool is drained, items are generated synchronously by the caller.
+ *
+ * @param <T> type of the pooled items
+ */
+class KeyPool<T> implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(KeyPool.class);
+
+    private static final long RETRY_DELAY_MILLIS = 1000L;
+
+    private final Supplier<T> generator;
+    private final BlockingQueue<T> pool;
+    private final Thread refillThread;
+    private final LongSupplier ticker;
+    private final LongAdder refillCount = new LongAdder();
+    private final LongAdder refillNanos = new LongAdder();
+    private final LongAdder fallbackCount = new LongAdder();
+
+    KeyPool(Supplier<T> generator, int capacity, String name) {
+        this(generator, capacity, name, System::nanoTime);
+    }
+
+    KeyPool(Supplier<T> generator, int capacity, String name, LongSupplier ticker) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.generator = generator;
+        this.pool = new ArrayBlockingQueue<>(capacity);
+        this.ticker = ticker;
+        this.refillThread = new Thread(this::refill, name);
+        this.refillThread.setDaemon(true);
+        this.refillThread.start();
+    }
+
+    /**
+     * @return a pooled item, or a newly generated one if the pool is empty
+     */
+    T take() {
+        T item = pool.poll();
+        if (item != null) {
+            return item;
+        }
+        fallbackCount.increment();
+        return generator.get();
+    }
+
+    KeyPoolStats stats() {
+        long refilled = refillCount.sum();
+        double refillSeconds = refillNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+        return new KeyPoolStats(pool.size(), pool.size() + pool.remainingCapacity(), refilled, fallbackCount.sum(),
+                refillSeconds > 0 ? refilled / refillSeconds : 0.0);
+    }
+
+    /**
+     * Stop the background thread. The pool is still usable, items being generated synchronously once it is drained.
+     */
+    @Override
+    public void close() {
+        refillThread.interrupt();
+    }
+
+    private void refill() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                // only the generation is timed, not the wait for room in the pool
+                long start = ticker.getAsLong();
+                T item = generator.get();
+                long generationNanos = ticker.getAsLong() - start;
+                pool.put(item);
+                refillNanos.add(generationNanos);
+                refillCount.increment();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (RuntimeException e) {
+                log.error("error while generating a pooled key, retrying in {} ms", RETRY_DELAY_MILLIS, e);
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS);
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
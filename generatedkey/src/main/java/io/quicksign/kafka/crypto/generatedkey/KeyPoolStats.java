@@ -0,0 +1,90 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.generatedkey;
+
+/**
+ * Snapshot of the metrics of a pool of pre-generated keys
+ *
+ * @see PooledCryptoKeyGenerator
+ * @see PooledKeyPerRecordKeyReferenceExtractor
+ */
+public class KeyPoolStats {
+
+    private final int depth;
+    private final int capacity;
+    private final long refillCount;
+    private final long fallbackCount;
+    private final double refillRate;
+
+    public KeyPoolStats(int depth, int capacity, long refillCount, long fallbackCount, double refillRate) {
+        this.depth = depth;
+        this.capacity = capacity;
+        this.refillCount = refillCount;
+        this.fallbackCount = fallbackCount;
+        this.refillRate = refillRate;
+    }
+
+    /**
+     * @return number of keys ready in the pool
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return maximum number of keys in the pool
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of keys generated by the background thread
+     */
+    public long getRefillCount() {
+        return refillCount;
+    }
+
+    /**
+     * @return number of keys generated synchronously because the pool was empty
+     */
+    public long getFallbackCount() {
+        return fallbackCount;
+    }
+
+    /**
+     * @return average number of keys generated per second by the background thread, measured only while it generates
+     * keys, not while the pool is full
+     */
+    public double getRefillRate() {
+        return refillRate;
+    }
+
+    @Override
+    public String toString() {
+        return "KeyPoolStats{" +
+                "depth=" + depth +
+                ", capacity=" + capacity +
+                ", refillCount=" + refillCount +
+                ", fallbackCount=" + fallbackCount +
+                ", refillRate=" + refillRate +
+                '}';
+    }
+}
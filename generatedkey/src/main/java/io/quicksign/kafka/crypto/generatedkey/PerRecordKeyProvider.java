@@ -19,27 +19,73 @@
  */
 package io.quicksign.kafka.crypto.generatedkey;
 
+import java.time.Duration;
 import java.util.Optional;
 
+import io.quicksign.kafka.crypto.cache.CacheStats;
+import io.quicksign.kafka.crypto.cache.CachingKeyProvider;
+import io.quicksign.kafka.crypto.encryption.KeyHandle;
+import io.quicksign.kafka.crypto.encryption.KeyHandleProvider;
 import io.quicksign.kafka.crypto.encryption.KeyProvider;
 
 /**
  * This key provider consider key reference as the result of the encryption by a master.
  * <p>
  * It will try to decrypt the key using the master key. The result will be {@link Optional#EMPTY} if the key can not be decrypted
+ * <p>
+ * When producers reuse keys (see {@link RotatingKeyReferenceExtractor}), consecutive records carry the same key reference.
+ * The unwrapped keys can then be cached, keyed by the content of the key reference, to decrypt with the master key
+ * only once per key. The cached keys are also exposed as {@link KeyHandle}s, so that a
+ * {@link io.quicksign.kafka.crypto.encryption.DefaultDecryptor} reuses the handle and cipher contexts of each key.
  */
-public class PerRecordKeyProvider implements KeyProvider {
+public class PerRecordKeyProvider implements KeyProvider, KeyHandleProvider {
 
     private final MasterKeyEncryption masterKeyEncryption;
+    private final CachingKeyProvider unwrappedKeyCache;
 
     public PerRecordKeyProvider(MasterKeyEncryption masterKeyEncryption) {
 
         this.masterKeyEncryption = masterKeyEncryption;
+        this.unwrappedKeyCache = null;
+    }
+
+    /**
+     * @param masterKeyEncryption used to decrypt the keys
+     * @param maxCachedKeys       maximum number of unwrapped keys kept in memory
+     * @param cacheTtl            time after which an unwrapped key is removed from the cache
+     */
+    public PerRecordKeyProvider(MasterKeyEncryption masterKeyEncryption, long maxCachedKeys, Duration cacheTtl) {
+
+        this.masterKeyEncryption = masterKeyEncryption;
+        this.unwrappedKeyCache = CachingKeyProvider.builder(this::unwrapKey)
+                .maximumSize(maxCachedKeys)
+                .expireAfterWrite(cacheTtl)
+                .build();
     }
 
 
     @Override
     public Optional<byte[]> getKey(byte[] keyRef) {
+        return unwrappedKeyCache == null ? unwrapKey(keyRef) : unwrappedKeyCache.getKey(keyRef);
+    }
+
+    /**
+     * @param keyRef the reference of the key to retrieve
+     * @return the handle kept by the unwrapped keys cache, or a new handle for each call if keys are not cached
+     */
+    @Override
+    public Optional<KeyHandle> getKeyHandle(byte[] keyRef) {
+        return unwrappedKeyCache == null ? unwrapKey(keyRef).map(KeyHandle::of) : unwrappedKeyCache.getKeyHandle(keyRef);
+    }
+
+    /**
+     * @return the statistics of the unwrapped keys cache (hit ratio...), or {@code Optional.empty()} if keys are not cached
+     */
+    public Optional<CacheStats> getCacheStats() {
+        return Optional.ofNullable(unwrappedKeyCache).map(CachingKeyProvider::stats);
+    }
+
+    private Optional<byte[]> unwrapKey(byte[] keyRef) {
         return Optional.ofNullable(masterKeyEncryption.decryptKey(keyRef));
     }
 }
@@ -0,0 +1,65 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.generatedkey;
+
+import java.io.Closeable;
+
+/**
+ * {@link CryptoKeyGenerator} decorator keeping a bounded pool of keys generated ahead of time by a background thread,
+ * so that key generation (and a slow entropy source) stays off the producer {@code send()} thread.
+ * When the pool is drained, keys are generated synchronously.
+ *
+ * @see PooledKeyPerRecordKeyReferenceExtractor
+ */
+public class PooledCryptoKeyGenerator implements CryptoKeyGenerator, Closeable {
+
+    private final KeyPool<byte[]> keyPool;
+
+    /**
+     * @param cryptoKeyGenerator the generator used to fill the pool
+     * @param capacity           maximum number of keys in the pool
+     */
+    public PooledCryptoKeyGenerator(CryptoKeyGenerator cryptoKeyGenerator, int capacity) {
+        this.keyPool = new KeyPool<>(cryptoKeyGenerator::generateKey, capacity, "kafka-encryption-key-pool");
+    }
+
+    /**
+     * @return a pre-generated key, or a newly generated one if the pool is empty
+     */
+    @Override
+    public byte[] generateKey() {
+        return keyPool.take();
+    }
+
+    /**
+     * @return pool depth and refill metrics
+     */
+    public KeyPoolStats stats() {
+        return keyPool.stats();
+    }
+
+    /**
+     * Stop the background generation
+     */
+    @Override
+    public void close() {
+        keyPool.close();
+    }
+}
@@ -0,0 +1,66 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.generatedkey;
+
+import java.io.Closeable;
+
+import io.quicksign.kafka.crypto.pairing.keyextractor.KeyReferenceExtractor;
+
+/**
+ * KeyReference extractor that will use a new key for each record, like {@link KeyPerRecordKeyReferenceExtractor}.
+ * Keys are generated and encrypted by the master key ahead of time by a background thread, and kept in a bounded pool,
+ * so that neither the key generation nor the master key encryption run on the producer {@code send()} thread.
+ * When the pool is drained, keys are generated and encrypted synchronously.
+ */
+public class PooledKeyPerRecordKeyReferenceExtractor implements KeyReferenceExtractor, Closeable {
+
+    private final KeyPool<byte[]> keyRefPool;
+
+    /**
+     * @param cryptoKeyGenerator  the generator of keys
+     * @param masterKeyEncryption the encryption of keys by the master key
+     * @param capacity            maximum number of key references in the pool
+     */
+    public PooledKeyPerRecordKeyReferenceExtractor(CryptoKeyGenerator cryptoKeyGenerator,
+                                                   MasterKeyEncryption masterKeyEncryption, int capacity) {
+        this.keyRefPool = new KeyPool<>(() -> masterKeyEncryption.encryptKey(cryptoKeyGenerator.generateKey()),
+                capacity, "kafka-encryption-keyref-pool");
+    }
+
+    @Override
+    public byte[] extractKeyReference(String topic, Object key) {
+        return keyRefPool.take();
+    }
+
+    /**
+     * @return pool depth and refill metrics
+     */
+    public KeyPoolStats stats() {
+        return keyRefPool.stats();
+    }
+
+    /**
+     * Stop the background generation
+     */
+    @Override
+    public void close() {
+        keyRefPool.close();
+    }
+}
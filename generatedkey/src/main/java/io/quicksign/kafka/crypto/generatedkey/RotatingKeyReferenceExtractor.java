@@ -0,0 +1,322 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.generatedkey;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import io.quicksign.kafka.crypto.Encryptor;
+import io.quicksign.kafka.crypto.cache.KeyRefKey;
+import io.quicksign.kafka.crypto.encryption.KeyProvider;
+import io.quicksign.kafka.crypto.pairing.keyextractor.KeyReferenceExtractor;
+
+/**
+ * <p>KeyReference extractor reusing a generated data encryption key (DEK) for several records.
+ * The key reference is the DEK encrypted by the master key, as with {@link KeyPerRecordKeyReferenceExtractor},
+ * so records can be decrypted by a {@link PerRecordKeyProvider}.</p>
+ *
+ * <p>A new DEK is generated when the current one has been used for {@code maxRecords} records,
+ * for {@code maxBytes} bytes of clear data, or {@code maxAge} after its creation, whichever comes first.
+ * Limits are checked when a record asks for a key reference, so the last record of a DEK may exceed {@code maxBytes}.
+ * Bytes are only counted when the {@link Encryptor} is wrapped with {@link #countingEncryptor(Encryptor)}.
+ * With {@link Builder#perTopic(boolean)}, one DEK is held per topic. The partition of a record is not known when it
+ * is serialized, so DEKs cannot be held per topic-partition.</p>
+ *
+ * <p>On the producer side, {@link #asKeyProvider(KeyProvider)} returns the current DEKs without unwrapping their
+ * key reference with the master key.</p>
+ *
+ * <p>Security properties, compared to a key per record:</p>
+ * <ul>
+ * <li>a compromised DEK exposes all the records encrypted with it, up to the rotation limits,
+ * instead of a single record;</li>
+ * <li>records sharing a DEK carry the same key reference, so an observer of the topic can tell which records
+ * were encrypted with the same key (but not their content);</li>
+ * <li>crypto-shredding granularity is the DEK, not the record;</li>
+ * <li>with random 96 bits nonces, AES-GCM must not encrypt more than 2^32 records with the same key,
+ * so {@code maxRecords} cannot exceed this bound;</li>
+ * <li>the clear DEKs stay in the producer memory until they are rotated.</li>
+ * </ul>
+ *
+ * <pre>{@code
+ *  RotatingKeyReferenceExtractor keyReferenceExtractor = RotatingKeyReferenceExtractor.builder(cryptoKeyGenerator, masterKeyEncryption)
+ *          .maxRecords(10_000)
+ *          .maxAge(Duration.ofMinutes(5))
+ *          .build();
+ *  KeyProvider keyProvider = keyReferenceExtractor.asKeyProvider(new PerRecordKeyProvider(masterKeyEncryption));
+ *  Encryptor encryptor = keyReferenceExtractor.countingEncryptor(new DefaultEncryptor(keyProvider, cryptoAlgorithm));
+ * }</pre>
+ */
+public class RotatingKeyReferenceExtractor implements KeyReferenceExtractor {
+
+    /**
+     * maximum number of records encrypted with the same key using random 96 bits nonces
+     */
+    public static final long MAX_RECORDS_PER_KEY = 1L << 32;
+
+    /**
+     * maximum number of records encrypted with the same key by
+     * {@link io.quicksign.kafka.crypto.encryption.StreamingAesGcmCryptoAlgorithm}, whose nonce prefix is random
+     */
+    public static final long MAX_STREAMING_RECORDS_PER_KEY = 1L << 20;
+
+    private static final String SINGLE_KEY = "";
+
+    private final CryptoKeyGenerator cryptoKeyGenerator;
+    private final MasterKeyEncryption masterKeyEncryption;
+    private final long maxRecords;
+    private final long maxBytes;
+    private final long maxAgeNanos;
+    private final boolean perTopic;
+    private final LongSupplier ticker;
+
+    private final ConcurrentMap<String, DataKey> dataKeys = new ConcurrentHashMap<>();
+    private final ConcurrentMap<KeyRefKey, DataKey> dataKeysByKeyRef = new ConcurrentHashMap<>();
+    private final AtomicLong rotationCount = new AtomicLong();
+
+    private RotatingKeyReferenceExtractor(Builder builder) {
+        this.cryptoKeyGenerator = builder.cryptoKeyGenerator;
+        this.masterKeyEncryption = builder.masterKeyEncryption;
+        this.maxRecords = builder.maxRecords;
+        this.maxBytes = builder.maxBytes;
+        this.maxAgeNanos = builder.maxAge.toNanos();
+        this.perTopic = builder.perTopic;
+        this.ticker = builder.ticker;
+    }
+
+    /**
+     * @param cryptoKeyGenerator  generator of the DEKs
+     * @param masterKeyEncryption encryption of the DEKs by the master key
+     * @return a builder of RotatingKeyReferenceExtractor
+     */
+    public static Builder builder(CryptoKeyGenerator cryptoKeyGenerator, MasterKeyEncryption masterKeyEncryption) {
+        return new Builder(cryptoKeyGenerator, masterKeyEncryption);
+    }
+
+    @Override
+    public byte[] extractKeyReference(String topic, Object key) {
+        String slot = perTopic ? topic : SINGLE_KEY;
+        while (true) {
+            DataKey dataKey = dataKeys.get(slot);
+            long now = ticker.getAsLong();
+            if (dataKey != null && dataKey.tryAcquire(now)) {
+                return dataKey.keyRef;
+            }
+            DataKey staleDataKey = dataKey;
+            dataKeys.compute(slot, (s, current) -> current == staleDataKey ? rotate(current, now) : current);
+        }
+    }
+
+    /**
+     * Wrap an {@link Encryptor} to count the bytes encrypted with each DEK, so that {@code maxBytes} can be enforced
+     *
+     * @param encryptor the Encryptor used to encrypt the records
+     * @return an Encryptor counting the encrypted bytes
+     */
+    public Encryptor countingEncryptor(Encryptor encryptor) {
+        return new CountingEncryptor(encryptor);
+    }
+
+    /**
+     * A {@link KeyProvider} returning the current DEKs directly, and delegating other key references
+     *
+     * @param fallback KeyProvider for key references of DEKs that are no longer current, typically a {@link PerRecordKeyProvider}
+     * @return a KeyProvider for the producer side
+     */
+    public KeyProvider asKeyProvider(KeyProvider fallback) {
+        return keyRef -> {
+            DataKey dataKey = find(keyRef);
+            return dataKey != null ? Optional.of(dataKey.key) : fallback.getKey(keyRef);
+        };
+    }
+
+    /**
+     * @return number of DEKs generated so far
+     */
+    public long getRotationCount() {
+        return rotationCount.get();
+    }
+
+    private void countBytes(byte[] value, byte[] keyRef) {
+        DataKey dataKey = find(keyRef);
+        if (dataKey != null && value != null) {
+            dataKey.bytes.addAndGet(value.length);
+        }
+    }
+
+    private DataKey find(byte[] keyRef) {
+        return keyRef == null ? null : dataKeysByKeyRef.get(KeyRefKey.lookup(keyRef));
+    }
+
+    private DataKey rotate(DataKey current, long now) {
+        byte[] key = cryptoKeyGenerator.generateKey();
+        rotationCount.incrementAndGet();
+        DataKey dataKey = new DataKey(key, masterKeyEncryption.encryptKey(key), now);
+        // indexed by a copy, as the key reference is handed out to the serializers
+        dataKeysByKeyRef.put(KeyRefKey.lookup(dataKey.keyRef).stored(), dataKey);
+        if (current != null) {
+            dataKeysByKeyRef.remove(KeyRefKey.lookup(current.keyRef), current);
+        }
+        return dataKey;
+    }
+
+    /**
+     * Encryptor counting the encrypted bytes, and forwarding everything else to the wrapped Encryptor
+     */
+    private final class CountingEncryptor implements Encryptor {
+
+        private final Encryptor delegate;
+
+        CountingEncryptor(Encryptor delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public byte[] encrypt(byte[] value, byte[] keyRef) {
+            countBytes(value, keyRef);
+            return delegate.encrypt(value, keyRef);
+        }
+
+        @Override
+        public byte[] encrypt(byte[] value, byte[] keyRef, int headerLength) {
+            countBytes(value, keyRef);
+            return delegate.encrypt(value, keyRef, headerLength);
+        }
+
+        @Override
+        public CompletionStage<byte[]> encryptAsync(byte[] value, byte[] keyRef, int headerLength) {
+            countBytes(value, keyRef);
+            return delegate.encryptAsync(value, keyRef, headerLength);
+        }
+
+        @Override
+        public int getAlgorithmId() {
+            return delegate.getAlgorithmId();
+        }
+
+        @Override
+        public boolean isChunked() {
+            return delegate.isChunked();
+        }
+    }
+
+    private final class DataKey {
+
+        private final byte[] key;
+        private final byte[] keyRef;
+        private final long createdAt;
+        private final AtomicLong records = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        DataKey(byte[] key, byte[] keyRef, long createdAt) {
+            this.key = key;
+            this.keyRef = keyRef;
+            this.createdAt = createdAt;
+        }
+
+        boolean tryAcquire(long now) {
+            return now - createdAt < maxAgeNanos
+                    && bytes.get() < maxBytes
+                    && records.incrementAndGet() <= maxRecords;
+        }
+    }
+
+    /**
+     * Builder of {@link RotatingKeyReferenceExtractor}
+     */
+    public static class Builder {
+
+        private final CryptoKeyGenerator cryptoKeyGenerator;
+        private final MasterKeyEncryption masterKeyEncryption;
+        private long maxRecords = MAX_RECORDS_PER_KEY;
+        private long maxBytes = Long.MAX_VALUE;
+        private Duration maxAge = Duration.ofNanos(Long.MAX_VALUE);
+        private boolean perTopic;
+        private LongSupplier ticker = System::nanoTime;
+
+        private Builder(CryptoKeyGenerator cryptoKeyGenerator, MasterKeyEncryption masterKeyEncryption) {
+            this.cryptoKeyGenerator = cryptoKeyGenerator;
+            this.masterKeyEncryption = masterKeyEncryption;
+        }
+
+        /**
+         * @param maxRecords number of records after which the DEK is rotated (default and maximum 2^32),
+         *                   at most {@link #MAX_STREAMING_RECORDS_PER_KEY} with
+         *                   {@link io.quicksign.kafka.crypto.encryption.StreamingAesGcmCryptoAlgorithm}
+         * @return this builder
+         */
+        public Builder maxRecords(long maxRecords) {
+            if (maxRecords < 1 || maxRecords > MAX_RECORDS_PER_KEY) {
+                throw new IllegalArgumentException("maxRecords must be between 1 and " + MAX_RECORDS_PER_KEY);
+            }
+            this.maxRecords = maxRecords;
+            return this;
+        }
+
+        /**
+         * @param maxBytes number of clear bytes after which the DEK is rotated (default unbounded),
+         *                 requires the use of {@link RotatingKeyReferenceExtractor#countingEncryptor(Encryptor)}
+         * @return this builder
+         */
+        public Builder maxBytes(long maxBytes) {
+            if (maxBytes < 1) {
+                throw new IllegalArgumentException("maxBytes must be positive");
+            }
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * @param maxAge time after which the DEK is rotated (default unbounded)
+         * @return this builder
+         */
+        public Builder maxAge(Duration maxAge) {
+            Objects.requireNonNull(maxAge, "maxAge");
+            if (maxAge.isZero() || maxAge.isNegative()) {
+                throw new IllegalArgumentException("maxAge must be positive");
+            }
+            this.maxAge = maxAge;
+            return this;
+        }
+
+        /**
+         * @param perTopic {@code true} to hold one DEK per topic (default {@code false})
+         * @return this builder
+         */
+        public Builder perTopic(boolean perTopic) {
+            this.perTopic = perTopic;
+            return this;
+        }
+
+        Builder ticker(LongSupplier ticker) {
+            this.ticker = ticker;
+            return this;
+        }
+
+        public RotatingKeyReferenceExtractor build() {
+            return new RotatingKeyReferenceExtractor(this);
+        }
+    }
+}
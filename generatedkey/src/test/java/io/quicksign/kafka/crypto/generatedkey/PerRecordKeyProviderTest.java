@@ -0,0 +1,87 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.generatedkey;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.BDDMockito.given;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import org.junit.Test;
+
+import io.quicksign.kafka.crypto.encryption.KeyHandle;
+import io.quicksign.kafka.crypto.encryption.KeyHandleProvider;
+
+public class PerRecordKeyProviderTest {
+
+    private final MasterKeyEncryption masterKeyEncryption = mock(MasterKeyEncryption.class);
+
+    @Test
+    public void testKeyIsUnwrappedForEachRecordWithoutCache() {
+        given(masterKeyEncryption.decryptKey(new byte[]{1, 2})).willReturn(new byte[]{3});
+        PerRecordKeyProvider keyProvider = new PerRecordKeyProvider(masterKeyEncryption);
+
+        assertThat(keyProvider.getKey(new byte[]{1, 2})).contains(new byte[]{3});
+        assertThat(keyProvider.getKey(new byte[]{1, 2})).contains(new byte[]{3});
+
+        verify(masterKeyEncryption, times(2)).decryptKey(new byte[]{1, 2});
+        assertThat(keyProvider.getCacheStats()).isEmpty();
+    }
+
+    @Test
+    public void testKeyIsUnwrappedOncePerKeyRefContentWithCache() {
+        given(masterKeyEncryption.decryptKey(new byte[]{1, 2})).willReturn(new byte[]{3});
+        PerRecordKeyProvider keyProvider = new PerRecordKeyProvider(masterKeyEncryption, 100, Duration.ofMinutes(1));
+
+        for (int i = 0; i < 4; i++) {
+            assertThat(keyProvider.getKey(new byte[]{1, 2})).contains(new byte[]{3});
+        }
+
+        verify(masterKeyEncryption, times(1)).decryptKey(new byte[]{1, 2});
+        assertThat(keyProvider.getCacheStats().get().getHitRatio()).isEqualTo(0.75);
+    }
+
+    @Test
+    public void testCachedKeyHandleIsReused() {
+        given(masterKeyEncryption.decryptKey(new byte[]{1, 2})).willReturn(new byte[16]);
+        PerRecordKeyProvider keyProvider = new PerRecordKeyProvider(masterKeyEncryption, 100, Duration.ofMinutes(1));
+
+        Optional<KeyHandle> handle = keyProvider.getKeyHandle(new byte[]{1, 2});
+
+        assertThat(handle).isPresent();
+        assertThat(keyProvider.getKeyHandle(new byte[]{1, 2}).get()).isSameAs(handle.get());
+        assertThat(KeyHandleProvider.of(keyProvider)).isSameAs(keyProvider);
+        verify(masterKeyEncryption, times(1)).decryptKey(new byte[]{1, 2});
+    }
+
+    @Test
+    public void testKeysThatCannotBeUnwrappedAreNotCached() {
+        PerRecordKeyProvider keyProvider = new PerRecordKeyProvider(masterKeyEncryption, 100, Duration.ofMinutes(1));
+
+        assertThat(keyProvider.getKey(new byte[]{1, 2})).isEmpty();
+        assertThat(keyProvider.getKey(new byte[]{1, 2})).isEmpty();
+
+        verify(masterKeyEncryption, times(2)).decryptKey(new byte[]{1, 2});
+    }
+}
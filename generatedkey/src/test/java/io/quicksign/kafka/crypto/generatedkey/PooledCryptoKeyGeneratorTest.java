@@ -0,0 +1,112 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.generatedkey;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class PooledCryptoKeyGeneratorTest {
+
+    @Test
+    public void testPoolIsFilledInBackground() throws Exception {
+        AtomicInteger generated = new AtomicInteger();
+        try (PooledCryptoKeyGenerator generator = new PooledCryptoKeyGenerator(
+                () -> new byte[]{(byte) generated.incrementAndGet()}, 4)) {
+            awaitDepth(generator, 4);
+
+            assertThat(generator.generateKey()).containsExactly(1);
+            KeyPoolStats stats = generator.stats();
+            assertThat(stats.getCapacity()).isEqualTo(4);
+            assertThat(stats.getFallbackCount()).isZero();
+            assertThat(stats.getRefillCount()).isGreaterThanOrEqualTo(4);
+        }
+    }
+
+    @Test
+    public void testSynchronousFallbackWhenDrained() throws Exception {
+        AtomicInteger generated = new AtomicInteger();
+        PooledCryptoKeyGenerator generator = new PooledCryptoKeyGenerator(
+                () -> new byte[]{(byte) generated.incrementAndGet()}, 2);
+        awaitDepth(generator, 2);
+        generator.close();
+        Thread.sleep(50);
+
+        for (int i = 0; i < 5; i++) {
+            assertThat(generator.generateKey()).hasSize(1);
+        }
+        assertThat(generator.stats().getFallbackCount()).isGreaterThanOrEqualTo(3);
+        assertThat(generator.stats().getDepth()).isZero();
+    }
+
+    @Test
+    public void testRefillRateIgnoresTimeSpentFull() throws Exception {
+        AtomicLong time = new AtomicLong();
+        // each key takes 10 ms to generate
+        KeyPool<byte[]> pool = new KeyPool<>(() -> new byte[]{(byte) time.addAndGet(TimeUnit.MILLISECONDS.toNanos(10))},
+                4, "test-key-pool", time::get);
+        try {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pool.stats().getRefillCount() < 4 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(50);
+
+            assertThat(pool.stats().getRefillCount()).isEqualTo(4);
+            assertThat(pool.stats().getRefillRate()).isCloseTo(100.0, within(0.001));
+        }
+        finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testPooledKeyReferencesAreEncrypted() throws Exception {
+        MasterKeyEncryption masterKeyEncryption = new MasterKeyEncryption() {
+            @Override
+            public byte[] encryptKey(byte[] key) {
+                return new byte[]{42, key[0]};
+            }
+
+            @Override
+            public byte[] decryptKey(byte[] encryptedKey) {
+                return new byte[]{encryptedKey[1]};
+            }
+        };
+        try (PooledKeyPerRecordKeyReferenceExtractor extractor = new PooledKeyPerRecordKeyReferenceExtractor(
+                () -> new byte[]{7}, masterKeyEncryption, 3)) {
+            assertThat(extractor.extractKeyReference("topic", "key")).containsExactly(42, 7);
+            assertThat(extractor.stats().getCapacity()).isEqualTo(3);
+        }
+    }
+
+    private static void awaitDepth(PooledCryptoKeyGenerator generator, int depth) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (generator.stats().getDepth() < depth && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(generator.stats().getDepth()).isEqualTo(depth);
+    }
+}
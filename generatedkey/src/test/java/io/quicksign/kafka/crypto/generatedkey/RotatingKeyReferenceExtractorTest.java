@@ -0,0 +1,184 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.generatedkey;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.junit.Test;
+
+import io.quicksign.kafka.crypto.CryptoSerializer;
+import io.quicksign.kafka.crypto.EncryptedEnvelope;
+import io.quicksign.kafka.crypto.Encryptor;
+import io.quicksign.kafka.crypto.encryption.KeyProvider;
+
+public class RotatingKeyReferenceExtractorTest {
+
+    private final AtomicInteger generatedKeys = new AtomicInteger();
+    private final CryptoKeyGenerator cryptoKeyGenerator = () -> new byte[]{(byte) generatedKeys.incrementAndGet()};
+    private final MasterKeyEncryption masterKeyEncryption = new MasterKeyEncryption() {
+        @Override
+        public byte[] encryptKey(byte[] key) {
+            return new byte[]{42, key[0]};
+        }
+
+        @Override
+        public byte[] decryptKey(byte[] encryptedKey) {
+            return new byte[]{encryptedKey[1]};
+        }
+    };
+    private final AtomicLong time = new AtomicLong();
+
+    @Test
+    public void testKeyIsRotatedAfterMaxRecords() {
+        RotatingKeyReferenceExtractor extractor = RotatingKeyReferenceExtractor.builder(cryptoKeyGenerator, masterKeyEncryption)
+                .maxRecords(2)
+                .build();
+
+        byte[] keyRef1 = extractor.extractKeyReference("topic", "key");
+        byte[] keyRef2 = extractor.extractKeyReference("topic", "key");
+        byte[] keyRef3 = extractor.extractKeyReference("topic", "key");
+
+        assertThat(keyRef2).isSameAs(keyRef1);
+        assertThat(keyRef3).isNotEqualTo(keyRef1);
+        assertThat(extractor.getRotationCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testKeyIsRotatedAfterMaxAge() {
+        RotatingKeyReferenceExtractor extractor = RotatingKeyReferenceExtractor.builder(cryptoKeyGenerator, masterKeyEncryption)
+                .maxAge(Duration.ofSeconds(10))
+                .ticker(time::get)
+                .build();
+
+        byte[] keyRef1 = extractor.extractKeyReference("topic", "key");
+        time.set(TimeUnit.SECONDS.toNanos(9));
+        assertThat(extractor.extractKeyReference("topic", "key")).isSameAs(keyRef1);
+        time.set(TimeUnit.SECONDS.toNanos(10));
+        assertThat(extractor.extractKeyReference("topic", "key")).isNotEqualTo(keyRef1);
+    }
+
+    @Test
+    public void testKeyIsRotatedAfterMaxBytes() {
+        RotatingKeyReferenceExtractor extractor = RotatingKeyReferenceExtractor.builder(cryptoKeyGenerator, masterKeyEncryption)
+                .maxBytes(100)
+                .build();
+        Encryptor encryptor = extractor.countingEncryptor((value, keyRef) -> value);
+
+        byte[] keyRef1 = extractor.extractKeyReference("topic", "key");
+        encryptor.encrypt(new byte[60], keyRef1);
+        assertThat(extractor.extractKeyReference("topic", "key")).isSameAs(keyRef1);
+        encryptor.encrypt(new byte[60], keyRef1);
+        assertThat(extractor.extractKeyReference("topic", "key")).isNotEqualTo(keyRef1);
+    }
+
+    @Test
+    public void testOneKeyPerTopic() {
+        RotatingKeyReferenceExtractor extractor = RotatingKeyReferenceExtractor.builder(cryptoKeyGenerator, masterKeyEncryption)
+                .perTopic(true)
+                .build();
+
+        byte[] keyRef1 = extractor.extractKeyReference("topic1", "key");
+        byte[] keyRef2 = extractor.extractKeyReference("topic2", "key");
+
+        assertThat(keyRef2).isNotEqualTo(keyRef1);
+        assertThat(extractor.extractKeyReference("topic1", "key")).isSameAs(keyRef1);
+    }
+
+    @Test
+    public void testKeyProviderReturnsCurrentKeyWithoutUnwrapping() {
+        RotatingKeyReferenceExtractor extractor = RotatingKeyReferenceExtractor.builder(cryptoKeyGenerator, masterKeyEncryption)
+                .build();
+        KeyProvider fallback = mock(KeyProvider.class);
+        KeyProvider keyProvider = extractor.asKeyProvider(fallback);
+
+        byte[] keyRef = extractor.extractKeyReference("topic", "key");
+
+        assertThat(keyProvider.getKey(keyRef)).contains(masterKeyEncryption.decryptKey(keyRef));
+        verifyZeroInteractions(fallback);
+    }
+
+    @Test
+    public void testKeyProviderMatchesKeyReferencesByContent() {
+        RotatingKeyReferenceExtractor extractor = RotatingKeyReferenceExtractor.builder(cryptoKeyGenerator, masterKeyEncryption)
+                .maxRecords(1)
+                .build();
+        KeyProvider fallback = mock(KeyProvider.class);
+        KeyProvider keyProvider = extractor.asKeyProvider(fallback);
+
+        byte[] keyRef1 = extractor.extractKeyReference("topic", "key");
+        assertThat(keyProvider.getKey(keyRef1.clone())).contains(masterKeyEncryption.decryptKey(keyRef1));
+        verifyZeroInteractions(fallback);
+
+        extractor.extractKeyReference("topic", "key");
+        keyProvider.getKey(keyRef1.clone());
+        verify(fallback).getKey(keyRef1);
+    }
+
+    @Test
+    public void testCountingEncryptorKeepsTheEnvelopeHeader() {
+        RotatingKeyReferenceExtractor extractor = RotatingKeyReferenceExtractor.builder(cryptoKeyGenerator, masterKeyEncryption)
+                .maxBytes(1000)
+                .build();
+        Encryptor chunkedEncryptor = new Encryptor() {
+            @Override
+            public byte[] encrypt(byte[] value, byte[] keyRef) {
+                return value.clone();
+            }
+
+            @Override
+            public int getAlgorithmId() {
+                return 2;
+            }
+
+            @Override
+            public boolean isChunked() {
+                return true;
+            }
+        };
+        byte[] keyRef = extractor.extractKeyReference("topic", "key");
+        ThreadLocal<byte[]> keyRefHolder = ThreadLocal.withInitial(() -> keyRef);
+        CryptoSerializer<byte[]> serializer = new CryptoSerializer<>(new ByteArraySerializer(),
+                extractor.countingEncryptor(chunkedEncryptor), keyRefHolder);
+
+        EncryptedEnvelope envelope = EncryptedEnvelope.parse(serializer.serialize("topic", new byte[10]));
+
+        assertThat(envelope.getAlgorithmId()).isEqualTo(2);
+        assertThat(envelope.isChunked()).isTrue();
+        assertThat(envelope.getKeyRef()).isEqualTo(keyRef);
+    }
+
+    @Test
+    public void testMaxAgeMustBePositive() {
+        RotatingKeyReferenceExtractor.Builder builder = RotatingKeyReferenceExtractor.builder(cryptoKeyGenerator, masterKeyEncryption);
+
+        assertThatThrownBy(() -> builder.maxAge(Duration.ZERO)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> builder.maxAge(Duration.ofSeconds(-1))).isInstanceOf(IllegalArgumentException.class);
+    }
+}
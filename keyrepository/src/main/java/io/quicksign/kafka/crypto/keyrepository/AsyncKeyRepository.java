@@ -0,0 +1,72 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.keyrepository;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+
+/**
+ * It provides a key according to its name, without blocking the calling thread.
+ * It can represent keys stored on a remote key service.
+ */
+public interface AsyncKeyRepository {
+
+    /**
+     * It retrieves the key from the key repository.
+     * The stage will be completed with {@link Optional#EMPTY} if the key can not be found on the key repository
+     *
+     * @param keyName
+     * @return
+     */
+    CompletionStage<Optional<byte[]>> getKeyAsync(String keyName);
+
+    /**
+     * @return a KeyRepository waiting for the keys retrieved by this AsyncKeyRepository
+     */
+    default KeyRepository toKeyRepository() {
+        return keyName -> {
+            try {
+                return getKeyAsync(keyName).toCompletableFuture().join();
+            }
+            catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * @param keyRepository the blocking KeyRepository
+     * @param executor      executor running the blocking retrievals ({@code Runnable::run} to run them on the calling thread)
+     * @return the KeyRepository itself if it is an AsyncKeyRepository, else an AsyncKeyRepository retrieving the keys
+     * with the KeyRepository on the executor
+     */
+    static AsyncKeyRepository of(KeyRepository keyRepository, Executor executor) {
+        if (keyRepository instanceof AsyncKeyRepository) {
+            return (AsyncKeyRepository) keyRepository;
+        }
+        return keyName -> CompletableFuture.supplyAsync(() -> keyRepository.getKey(keyName), executor);
+    }
+}
@@ -0,0 +1,279 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.keyrepository;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <p>KeyRepository coalescing the concurrent retrievals of keys into bulk calls to a {@link BulkKeyRepository}.</p>
+ *
+ * <p>The first retrieval of a batch waits at most for the batching window, during which the retrievals of other
+ * threads (or the asynchronous retrievals of the same thread, see {@link AsyncKeyRepository}) join the batch.
+ * The batch is sent as soon as it reaches the maximum batch size. Concurrent retrievals of the same key name
+ * share the same result.</p>
+ *
+ * <p>Bulk calls are made on a fetch executor distinct from the thread closing the batching windows, so that a slow
+ * bulk call does not delay the next batches. A failing bulk call, or one returning {@code null}, fails all the
+ * retrievals of its batch, and closing the repository fails the pending retrievals.</p>
+ *
+ * <p>This repository does not cache the keys: it is meant to sit below a cache, such as
+ * {@link io.quicksign.kafka.crypto.cache.CachingKeyProvider}, to reduce the number of round trips when many
+ * distinct keys miss at once, e.g. when a lagging consumer resumes.</p>
+ */
+public class BatchingKeyRepository implements KeyRepository, AsyncKeyRepository, Closeable {
+
+    /**
+     * maximum time a blocking retrieval waits for its bulk call by default
+     */
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+
+    private final BulkKeyRepository bulkKeyRepository;
+    private final long windowNanos;
+    private final int maxBatchSize;
+    private final long timeoutNanos;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService ownFetchExecutor;
+    private final Executor fetchExecutor;
+    private final Object lock = new Object();
+    private final Set<Map<String, CompletableFuture<Optional<byte[]>>>> sentBatches =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    private Map<String, CompletableFuture<Optional<byte[]>>> batch = new HashMap<>();
+    private boolean closed;
+
+    /**
+     * Bulk calls are made by background threads, blocking retrievals wait at most {@link #DEFAULT_TIMEOUT}.
+     *
+     * @param bulkKeyRepository repository used to retrieve the keys
+     * @param window            maximum time a retrieval waits for other retrievals to join its batch
+     * @param maxBatchSize      maximum number of key names per bulk call
+     */
+    public BatchingKeyRepository(BulkKeyRepository bulkKeyRepository, Duration window, int maxBatchSize) {
+        this(bulkKeyRepository, window, maxBatchSize, null);
+    }
+
+    /**
+     * Blocking retrievals wait at most {@link #DEFAULT_TIMEOUT}.
+     *
+     * @param bulkKeyRepository repository used to retrieve the keys
+     * @param window            maximum time a retrieval waits for other retrievals to join its batch
+     * @param maxBatchSize      maximum number of key names per bulk call
+     * @param fetchExecutor     executor making the bulk calls ({@code null} to use background threads)
+     */
+    public BatchingKeyRepository(BulkKeyRepository bulkKeyRepository, Duration window, int maxBatchSize,
+                                 Executor fetchExecutor) {
+        this(bulkKeyRepository, window, maxBatchSize, fetchExecutor, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param bulkKeyRepository repository used to retrieve the keys
+     * @param window            maximum time a retrieval waits for other retrievals to join its batch
+     * @param maxBatchSize      maximum number of key names per bulk call
+     * @param fetchExecutor     executor making the bulk calls ({@code null} to use background threads)
+     * @param timeout           maximum time a blocking retrieval waits for its bulk call
+     */
+    public BatchingKeyRepository(BulkKeyRepository bulkKeyRepository, Duration window, int maxBatchSize,
+                                 Executor fetchExecutor, Duration timeout) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be positive");
+        }
+        if (timeout.isZero() || timeout.isNegative()) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        this.bulkKeyRepository = bulkKeyRepository;
+        this.windowNanos = window.toNanos();
+        this.maxBatchSize = maxBatchSize;
+        this.timeoutNanos = timeout.toNanos();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kafka-encryption-key-batch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ownFetchExecutor = fetchExecutor != null ? null : Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "kafka-encryption-key-fetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.fetchExecutor = fetchExecutor != null ? fetchExecutor : ownFetchExecutor;
+    }
+
+    /**
+     * Retrieve the key with the next bulk call, waiting for it at most the timeout of this repository.
+     *
+     * @param keyName
+     * @return
+     * @throws IllegalStateException if the retrieval times out, is interrupted, or the repository is closed
+     */
+    @Override
+    public Optional<byte[]> getKey(String keyName) {
+        try {
+            return getKeyAsync(keyName).toCompletableFuture().get(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        catch (TimeoutException e) {
+            throw new IllegalStateException("retrieval of key " + keyName + " timed out", e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("retrieval of key " + keyName + " interrupted", e);
+        }
+    }
+
+    /**
+     * Retrieve the key with the next bulk call.
+     *
+     * @param keyName
+     * @return
+     */
+    @Override
+    public CompletionStage<Optional<byte[]>> getKeyAsync(String keyName) {
+        Map<String, CompletableFuture<Optional<byte[]>>> fullBatch = null;
+        CompletableFuture<Optional<byte[]>> result;
+        synchronized (lock) {
+            if (closed) {
+                result = new CompletableFuture<>();
+                result.completeExceptionally(closedException());
+                return result;
+            }
+            result = batch.get(keyName);
+            if (result != null) {
+                return result;
+            }
+            result = new CompletableFuture<>();
+            batch.put(keyName, result);
+            if (batch.size() >= maxBatchSize) {
+                fullBatch = batch;
+                sentBatches.add(fullBatch);
+                batch = new HashMap<>();
+            }
+            else if (batch.size() == 1) {
+                Map<String, CompletableFuture<Optional<byte[]>>> scheduledBatch = batch;
+                scheduler.schedule(() -> flush(scheduledBatch), windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (fullBatch != null) {
+            send(fullBatch);
+        }
+        return result;
+    }
+
+    /**
+     * Stop the background threads, and fail the retrievals not completed yet.
+     */
+    @Override
+    public void close() {
+        List<Map<String, CompletableFuture<Optional<byte[]>>>> pending;
+        synchronized (lock) {
+            closed = true;
+            pending = new ArrayList<>(sentBatches);
+            pending.add(batch);
+            sentBatches.clear();
+            batch = new HashMap<>();
+        }
+        scheduler.shutdownNow();
+        if (ownFetchExecutor != null) {
+            ownFetchExecutor.shutdownNow();
+        }
+        IllegalStateException exception = closedException();
+        pending.forEach(closedBatch -> fail(closedBatch, exception));
+    }
+
+    private void flush(Map<String, CompletableFuture<Optional<byte[]>>> scheduledBatch) {
+        synchronized (lock) {
+            if (batch != scheduledBatch) {
+                // already sent when full
+                return;
+            }
+            sentBatches.add(scheduledBatch);
+            batch = new HashMap<>();
+        }
+        send(scheduledBatch);
+    }
+
+    private void send(Map<String, CompletableFuture<Optional<byte[]>>> sentBatch) {
+        try {
+            fetchExecutor.execute(() -> fetch(sentBatch));
+        }
+        catch (RejectedExecutionException e) {
+            completed(sentBatch);
+            fail(sentBatch, e);
+        }
+    }
+
+    private void fetch(Map<String, CompletableFuture<Optional<byte[]>>> sentBatch) {
+        try {
+            Map<String, byte[]> keys = bulkKeyRepository.getKeys(sentBatch.keySet());
+            if (keys == null) {
+                throw new IllegalStateException("bulk key repository returned no result");
+            }
+            sentBatch.forEach((keyName, future) -> future.complete(Optional.ofNullable(keys.get(keyName))));
+        }
+        catch (Throwable t) {
+            fail(sentBatch, t);
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+        }
+        finally {
+            completed(sentBatch);
+        }
+    }
+
+    private void completed(Map<String, CompletableFuture<Optional<byte[]>>> sentBatch) {
+        synchronized (lock) {
+            sentBatches.remove(sentBatch);
+        }
+    }
+
+    private static void fail(Map<String, CompletableFuture<Optional<byte[]>>> failedBatch, Throwable t) {
+        // futures already completed are left unchanged
+        failedBatch.values().forEach(future -> future.completeExceptionally(t));
+    }
+
+    private static IllegalStateException closedException() {
+        return new IllegalStateException("key repository closed");
+    }
+}
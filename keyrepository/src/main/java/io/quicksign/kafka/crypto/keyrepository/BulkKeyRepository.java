@@ -0,0 +1,53 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.keyrepository;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A {@link KeyRepository} able to retrieve several keys in a single call, typically a remote key service
+ * with a bulk endpoint.
+ *
+ * @see BatchingKeyRepository
+ */
+public interface BulkKeyRepository extends KeyRepository {
+
+    /**
+     * It retrieves the keys from the key repository.
+     * Keys that can not be found on the key repository are absent from the result.
+     *
+     * @param keyNames names of the keys to retrieve
+     * @return the keys found, by name
+     */
+    Map<String, byte[]> getKeys(Collection<String> keyNames);
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The default implementation retrieves the key with {@link #getKeys(Collection)}.
+     */
+    @Override
+    default Optional<byte[]> getKey(String keyName) {
+        return Optional.ofNullable(getKeys(Collections.singleton(keyName)).get(keyName));
+    }
+}
@@ -25,6 +25,9 @@ package io.quicksign.kafka.crypto.keyrepository;
  * <p>Calling several time {@link #obfuscate(String)}</p> with the same keyName may give
  * different results. It is recommend to not let appear in the Kafka the same key reference
  * in several records</p>
+ *
+ * <p>{@link RepositoryBasedKeyReferenceExtractor} can memoize the keyRef of each keyName to save the obfuscation
+ * per record, in which case the records of a keyName share the same keyRef.</p>
  */
 public interface KeyNameObfuscator {
 
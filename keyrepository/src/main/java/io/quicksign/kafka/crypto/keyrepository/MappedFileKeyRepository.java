@@ -0,0 +1,498 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.keyrepository;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>{@link KeyRepository} storing keys in a memory-mapped file, indexed by an open-addressing hash table,
+ * suited to millions of keys (e.g. one key per entity for crypto-shredding).</p>
+ *
+ * <ul>
+ * <li>Opening the repository maps the file without reading it: startup time does not depend on the number of keys,
+ * and keys are not held on the heap.</li>
+ * <li>Lookups take no lock. A record is fully written, and the end of the data published, before the slot
+ * of the index pointing to it is updated. Superseded records are zeroed under the write lock of a
+ * {@link StampedLock}, and lookups validate an optimistic read of it before returning: a lookup that overlapped
+ * the zeroing of a record is retried.</li>
+ * <li>Updates are appended by a single writer. Superseded and removed records are zeroed in place, then dropped
+ * by a compaction rewriting the file, run in the background when they take more than half of the data,
+ * or synchronously when the file is full. Writers wait for the compaction, readers do not.</li>
+ * </ul>
+ *
+ * <p>File structure:
+ * <pre>header(64 bytes)|index(capacity * (hash(8 bytes)|record offset(8 bytes)))|records</pre>
+ * with records of structure
+ * <pre>name.length(4 bytes)|key.length(4 bytes, -1 for a removed key)|name(UTF-8)|key</pre>
+ * </p>
+ *
+ * <p>The file is limited to 2 GiB and must be written by a single instance. Updates are written to the page cache:
+ * call {@link #flush()} to make them durable.
+ * Please note that zeroing a record does not erase the copies kept by the file system or the storage device.</p>
+ */
+public class MappedFileKeyRepository implements KeyRepository, Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedFileKeyRepository.class);
+
+    static final int MAGIC = 0x4B455953;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int SLOT_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 8;
+
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int USED_SLOTS_OFFSET = 12;
+    private static final int LIVE_COUNT_OFFSET = 16;
+    private static final int DATA_END_OFFSET = 20;
+    private static final int DEAD_BYTES_OFFSET = 24;
+
+    private static final int MIN_CAPACITY = 16;
+    private static final int ESTIMATED_RECORD_SIZE = 64;
+    private static final int MIN_DATA_SIZE = 1 << 16;
+    private static final long MAX_FILE_SIZE = Integer.MAX_VALUE;
+    private static final double MAX_LOAD_FACTOR = 0.7;
+    private static final int MIN_DEAD_BYTES_BEFORE_COMPACTION = 1 << 20;
+
+    private final Path path;
+    private final Path compactionPath;
+    private final int initialCapacity;
+    private final Object writeLock = new Object();
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final ExecutorService compactionExecutor;
+    private volatile Segment segment;
+
+    /**
+     * Open the key file, or create it if it does not exist.
+     *
+     * @param path the key file
+     * @throws IOException if the file can not be opened or is not a key file
+     */
+    public MappedFileKeyRepository(Path path) throws IOException {
+        this(path, 1024);
+    }
+
+    /**
+     * Open the key file, or create it if it does not exist.
+     *
+     * @param path            the key file
+     * @param initialCapacity number of keys the file is sized for when created
+     * @throws IOException if the file can not be opened or is not a key file
+     */
+    public MappedFileKeyRepository(Path path, int initialCapacity) throws IOException {
+        this.path = path;
+        this.compactionPath = path.resolveSibling(path.getFileName() + ".compacting");
+        this.initialCapacity = Math.max(MIN_CAPACITY, initialCapacity);
+        Files.deleteIfExists(compactionPath);
+        this.segment = Files.exists(path) ? Segment.open(path) : Segment.create(path, slotsFor(this.initialCapacity),
+                dataSizeFor(this.initialCapacity, 0));
+        this.compactionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kafka-encryption-key-file-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The lookup takes no lock.
+     */
+    @Override
+    public Optional<byte[]> getKey(String keyName) {
+        return segment.get(keyName.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Store the key, replacing the previous key with the same name if any.
+     *
+     * @param keyName name of the key
+     * @param key     the key
+     * @throws UncheckedIOException if the file can not be compacted when full
+     */
+    public void put(String keyName, byte[] key) {
+        write(keyName.getBytes(StandardCharsets.UTF_8), key);
+    }
+
+    /**
+     * Remove the key. The record of the key is zeroed.
+     *
+     * @param keyName name of the key
+     * @return {@code true} if the key was present
+     * @throws UncheckedIOException if the file can not be compacted when full
+     */
+    public boolean remove(String keyName) {
+        byte[] name = keyName.getBytes(StandardCharsets.UTF_8);
+        synchronized (writeLock) {
+            if (!segment.get(name).isPresent()) {
+                return false;
+            }
+            write(name, null);
+            return true;
+        }
+    }
+
+    /**
+     * @return the number of keys stored
+     */
+    public int size() {
+        return segment.liveCount;
+    }
+
+    /**
+     * Write the updates to the storage device.
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * Rewrite the file without the superseded and removed records.
+     *
+     * @throws UncheckedIOException if the file can not be rewritten
+     */
+    public void compact() {
+        synchronized (writeLock) {
+            compact(0);
+        }
+    }
+
+    /**
+     * Stop the background compaction and flush the updates.
+     */
+    @Override
+    public void close() {
+        compactionExecutor.shutdown();
+        flush();
+    }
+
+    private void write(byte[] name, byte[] key) {
+        int recordSize = RECORD_HEADER_SIZE + name.length + (key == null ? 0 : key.length);
+        synchronized (writeLock) {
+            Segment current = segment;
+            if (!current.hasRoomFor(recordSize)) {
+                compact(recordSize);
+                current = segment;
+            }
+            current.append(name, key, hash(name));
+            if (current.deadBytes > MIN_DEAD_BYTES_BEFORE_COMPACTION
+                    && current.deadBytes > (current.dataEnd - current.dataStart) / 2
+                    && compactionScheduled.compareAndSet(false, true)) {
+                compactionExecutor.execute(this::compactInBackground);
+            }
+        }
+    }
+
+    private void compactInBackground() {
+        compactionScheduled.set(false);
+        try {
+            compact();
+        }
+        catch (RuntimeException e) {
+            log.error("error while compacting key file {}", path, e);
+        }
+    }
+
+    private void compact(int additionalRecordSize) {
+        Segment current = segment;
+        int liveCount = current.liveCount + 1;
+        try {
+            Segment compacted = Segment.create(compactionPath, slotsFor(Math.max(initialCapacity, liveCount * 2)),
+                    dataSizeFor(Math.max(initialCapacity, liveCount), 2L * (current.liveBytes() + additionalRecordSize)));
+            current.copyLiveRecordsTo(compacted);
+            compacted.buffer.force();
+            Files.move(compactionPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            segment = compacted;
+            log.debug("key file {} compacted: {} keys, {} bytes", path, compacted.liveCount, compacted.buffer.capacity());
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("unable to compact key file " + path, e);
+        }
+    }
+
+    private static int slotsFor(int keyCount) {
+        long slots = Long.highestOneBit((long) Math.ceil(keyCount / MAX_LOAD_FACTOR)) << 1;
+        return (int) Math.min(Math.max(slots, MIN_CAPACITY), 1 << 26);
+    }
+
+    private static long dataSizeFor(int keyCount, long minimumSize) {
+        return Math.max(Math.max(MIN_DATA_SIZE, (long) keyCount * ESTIMATED_RECORD_SIZE), minimumSize);
+    }
+
+    static long hash(byte[] name) {
+        // FNV-1a followed by a finalizer spreading the bits, 0 is reserved for empty slots
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : name) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * A mapping of the key file. Fields other than {@link #published}, {@link #liveCount} and {@link #zeroing}
+     * are only accessed by the writer.
+     */
+    private static final class Segment {
+
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private final int dataStart;
+        private volatile int published;
+        private int dataEnd;
+        private int usedSlots;
+        private volatile int liveCount;
+        private final StampedLock zeroing = new StampedLock();
+        private long deadBytes;
+
+        private Segment(MappedByteBuffer buffer) throws IOException {
+            this.buffer = buffer;
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("not a key file");
+            }
+            this.capacity = buffer.getInt(CAPACITY_OFFSET);
+            this.dataStart = HEADER_SIZE + capacity * SLOT_SIZE;
+            this.usedSlots = buffer.getInt(USED_SLOTS_OFFSET);
+            this.liveCount = buffer.getInt(LIVE_COUNT_OFFSET);
+            this.dataEnd = buffer.getInt(DATA_END_OFFSET);
+            this.deadBytes = buffer.getLong(DEAD_BYTES_OFFSET);
+            if (Integer.bitCount(capacity) != 1 || dataEnd < dataStart || dataEnd > buffer.capacity()) {
+                throw new IOException("corrupted key file");
+            }
+            this.published = dataEnd;
+        }
+
+        static Segment open(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return new Segment(channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+            }
+        }
+
+        static Segment create(Path path, int capacity, long dataSize) throws IOException {
+            long fileSize = HEADER_SIZE + (long) capacity * SLOT_SIZE + dataSize;
+            if (fileSize > MAX_FILE_SIZE) {
+                throw new IOException("key file limited to " + MAX_FILE_SIZE + " bytes");
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(CAPACITY_OFFSET, capacity);
+                buffer.putInt(DATA_END_OFFSET, HEADER_SIZE + capacity * SLOT_SIZE);
+                return new Segment(buffer);
+            }
+        }
+
+        /**
+         * Look the key up without lock. A lookup overlapping the replacement or the removal of the key may read
+         * a slot pointing past its snapshot of {@link #published}, or a record being zeroed: the snapshot is then
+         * refreshed, and a result is only returned if no record was zeroed during the lookup, validated as an
+         * optimistic read of {@link #zeroing}.
+         */
+        Optional<byte[]> get(byte[] name) {
+            long hash = hash(name);
+            int mask = capacity - 1;
+            while (true) {
+                long stamp = zeroing.tryOptimisticRead();
+                if (stamp == 0) {
+                    // a record is being zeroed
+                    Thread.yield();
+                    continue;
+                }
+                int limit = published;
+                for (int i = 0, slot = (int) hash & mask; i < capacity; i++, slot = (slot + 1) & mask) {
+                    int slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+                    long slotHash = buffer.getLong(slotPosition);
+                    if (slotHash == 0) {
+                        break;
+                    }
+                    if (slotHash != hash) {
+                        continue;
+                    }
+                    long offset = buffer.getLong(slotPosition + 8);
+                    if (offset >= limit) {
+                        // the slot was updated after the snapshot, the record is published before the slot
+                        limit = published;
+                    }
+                    if (offset < dataStart || offset >= limit || !nameMatches((int) offset, name)) {
+                        // another name with the same hash, or a record being zeroed
+                        continue;
+                    }
+                    int keyLength = buffer.getInt((int) offset + 4);
+                    if (keyLength < 0) {
+                        break;
+                    }
+                    byte[] key = new byte[keyLength];
+                    ByteBuffer record = buffer.duplicate();
+                    record.position((int) offset + RECORD_HEADER_SIZE + name.length);
+                    record.get(key);
+                    if (zeroing.validate(stamp)) {
+                        return Optional.of(key);
+                    }
+                    // the record was zeroed while being read, the slot points to its replacement
+                    break;
+                }
+                if (zeroing.validate(stamp)) {
+                    return Optional.empty();
+                }
+            }
+        }
+
+        boolean hasRoomFor(int recordSize) {
+            return (long) dataEnd + recordSize <= buffer.capacity() && usedSlots + 1 <= capacity * MAX_LOAD_FACTOR;
+        }
+
+        void append(byte[] name, byte[] key, long hash) {
+            int offset = dataEnd;
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset);
+            record.putInt(name.length);
+            record.putInt(key == null ? -1 : key.length);
+            record.put(name);
+            if (key != null) {
+                record.put(key);
+            }
+            dataEnd = record.position();
+            buffer.putInt(DATA_END_OFFSET, dataEnd);
+            published = dataEnd;
+
+            int slotPosition = findSlot(name, hash);
+            long previousOffset = buffer.getLong(slotPosition + 8);
+            if (buffer.getLong(slotPosition) == 0) {
+                buffer.putLong(slotPosition + 8, offset);
+                buffer.putLong(slotPosition, hash);
+                usedSlots++;
+                liveCount += key == null ? 0 : 1;
+            }
+            else {
+                buffer.putLong(slotPosition + 8, offset);
+                boolean wasLive = buffer.getInt((int) previousOffset + 4) >= 0;
+                liveCount += (key == null ? 0 : 1) - (wasLive ? 1 : 0);
+                // lets the readers of the previous record retry instead of returning it
+                long stamp = zeroing.writeLock();
+                int previousSize;
+                try {
+                    previousSize = zero((int) previousOffset);
+                }
+                finally {
+                    zeroing.unlockWrite(stamp);
+                }
+                // removed records are counted as dead when written
+                deadBytes += wasLive ? previousSize : 0;
+            }
+            if (key == null) {
+                deadBytes += dataEnd - offset;
+            }
+            buffer.putInt(USED_SLOTS_OFFSET, usedSlots);
+            buffer.putInt(LIVE_COUNT_OFFSET, liveCount);
+            buffer.putLong(DEAD_BYTES_OFFSET, deadBytes);
+        }
+
+        void copyLiveRecordsTo(Segment target) {
+            for (int slot = 0; slot < capacity; slot++) {
+                int slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+                long slotHash = buffer.getLong(slotPosition);
+                if (slotHash == 0) {
+                    continue;
+                }
+                int offset = (int) buffer.getLong(slotPosition + 8);
+                int keyLength = buffer.getInt(offset + 4);
+                if (keyLength < 0) {
+                    continue;
+                }
+                ByteBuffer record = buffer.duplicate();
+                record.position(offset + RECORD_HEADER_SIZE);
+                byte[] name = new byte[buffer.getInt(offset)];
+                byte[] key = new byte[keyLength];
+                record.get(name);
+                record.get(key);
+                target.append(name, key, slotHash);
+            }
+        }
+
+        long liveBytes() {
+            return dataEnd - dataStart - deadBytes;
+        }
+
+        private int findSlot(byte[] name, long hash) {
+            int mask = capacity - 1;
+            for (int slot = (int) hash & mask; ; slot = (slot + 1) & mask) {
+                int slotPosition = HEADER_SIZE + slot * SLOT_SIZE;
+                long slotHash = buffer.getLong(slotPosition);
+                if (slotHash == 0 || (slotHash == hash && nameMatches((int) buffer.getLong(slotPosition + 8), name))) {
+                    return slotPosition;
+                }
+            }
+        }
+
+        private boolean nameMatches(int offset, byte[] name) {
+            if (buffer.getInt(offset) != name.length) {
+                return false;
+            }
+            int nameOffset = offset + RECORD_HEADER_SIZE;
+            for (int i = 0; i < name.length; i++) {
+                if (buffer.get(nameOffset + i) != name[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Zero the name then the key of a record, so that readers either see the record or a name mismatch
+         *
+         * @return the size of the record
+         */
+        private int zero(int offset) {
+            int nameLength = buffer.getInt(offset);
+            int keyLength = Math.max(0, buffer.getInt(offset + 4));
+            for (int i = 0; i < nameLength; i++) {
+                buffer.put(offset + RECORD_HEADER_SIZE + i, (byte) 0);
+            }
+            for (int i = 0; i < keyLength; i++) {
+                buffer.put(offset + RECORD_HEADER_SIZE + nameLength + i, (byte) 0);
+            }
+            return RECORD_HEADER_SIZE + nameLength + keyLength;
+        }
+    }
+}
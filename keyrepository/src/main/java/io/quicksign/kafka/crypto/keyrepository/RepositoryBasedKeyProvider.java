@@ -20,29 +20,53 @@
 package io.quicksign.kafka.crypto.keyrepository;
 
 import java.util.Optional;
+import java.util.concurrent.CompletionStage;
 
+import io.quicksign.kafka.crypto.encryption.AsyncKeyProvider;
 import io.quicksign.kafka.crypto.encryption.KeyProvider;
 
 /**
- * KeyProvider based on a key repository
+ * KeyProvider based on a key repository.
+ * Built with a repository which is also an {@link AsyncKeyRepository} (such as {@link BatchingKeyRepository}),
+ * it retrieves the keys without blocking through {@link #getKeyAsync(byte[])}.
  *
  * @see KeyRepository
  * @see KeyNameObfuscator
  */
-public class RepositoryBasedKeyProvider implements KeyProvider {
+public class RepositoryBasedKeyProvider implements KeyProvider, AsyncKeyProvider {
 
     private final KeyRepository keyRepository;
+    private final AsyncKeyRepository asyncKeyRepository;
     private final KeyNameObfuscator keyNameObfuscator;
 
     /**
-     * @param keyRepository     the repository for retrieving keys
+     * @param keyRepository     the repository for retrieving keys, used without blocking if it is also an
+     *                          {@link AsyncKeyRepository}
      * @param keyNameObfuscator KeyNameObfuscator used to unobfuscate the keyName
      */
     public RepositoryBasedKeyProvider(KeyRepository keyRepository, KeyNameObfuscator keyNameObfuscator) {
+        this(keyRepository, AsyncKeyRepository.of(keyRepository, Runnable::run), keyNameObfuscator);
+    }
+
+    private RepositoryBasedKeyProvider(KeyRepository keyRepository, AsyncKeyRepository asyncKeyRepository,
+                                       KeyNameObfuscator keyNameObfuscator) {
         this.keyRepository = keyRepository;
+        this.asyncKeyRepository = asyncKeyRepository;
         this.keyNameObfuscator = keyNameObfuscator;
     }
 
+    /**
+     * @param asyncKeyRepository the repository for retrieving keys without blocking
+     * @param keyNameObfuscator  KeyNameObfuscator used to unobfuscate the keyName
+     * @return a RepositoryBasedKeyProvider waiting for the keys on {@link #getKey(byte[])}
+     */
+    public static RepositoryBasedKeyProvider of(AsyncKeyRepository asyncKeyRepository, KeyNameObfuscator keyNameObfuscator) {
+        KeyRepository keyRepository = asyncKeyRepository instanceof KeyRepository
+                ? (KeyRepository) asyncKeyRepository
+                : asyncKeyRepository.toKeyRepository();
+        return new RepositoryBasedKeyProvider(keyRepository, asyncKeyRepository, keyNameObfuscator);
+    }
+
     /**
      * Retrieve the key on the key repository. It will first unobfucate the keyRef to obtain the keyName.
      *
@@ -53,4 +77,20 @@ public class RepositoryBasedKeyProvider implements KeyProvider {
     public Optional<byte[]> getKey(byte[] keyRef) {
         return keyRepository.getKey(keyNameObfuscator.unObfuscate(keyRef));
     }
+
+    /**
+     * Retrieve the key on the key repository without blocking. It will first unobfucate the keyRef to obtain the keyName.
+     *
+     * @param keyRef the reference of the key to retrieve
+     * @return
+     */
+    @Override
+    public CompletionStage<Optional<byte[]>> getKeyAsync(byte[] keyRef) {
+        return asyncKeyRepository.getKeyAsync(keyNameObfuscator.unObfuscate(keyRef));
+    }
+
+    @Override
+    public KeyProvider toKeyProvider() {
+        return this;
+    }
 }
@@ -19,11 +19,26 @@
  */
 package io.quicksign.kafka.crypto.keyrepository;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.quicksign.kafka.crypto.cache.CacheStats;
 import io.quicksign.kafka.crypto.pairing.keyextractor.KeyReferenceExtractor;
 
 
 /**
- * KeyReference used when the key to use is stored on a repository, and the key to use can be computed from the record key
+ * <p>KeyReference used when the key to use is stored on a repository, and the key to use can be computed from the record key</p>
+ *
+ * <p>With a {@code maximumSize}, the keyRef of each keyName is memoized, so that the producer does not obfuscate
+ * the keyName nor allocate a keyRef for each record. This is a trade-off: all the records of a keyName then carry
+ * the same keyRef, even with a {@link KeyNameObfuscator} giving a different keyRef on each call, which is what
+ * {@link KeyNameObfuscator} recommends to avoid. Only memoize when the keyRefs are not considered sensitive, or when
+ * the obfuscation is deterministic anyway. Returned keyRefs are shared and must not be modified.</p>
+ *
+ * <p>The memo is bounded by a CLOCK policy: a hit only marks its keyName as referenced, without lock, and a miss on
+ * a full memo evicts the first keyName not referenced since the last sweep of the clock hand, so hot keyNames stay.
+ * The memo is keyed by keyName, not by record key: the {@link KeyNameExtractor} still runs for each record.</p>
  *
  * @see KeyNameExtractor
  * @see KeyNameObfuscator
@@ -32,21 +47,131 @@ public class RepositoryBasedKeyReferenceExtractor implements KeyReferenceExtract
 
     private final KeyNameExtractor keyNameExtractor;
     private final KeyNameObfuscator keyNameObfuscator;
+    private final ConcurrentMap<String, Memo> keyRefs;
+    private final Memo[] clock;
+    private int clockSize;
+    private int clockHand;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder obfuscationSuccessCount = new LongAdder();
+    private final LongAdder obfuscationFailureCount = new LongAdder();
+    private final LongAdder totalObfuscationTimeNanos = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
 
     /**
      * @param keyNameExtractor  used to compute the keyName
      * @param keyNameObfuscator used to obfuscate the keyName
      */
     public RepositoryBasedKeyReferenceExtractor(KeyNameExtractor keyNameExtractor, KeyNameObfuscator keyNameObfuscator) {
+        this(keyNameExtractor, keyNameObfuscator, 0);
+    }
 
+    /**
+     * @param keyNameExtractor  used to compute the keyName
+     * @param keyNameObfuscator used to obfuscate the keyName
+     * @param maximumSize       maximum number of memoized keyRefs, {@code 0} to obfuscate the keyName of each record
+     */
+    public RepositoryBasedKeyReferenceExtractor(KeyNameExtractor keyNameExtractor, KeyNameObfuscator keyNameObfuscator,
+                                                int maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("maximumSize must not be negative: " + maximumSize);
+        }
         this.keyNameExtractor = keyNameExtractor;
         this.keyNameObfuscator = keyNameObfuscator;
+        this.keyRefs = maximumSize == 0 ? null : new ConcurrentHashMap<>(Math.min(maximumSize, 1024));
+        this.clock = maximumSize == 0 ? null : new Memo[maximumSize];
     }
 
 
     @Override
     public byte[] extractKeyReference(String topic, Object key) {
         String keyName = keyNameExtractor.extractKeyName(topic, key);
-        return keyName == null ? null : keyNameObfuscator.obfuscate(keyName);
+        if (keyName == null) {
+            return null;
+        }
+        if (keyRefs == null) {
+            return keyNameObfuscator.obfuscate(keyName);
+        }
+
+        Memo memo = keyRefs.get(keyName);
+        if (memo != null) {
+            hitCount.increment();
+            if (!memo.referenced) {
+                memo.referenced = true;
+            }
+            return memo.keyRef;
+        }
+        missCount.increment();
+        byte[] keyRef = obfuscate(keyName);
+        return keyRef == null ? null : memoize(keyName, keyRef);
+    }
+
+    /**
+     * @return statistics of the memoized keyRefs: loads are the obfuscations, all zero when not memoizing
+     */
+    public CacheStats stats() {
+        return new CacheStats(hitCount.sum(), 0, missCount.sum(), obfuscationSuccessCount.sum(),
+                obfuscationFailureCount.sum(), totalObfuscationTimeNanos.sum(), 0, evictionCount.sum());
+    }
+
+    /**
+     * @return number of memoized keyRefs
+     */
+    public int size() {
+        return keyRefs == null ? 0 : keyRefs.size();
+    }
+
+    private byte[] obfuscate(String keyName) {
+        long start = System.nanoTime();
+        try {
+            byte[] keyRef = keyNameObfuscator.obfuscate(keyName);
+            obfuscationSuccessCount.increment();
+            return keyRef;
+        }
+        catch (RuntimeException e) {
+            obfuscationFailureCount.increment();
+            throw e;
+        }
+        finally {
+            totalObfuscationTimeNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    private synchronized byte[] memoize(String keyName, byte[] keyRef) {
+        Memo existing = keyRefs.get(keyName);
+        if (existing != null) {
+            return existing.keyRef;
+        }
+        int slot;
+        if (clockSize < clock.length) {
+            slot = clockSize++;
+        }
+        else {
+            while (clock[clockHand].referenced) {
+                clock[clockHand].referenced = false;
+                clockHand = (clockHand + 1) % clock.length;
+            }
+            slot = clockHand;
+            clockHand = (clockHand + 1) % clock.length;
+            keyRefs.remove(clock[slot].keyName);
+            evictionCount.increment();
+        }
+        Memo memo = new Memo(keyName, keyRef);
+        clock[slot] = memo;
+        keyRefs.put(keyName, memo);
+        return keyRef;
+    }
+
+    private static final class Memo {
+
+        private final String keyName;
+        private final byte[] keyRef;
+        private volatile boolean referenced;
+
+        Memo(String keyName, byte[] keyRef) {
+            this.keyName = keyName;
+            this.keyRef = keyRef;
+        }
     }
 }
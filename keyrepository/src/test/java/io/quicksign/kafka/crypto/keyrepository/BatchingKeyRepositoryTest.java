@@ -0,0 +1,219 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.keyrepository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class BatchingKeyRepositoryTest {
+
+    @Test
+    public void testConcurrentMissesAreCoalesced() throws Exception {
+        StandInKeyServer server = new StandInKeyServer(20, 100);
+        try (BatchingKeyRepository repository = new BatchingKeyRepository(server, Duration.ofMillis(50), 1000)) {
+            List<CompletableFuture<Optional<byte[]>>> results = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                results.add(repository.getKeyAsync("key" + i).toCompletableFuture());
+            }
+            CompletableFuture<Optional<byte[]>> unknown = repository.getKeyAsync("unknown").toCompletableFuture();
+            CompletableFuture<Optional<byte[]>> duplicate = repository.getKeyAsync("key7").toCompletableFuture();
+
+            for (int i = 0; i < 100; i++) {
+                assertThat(results.get(i).get()).contains(StandInKeyServer.key("key" + i));
+            }
+            assertThat(unknown.get()).isEmpty();
+            assertThat(duplicate).isSameAs(results.get(7));
+            assertThat(server.batchSizes()).containsExactly(101);
+        }
+    }
+
+    @Test
+    public void testBatchIsSentWhenFull() throws Exception {
+        StandInKeyServer server = new StandInKeyServer(5, 25);
+        try (BatchingKeyRepository repository = new BatchingKeyRepository(server, Duration.ofSeconds(10), 10)) {
+            List<CompletableFuture<Optional<byte[]>>> results = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                results.add(repository.getKeyAsync("key" + i).toCompletableFuture());
+            }
+
+            CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get();
+            assertThat(server.batchSizes()).containsExactly(10, 10);
+        }
+    }
+
+    @Test
+    public void testBlockingRetrievalsFromSeveralThreads() throws Exception {
+        StandInKeyServer server = new StandInKeyServer(20, 10);
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (BatchingKeyRepository repository = new BatchingKeyRepository(server, Duration.ofMillis(200), 1000)) {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Optional<byte[]>>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                String keyName = "key" + i;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return repository.getKey(keyName);
+                }));
+            }
+            start.countDown();
+
+            for (int i = 0; i < threads; i++) {
+                assertThat(results.get(i).get()).contains(StandInKeyServer.key("key" + i));
+            }
+            assertThat(server.batchSizes().size()).isLessThan(threads);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testErrorIsPropagatedToAllWaiters() {
+        BulkKeyRepository failingServer = keyNames -> {
+            throw new IllegalStateException("key server unavailable");
+        };
+        try (BatchingKeyRepository repository = new BatchingKeyRepository(failingServer, Duration.ofMillis(10), 1000)) {
+            assertThatThrownBy(() -> repository.getKey("key1"))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessage("key server unavailable");
+        }
+    }
+
+    @Test
+    public void testNullResultFailsAllWaiters() {
+        BulkKeyRepository nullServer = keyNames -> null;
+        try (BatchingKeyRepository repository = new BatchingKeyRepository(nullServer, Duration.ofMillis(10), 1000)) {
+            CompletableFuture<Optional<byte[]>> key1 = repository.getKeyAsync("key1").toCompletableFuture();
+            CompletableFuture<Optional<byte[]>> key2 = repository.getKeyAsync("key2").toCompletableFuture();
+
+            assertThatThrownBy(key1::get).hasCauseInstanceOf(IllegalStateException.class);
+            assertThatThrownBy(key2::get).hasCauseInstanceOf(IllegalStateException.class);
+        }
+    }
+
+    @Test
+    public void testErrorFailsAllWaiters() {
+        BulkKeyRepository failingServer = keyNames -> {
+            throw new AssertionError("unexpected");
+        };
+        try (BatchingKeyRepository repository = new BatchingKeyRepository(failingServer, Duration.ofMillis(10), 1000)) {
+            CompletableFuture<Optional<byte[]>> key1 = repository.getKeyAsync("key1").toCompletableFuture();
+            CompletableFuture<Optional<byte[]>> key2 = repository.getKeyAsync("key2").toCompletableFuture();
+
+            assertThatThrownBy(key1::get).hasCauseInstanceOf(AssertionError.class);
+            assertThatThrownBy(key2::get).hasCauseInstanceOf(AssertionError.class);
+        }
+    }
+
+    @Test
+    public void testBlockingRetrievalTimesOut() {
+        CountDownLatch release = new CountDownLatch(1);
+        BulkKeyRepository hangingServer = keyNames -> {
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new HashMap<>();
+        };
+        try (BatchingKeyRepository repository = new BatchingKeyRepository(hangingServer, Duration.ofMillis(10), 1000,
+                null, Duration.ofMillis(100))) {
+            assertThatThrownBy(() -> repository.getKey("key1"))
+                    .isInstanceOf(IllegalStateException.class)
+                    .hasMessageContaining("timed out");
+        }
+        finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testCloseFailsPendingRetrievals() {
+        CompletableFuture<Optional<byte[]>> pending;
+        try (BatchingKeyRepository repository = new BatchingKeyRepository(new StandInKeyServer(0, 10),
+                Duration.ofSeconds(10), 1000)) {
+            pending = repository.getKeyAsync("key1").toCompletableFuture();
+        }
+
+        assertThatThrownBy(pending::get).hasCauseInstanceOf(IllegalStateException.class);
+    }
+
+    /**
+     * In-process stand-in for a remote key server with a bulk endpoint, answering after a fixed latency.
+     */
+    static class StandInKeyServer implements BulkKeyRepository {
+
+        private final long latencyMillis;
+        private final Map<String, byte[]> keys = new HashMap<>();
+        private final List<Integer> batchSizes = new ArrayList<>();
+
+        StandInKeyServer(long latencyMillis, int keyCount) {
+            this.latencyMillis = latencyMillis;
+            for (int i = 0; i < keyCount; i++) {
+                keys.put("key" + i, key("key" + i));
+            }
+        }
+
+        static byte[] key(String keyName) {
+            return ("secret-" + keyName).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Map<String, byte[]> getKeys(Collection<String> keyNames) {
+            synchronized (batchSizes) {
+                batchSizes.add(keyNames.size());
+            }
+            try {
+                Thread.sleep(latencyMillis);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            Map<String, byte[]> result = new HashMap<>();
+            keyNames.stream().filter(keys::containsKey).forEach(keyName -> result.put(keyName, keys.get(keyName)));
+            return result;
+        }
+
+        List<Integer> batchSizes() {
+            synchronized (batchSizes) {
+                return new ArrayList<>(batchSizes);
+            }
+        }
+    }
+}
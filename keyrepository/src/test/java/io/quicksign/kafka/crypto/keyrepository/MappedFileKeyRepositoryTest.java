@@ -0,0 +1,192 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.keyrepository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedFileKeyRepositoryTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testPutGetRemove() throws IOException {
+        Path path = temporaryFolder.getRoot().toPath().resolve("keys");
+        try (MappedFileKeyRepository repository = new MappedFileKeyRepository(path)) {
+            repository.put("customer1", bytes("key1"));
+            repository.put("customer2", bytes("key2"));
+            repository.put("customer1", bytes("key1-bis"));
+
+            assertThat(repository.getKey("customer1")).contains(bytes("key1-bis"));
+            assertThat(repository.getKey("customer2")).contains(bytes("key2"));
+            assertThat(repository.getKey("customer3")).isEmpty();
+            assertThat(repository.size()).isEqualTo(2);
+
+            assertThat(repository.remove("customer1")).isTrue();
+            assertThat(repository.remove("customer1")).isFalse();
+            assertThat(repository.getKey("customer1")).isEmpty();
+            assertThat(repository.size()).isEqualTo(1);
+
+            repository.put("customer1", bytes("key1-ter"));
+            assertThat(repository.getKey("customer1")).contains(bytes("key1-ter"));
+        }
+    }
+
+    @Test
+    public void testKeysArePersisted() throws IOException {
+        Path path = temporaryFolder.getRoot().toPath().resolve("keys");
+        try (MappedFileKeyRepository repository = new MappedFileKeyRepository(path)) {
+            repository.put("customer1", bytes("key1"));
+            repository.put("customer2", bytes("key2"));
+            repository.remove("customer2");
+        }
+
+        try (MappedFileKeyRepository repository = new MappedFileKeyRepository(path)) {
+            assertThat(repository.getKey("customer1")).contains(bytes("key1"));
+            assertThat(repository.getKey("customer2")).isEmpty();
+            assertThat(repository.size()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testRemovedKeyIsZeroedInFile() throws IOException {
+        Path path = temporaryFolder.getRoot().toPath().resolve("keys");
+        try (MappedFileKeyRepository repository = new MappedFileKeyRepository(path)) {
+            repository.put("customer1", bytes("secret-key-of-customer1"));
+            repository.remove("customer1");
+        }
+
+        String content = new String(Files.readAllBytes(path), StandardCharsets.ISO_8859_1);
+        assertThat(content).doesNotContain("secret-key-of-customer1");
+    }
+
+    @Test
+    public void testFileGrowsAndCompacts() throws IOException {
+        Path path = temporaryFolder.getRoot().toPath().resolve("keys");
+        try (MappedFileKeyRepository repository = new MappedFileKeyRepository(path, 16)) {
+            for (int i = 0; i < 10_000; i++) {
+                repository.put("customer" + i, bytes("key" + i));
+            }
+            for (int i = 0; i < 10_000; i += 2) {
+                repository.remove("customer" + i);
+            }
+            long sizeBeforeCompaction = Files.size(path);
+
+            repository.compact();
+
+            assertThat(Files.size(path)).isLessThanOrEqualTo(sizeBeforeCompaction);
+            assertThat(repository.size()).isEqualTo(5_000);
+            for (int i = 0; i < 10_000; i++) {
+                if (i % 2 == 0) {
+                    assertThat(repository.getKey("customer" + i)).isEmpty();
+                }
+                else {
+                    assertThat(repository.getKey("customer" + i)).contains(bytes("key" + i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLookupsDuringUpdates() throws Exception {
+        Path path = temporaryFolder.getRoot().toPath().resolve("keys");
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (MappedFileKeyRepository repository = new MappedFileKeyRepository(path, 16)) {
+            repository.put("stable", bytes("stable-key"));
+            AtomicBoolean writing = new AtomicBoolean(true);
+            List<Future<?>> readers = new ArrayList<>();
+            for (int r = 0; r < 2; r++) {
+                readers.add(executor.submit(() -> {
+                    while (writing.get()) {
+                        assertThat(repository.getKey("stable")).contains(bytes("stable-key"));
+                    }
+                }));
+            }
+            for (int i = 0; i < 20_000; i++) {
+                repository.put("customer" + (i % 500), bytes("key" + i));
+            }
+            writing.set(false);
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testLookupsDuringReplacementsOfTheKey() throws Exception {
+        Path path = temporaryFolder.getRoot().toPath().resolve("keys");
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try (MappedFileKeyRepository repository = new MappedFileKeyRepository(path, 16)) {
+            repository.put("hot", bytes("key-initial"));
+            AtomicBoolean writing = new AtomicBoolean(true);
+            List<Future<?>> readers = new ArrayList<>();
+            for (int r = 0; r < 3; r++) {
+                readers.add(executor.submit(() -> {
+                    while (writing.get()) {
+                        assertThat(repository.getKey("hot")).hasValueSatisfying(key ->
+                                assertThat(new String(key, StandardCharsets.UTF_8)).startsWith("key-"));
+                    }
+                }));
+            }
+            for (int i = 0; i < 50_000; i++) {
+                repository.put("hot", bytes("key-" + i));
+            }
+            writing.set(false);
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+            assertThat(repository.getKey("hot")).contains(bytes("key-49999"));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testNotAKeyFile() throws IOException {
+        Path path = temporaryFolder.newFile("not-keys").toPath();
+        Files.write(path, new byte[128]);
+
+        assertThatThrownBy(() -> new MappedFileKeyRepository(path)).isInstanceOf(IOException.class);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
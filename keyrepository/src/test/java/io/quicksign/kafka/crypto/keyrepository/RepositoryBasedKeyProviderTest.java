@@ -0,0 +1,94 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.keyrepository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import org.junit.Test;
+
+import io.quicksign.kafka.crypto.keyrepository.BatchingKeyRepositoryTest.StandInKeyServer;
+
+public class RepositoryBasedKeyProviderTest {
+
+    private final KeyNameObfuscator keyNameObfuscator = new KeyNameObfuscator() {
+        @Override
+        public byte[] obfuscate(String keyName) {
+            return keyName.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String unObfuscate(byte[] keyref) {
+            return new String(keyref, StandardCharsets.UTF_8);
+        }
+    };
+
+    @Test
+    public void testAsyncRetrievalsOfBatchingRepositoryAreCoalesced() throws Exception {
+        StandInKeyServer server = new StandInKeyServer(20, 10);
+        try (BatchingKeyRepository repository = new BatchingKeyRepository(server, Duration.ofMillis(50), 100)) {
+            RepositoryBasedKeyProvider keyProvider = new RepositoryBasedKeyProvider(repository, keyNameObfuscator);
+
+            CompletableFuture<Optional<byte[]>> key1 = keyProvider.getKeyAsync(bytes("key1")).toCompletableFuture();
+            CompletableFuture<Optional<byte[]>> key2 = keyProvider.getKeyAsync(bytes("key2")).toCompletableFuture();
+            CompletableFuture<Optional<byte[]>> unknown = keyProvider.getKeyAsync(bytes("unknown")).toCompletableFuture();
+
+            assertThat(key1.get()).contains(StandInKeyServer.key("key1"));
+            assertThat(key2.get()).contains(StandInKeyServer.key("key2"));
+            assertThat(unknown.get()).isEmpty();
+            assertThat(server.batchSizes()).containsExactly(3);
+            assertThat(keyProvider.getKey(bytes("key3"))).contains(StandInKeyServer.key("key3"));
+        }
+    }
+
+    @Test
+    public void testAsyncRetrievalOfBlockingRepositoryRunsOnCallingThread() {
+        Thread caller = Thread.currentThread();
+        KeyRepository keyRepository = keyName -> {
+            assertThat(Thread.currentThread()).isSameAs(caller);
+            return "key1".equals(keyName) ? Optional.of(bytes("secret")) : Optional.empty();
+        };
+        RepositoryBasedKeyProvider keyProvider = new RepositoryBasedKeyProvider(keyRepository, keyNameObfuscator);
+
+        CompletionStage<Optional<byte[]>> key1 = keyProvider.getKeyAsync(bytes("key1"));
+
+        assertThat(key1.toCompletableFuture().isDone()).isTrue();
+        assertThat(key1.toCompletableFuture().join()).contains(bytes("secret"));
+        assertThat(keyProvider.getKeyAsync(bytes("key2")).toCompletableFuture().join()).isEmpty();
+    }
+
+    @Test
+    public void testAsyncOnlyRepository() {
+        AsyncKeyRepository asyncKeyRepository = keyName -> CompletableFuture.completedFuture(Optional.of(bytes("secret-" + keyName)));
+        RepositoryBasedKeyProvider keyProvider = RepositoryBasedKeyProvider.of(asyncKeyRepository, keyNameObfuscator);
+
+        assertThat(keyProvider.getKeyAsync(bytes("key1")).toCompletableFuture().join()).contains(bytes("secret-key1"));
+        assertThat(keyProvider.getKey(bytes("key2"))).contains(bytes("secret-key2"));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
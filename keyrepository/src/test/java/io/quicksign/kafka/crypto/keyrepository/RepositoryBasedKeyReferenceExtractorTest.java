@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * Kafka Encryption
+ * %%
+ * Copyright (C) 2018 Quicksign
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package io.quicksign.kafka.crypto.keyrepository;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import io.quicksign.kafka.crypto.cache.CacheStats;
+
+public class RepositoryBasedKeyReferenceExtractorTest {
+
+    private final AtomicInteger obfuscations = new AtomicInteger();
+
+    private final KeyNameExtractor keyNameExtractor = (topic, key) -> key == null ? null : topic + "-" + key;
+
+    private final KeyNameObfuscator keyNameObfuscator = new KeyNameObfuscator() {
+        @Override
+        public byte[] obfuscate(String keyName) {
+            obfuscations.incrementAndGet();
+            return keyName.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String unObfuscate(byte[] keyref) {
+            return new String(keyref, StandardCharsets.UTF_8);
+        }
+    };
+
+    @Test
+    public void testKeyRefIsObfuscatedForEachRecordByDefault() {
+        RepositoryBasedKeyReferenceExtractor extractor = new RepositoryBasedKeyReferenceExtractor(keyNameExtractor, keyNameObfuscator);
+
+        byte[] keyRef1 = extractor.extractKeyReference("topic", "a");
+        byte[] keyRef2 = extractor.extractKeyReference("topic", "a");
+
+        assertThat(keyRef1).isEqualTo(keyRef2).isNotSameAs(keyRef2);
+        assertThat(obfuscations.get()).isEqualTo(2);
+        assertThat(extractor.stats().getMissCount()).isZero();
+    }
+
+    @Test
+    public void testKeyRefIsMemoizedByKeyName() {
+        RepositoryBasedKeyReferenceExtractor extractor = new RepositoryBasedKeyReferenceExtractor(keyNameExtractor, keyNameObfuscator, 10);
+
+        byte[] keyRef1 = extractor.extractKeyReference("topic", "a");
+        byte[] keyRef2 = extractor.extractKeyReference("topic", "a");
+        byte[] otherKeyRef = extractor.extractKeyReference("other", "a");
+
+        assertThat(keyRef2).isSameAs(keyRef1);
+        assertThat(new String(otherKeyRef, StandardCharsets.UTF_8)).isEqualTo("other-a");
+        assertThat(extractor.extractKeyReference("topic", null)).isNull();
+        assertThat(obfuscations.get()).isEqualTo(2);
+
+        CacheStats stats = extractor.stats();
+        assertThat(stats.getHitCount()).isEqualTo(1);
+        assertThat(stats.getMissCount()).isEqualTo(2);
+        assertThat(stats.getLoadSuccessCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testMemoIsBounded() {
+        RepositoryBasedKeyReferenceExtractor extractor = new RepositoryBasedKeyReferenceExtractor(keyNameExtractor, keyNameObfuscator, 3);
+
+        for (int i = 0; i < 10; i++) {
+            extractor.extractKeyReference("topic", i);
+        }
+
+        assertThat(extractor.size()).isEqualTo(3);
+        assertThat(extractor.stats().getEvictionCount()).isEqualTo(7);
+    }
+
+    @Test
+    public void testHotKeyNameStaysMemoized() {
+        RepositoryBasedKeyReferenceExtractor extractor = new RepositoryBasedKeyReferenceExtractor(keyNameExtractor, keyNameObfuscator, 3);
+        byte[] hotKeyRef = extractor.extractKeyReference("topic", "hot");
+
+        for (int i = 0; i < 100; i++) {
+            extractor.extractKeyReference("topic", "cold" + i);
+            assertThat(extractor.extractKeyReference("topic", "hot")).isSameAs(hotKeyRef);
+        }
+
+        assertThat(obfuscations.get()).isEqualTo(101);
+        assertThat(extractor.stats().getHitCount()).isEqualTo(100);
+    }
+}